@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Resource;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spc.ofp.tubs.domain.purseseine.Activity;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+
+/**
+ * CodeRemapper brings trips that are already in TUBS in line with a corrected
+ * DataCleaner lookup, without importing them again.
+ *
+ * TUBS only holds the ReferenceId a source code was mapped to, so a change
+ * (source code, old ReferenceId, new ReferenceId) becomes an UPDATE of every
+ * row holding the old ReferenceId.  That is only right if no other source
+ * code was also mapped to the old ReferenceId and still is;  plan() checks
+ * that against DataCleaner and refuses changes it can't apply safely.  Those
+ * trips have to be reimported.  Changes must be made in DataCleaner first, so
+ * that new imports agree with the remapped rows.
+ *
+ * Each batch of trips is one transaction:  one UPDATE per lookup, which also
+ * stamps the rows' audit columns, and a row in code_remap_log (see
+ * sql/code_remap_log.sql) for every change with the number of rows it updated.
+ * A batch that fails leaves its trips as they were, and a remap can simply be
+ * rerun since remapped rows no longer hold the old ReferenceId.  Association
+ * changes also rebuild the ps.trip_association_sets rows of the batch's trips
+ * that have a summary, from the sets, in the same transaction.
+ *
+ * The ps.activities table and columns are taken from the TUBS mapping of
+ * Activity;  the fixed statements are checked against the mappings (see
+ * TubsMappings.checkTables()) before the first batch.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class CodeRemapper {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CodeRemapper.class);
+
+	private static final String UPDATED_BY = "CodeRemapper";
+
+	private static final String TRIP_DAYS = "SELECT d.day_id FROM ps.days d WHERE d.trip_id IN (:tripIds)";
+
+	private static final String SUMMARIZED_TRIPS =
+	    "trip_id IN (SELECT t.trip_id FROM ps.trip_summary t WHERE t.trip_id IN (:tripIds))";
+
+	private static final String DELETE_ASSOCIATION_SETS_SQL =
+	    "DELETE FROM ps.trip_association_sets WHERE " + SUMMARIZED_TRIPS;
+
+	private static final String INSERT_ASSOCIATION_SETS_SQL =
+	    "INSERT INTO ps.trip_association_sets (trip_id, association_type_id, set_count, total_catch) " +
+	    "SELECT d.trip_id, a.association_type_id, COUNT(*), COALESCE(SUM(s.total_catch), 0) " +
+	    "FROM ps.sets s " +
+	    "JOIN ps.activities a ON a.activity_id = s.activity_id " +
+	    "JOIN ps.days d ON d.day_id = a.day_id " +
+	    "WHERE d." + SUMMARIZED_TRIPS + " " +
+	    "GROUP BY d.trip_id, a.association_type_id";
+
+	private static final String INSERT_LOG_SQL =
+	    "INSERT INTO code_remap_log (run_id, lookup, old_id, new_id, rows_updated, remapped_by, remapped_date) " +
+	    "VALUES (:runId, :lookup, :oldId, :newId, :rows, '" + UPDATED_BY + "', CURRENT_TIMESTAMP)";
+
+	/**
+	 * The purse seine activity lookups whose results TUBS stores, and the
+	 * Activity property each one fills.
+	 */
+	public enum Lookup {
+		ACTIVITY("activityType") {
+			Integer map(final Integer code) { return DataCleaner.getPurseSeineActivity(code); }
+		},
+		DETECTION("detectionMethod") {
+			Integer map(final Integer code) { return DataCleaner.getPurseSeineDetection(code); }
+		},
+		ASSOCIATION("associationType") {
+			Integer map(final Integer code) { return DataCleaner.getPurseSeineAssociation(code); }
+		};
+
+		final String property;
+
+		private Lookup(final String property) {
+			this.property = property;
+		}
+
+		abstract Integer map(Integer code);
+	}
+
+	/**
+	 * One corrected entry of a lookup.
+	 */
+	public static class Change {
+		final Lookup lookup;
+		final int sourceCode;
+		final int oldId;
+		final int newId;
+
+		public Change(final Lookup lookup, final int sourceCode, final int oldId, final int newId) {
+			this.lookup = lookup;
+			this.sourceCode = sourceCode;
+			this.oldId = oldId;
+			this.newId = newId;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %d: %d to %d", lookup.name().toLowerCase(), sourceCode, oldId, newId);
+		}
+	}
+
+	@Resource(name = "TripSummaryWriter")
+	protected TripSummaryWriter tripSummaryWriter;
+
+	@Resource(name = "TubsMappings")
+	protected TubsMappings mappings;
+
+	private NamedParameterJdbcTemplate jdbc;
+	private TransactionTemplate transactions;
+	private boolean checked;
+
+	@Resource(name = "tubs.DataSource")
+	public void setDataSource(final DataSource dataSource) {
+		this.jdbc = new NamedParameterJdbcTemplate(dataSource);
+		this.transactions = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+	}
+
+	/**
+	 * Reads a change list, one change per line:
+	 *   &lt;lookup&gt; &lt;source code&gt; &lt;old ReferenceId&gt; &lt;new ReferenceId&gt;
+	 * for example "activity 23 10 11".  Blank lines and lines starting with # are skipped.
+	 * @param lines
+	 * @return The changes, in file order
+	 */
+	public static List<Change> parse(final List<String> lines) {
+		final List<Change> changes = new ArrayList<Change>();
+		int lineNumber = 0;
+		for (final String line : lines) {
+			lineNumber++;
+			final String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("#")) { continue; }
+			final String[] fields = trimmed.split("[\\s,]+");
+			try {
+				if (4 != fields.length) { throw new IllegalArgumentException("expected 4 fields"); }
+				changes.add(new Change(
+				    Lookup.valueOf(fields[0].toUpperCase()),
+				    Integer.parseInt(fields[1]),
+				    Integer.parseInt(fields[2]),
+				    Integer.parseInt(fields[3])));
+			} catch (IllegalArgumentException ex) {
+				throw new IllegalArgumentException(String.format(
+				    "Line %d: '%s' is not <lookup> <source code> <old id> <new id> (%s)",
+				    lineNumber, trimmed, ex.getMessage()), ex);
+			}
+		}
+		return changes;
+	}
+
+	/**
+	 * Works out the UPDATEs for a set of changes, and checks that each can be
+	 * applied to TUBS rows without touching rows from other source codes.
+	 * @param changes
+	 * @return Old ReferenceId to new, by lookup
+	 * @throws IllegalArgumentException if DataCleaner doesn't have the changes yet, or they are ambiguous
+	 */
+	public static Map<Lookup, Map<Integer, Integer>> plan(final List<Change> changes) {
+		final Map<Lookup, Map<Integer, Integer>> plan = new EnumMap<Lookup, Map<Integer, Integer>>(Lookup.class);
+		for (final Change change : changes) {
+			final Integer current = change.lookup.map(change.sourceCode);
+			if (!Objects.equal(current, change.newId)) {
+				throw new IllegalArgumentException(String.format(
+				    "%s, but DataCleaner maps it to %s; correct DataCleaner first", change, current));
+			}
+		}
+		for (final Change change : changes) {
+			// Every code that was imported as oldId has to end up as newId
+			for (int code = 0; code <= DataCleaner.MAX_SOURCE_CODE; code++) {
+				if (!Objects.equal(previousId(changes, change.lookup, code), change.oldId)) { continue; }
+				final Integer current = change.lookup.map(code);
+				if (!Objects.equal(current, change.newId)) {
+					throw new IllegalArgumentException(String.format(
+					    "%s:  %s %d was also imported as %d but maps to %s, so their rows can't be told apart." +
+					    "  Reimport the affected trips instead.",
+					    change, change.lookup.name().toLowerCase(), code, change.oldId, current));
+				}
+			}
+			Map<Integer, Integer> ids = plan.get(change.lookup);
+			if (null == ids) {
+				ids = new LinkedHashMap<Integer, Integer>();
+				plan.put(change.lookup, ids);
+			}
+			ids.put(change.oldId, change.newId);
+		}
+		return plan;
+	}
+
+	/**
+	 * @return What code was mapped to before the changes
+	 */
+	private static Integer previousId(final List<Change> changes, final Lookup lookup, final int code) {
+		for (final Change change : changes) {
+			if (lookup == change.lookup && code == change.sourceCode) { return change.oldId; }
+		}
+		return lookup.map(code);
+	}
+
+	/**
+	 * Applies the changes to the trips, batchSize trips at a time.
+	 * @param runId Written to code_remap_log with each change
+	 * @param tripIds TUBS trip IDs
+	 * @param changes
+	 * @param batchSize
+	 * @return The number of rows updated
+	 */
+	public long remap(final String runId, final List<Long> tripIds, final List<Change> changes, final int batchSize) {
+		final Map<Lookup, Map<Integer, Integer>> plan = plan(changes);
+		checkTables();
+		// Only trips with a ps.trip_summary row are touched (see SUMMARIZED_TRIPS)
+		final boolean summaries = plan.containsKey(Lookup.ASSOCIATION) && tripSummaryWriter.isInstalled();
+		long updated = 0L;
+		int done = 0;
+		for (final List<Long> batch : Lists.partition(tripIds, Math.max(1, batchSize))) {
+			final List<Long> batchIds = new ArrayList<Long>(batch);
+			final long[] batchUpdated = new long[1];
+			transactions.execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(final TransactionStatus status) {
+					for (final Map.Entry<Lookup, Map<Integer, Integer>> entry : plan.entrySet()) {
+						batchUpdated[0] += remapBatch(runId, batchIds, entry.getKey(), entry.getValue());
+					}
+					if (summaries) {
+						final MapSqlParameterSource params = new MapSqlParameterSource("tripIds", batchIds);
+						jdbc.update(DELETE_ASSOCIATION_SETS_SQL, params);
+						jdbc.update(INSERT_ASSOCIATION_SETS_SQL, params);
+					}
+				}
+			});
+			updated += batchUpdated[0];
+			done += batch.size();
+			LOGGER.info(String.format("Remapped %d of %d trips (%d rows)", done, tripIds.size(), updated));
+		}
+		return updated;
+	}
+
+	private synchronized void checkTables() {
+		if (checked) { return; }
+		mappings.checkTables(getClass().getSimpleName(), Arrays.asList(
+		    TRIP_DAYS, DELETE_ASSOCIATION_SETS_SQL, INSERT_ASSOCIATION_SETS_SQL, INSERT_LOG_SQL));
+		checked = true;
+	}
+
+	private long remapBatch(final String runId, final List<Long> tripIds, final Lookup lookup, final Map<Integer, Integer> ids) {
+		final String table = mappings.getTable(Activity.class);
+		final String column = mappings.getColumn(Activity.class, lookup.property);
+		final String tripActivities = String.format("%s IN (%s)", mappings.getColumn(Activity.class, "day"), TRIP_DAYS);
+		final MapSqlParameterSource params = new MapSqlParameterSource("tripIds", tripIds)
+		    .addValue("oldIds", new ArrayList<Integer>(ids.keySet()));
+
+		// Counted first, for the log;  rows are locked by the UPDATE straight after
+		final Map<Integer, Integer> counts = new LinkedHashMap<Integer, Integer>();
+		final SqlRowSet rows = jdbc.queryForRowSet(String.format(
+		    "SELECT %1$s, COUNT(*) FROM %3$s WHERE %1$s IN (:oldIds) AND %2$s GROUP BY %1$s",
+		    column, tripActivities, table), params);
+		while (rows.next()) {
+			counts.put(rows.getInt(1), rows.getInt(2));
+		}
+		if (counts.isEmpty()) { return 0L; }
+
+		// One CASE rather than an UPDATE per change, so that swapped IDs don't cascade
+		final StringBuilder cases = new StringBuilder();
+		int i = 0;
+		for (final Map.Entry<Integer, Integer> id : ids.entrySet()) {
+			cases.append(String.format(" WHEN :old%1$d THEN :new%1$d", i));
+			params.addValue("old" + i, id.getKey()).addValue("new" + i, id.getValue());
+			i++;
+		}
+		final int updated = jdbc.update(String.format(
+		    "UPDATE %4$s SET %1$s = CASE %1$s%3$s END, " +
+		    "%5$s = '" + UPDATED_BY + "', %6$s = CURRENT_TIMESTAMP " +
+		    "WHERE %1$s IN (:oldIds) AND %2$s",
+		    column, tripActivities, cases, table,
+		    mappings.getColumn(Activity.class, "auditEntry.updatedBy"),
+		    mappings.getColumn(Activity.class, "auditEntry.updatedDate")), params);
+
+		for (final Map.Entry<Integer, Integer> count : counts.entrySet()) {
+			jdbc.update(INSERT_LOG_SQL, new MapSqlParameterSource("runId", runId)
+			    .addValue("lookup", lookup.name().toLowerCase())
+			    .addValue("oldId", count.getKey())
+			    .addValue("newId", ids.get(count.getKey()))
+			    .addValue("rows", count.getValue()));
+		}
+		return updated;
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * ContentDigest builds a SHA-1 hash over a sequence of field values in a
+ * canonical form, so that the same logical content hashes identically no
+ * matter which side (or which JDBC driver) it was read from.
+ *
+ * Canonical rules:  strings are trimmed, numbers lose trailing zeros,
+ * dates are truncated to whole seconds and null is distinct from "".
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class ContentDigest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte FIELD_SEPARATOR = 0x1f;
+	private static final byte NULL_MARKER = 0x00;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final MessageDigest md;
+
+	public ContentDigest() {
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			// Every JRE is required to ship SHA-1
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	public ContentDigest add(final Object value) {
+		if (null == value) {
+			md.update(NULL_MARKER);
+		} else {
+			md.update(canonical(value).getBytes(UTF8));
+		}
+		md.update(FIELD_SEPARATOR);
+		return this;
+	}
+
+	public ContentDigest addAll(final Object... values) {
+		for (final Object value : values) {
+			add(value);
+		}
+		return this;
+	}
+
+	/**
+	 * Completes the digest and returns it as a lower case hex string.
+	 * This instance can't be used after calling toHex.
+	 * @return
+	 */
+	public String toHex() {
+		return hex(md.digest());
+	}
+
+	/**
+	 * Combines a bag of hashes without regard to their order.  Used for child
+	 * collections where the source and target may not agree on ordering.
+	 * @param hashes
+	 * @return
+	 */
+	public static String unordered(final List<String> hashes) {
+		Collections.sort(hashes);
+		final ContentDigest digest = new ContentDigest();
+		for (final String hash : hashes) {
+			digest.add(hash);
+		}
+		return digest.toHex();
+	}
+
+	static String canonical(final Object value) {
+		if (value instanceof String) {
+			return ((String)value).trim();
+		}
+		if (value instanceof Date) {
+			return Long.toString(((Date)value).getTime() / 1000L);
+		}
+		if (value instanceof Boolean) {
+			return ((Boolean)value).booleanValue() ? "Y" : "N";
+		}
+		if (value instanceof BigDecimal) {
+			final BigDecimal bd = (BigDecimal)value;
+			// stripTrailingZeros on zero doesn't normalize the scale in Java 6
+			return 0 == bd.signum() ? "0" : bd.stripTrailingZeros().toPlainString();
+		}
+		if (value instanceof Double || value instanceof Float) {
+			return canonical(BigDecimal.valueOf(((Number)value).doubleValue()));
+		}
+		if (value instanceof Number) {
+			return canonical(new BigDecimal(value.toString()));
+		}
+		return value.toString().trim();
+	}
+
+	static String hex(final byte[] bytes) {
+		final char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+		}
+		return new String(chars);
+	}
+}
@@ -18,21 +18,39 @@
  */
 package org.spc.ofp.tubs.importer;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.annotation.Resource;
 
+import org.apache.commons.io.FileUtils;
 import org.spc.ofp.observer.domain.TripIdRepository;
 import org.spc.ofp.tubs.domain.AuditEntry;
 import org.spc.ofp.tubs.domain.ImportStatus;
 import org.spc.ofp.tubs.domain.purseseine.PurseSeineTrip;
 import org.springframework.batch.item.ItemProcessor;
-import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 import org.springframework.stereotype.Component;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * @author Corey Cole <coreyc@spc.int>
@@ -59,27 +77,283 @@ public class CopyFromObserver {
 	@Resource
 	protected org.spc.ofp.tubs.domain.common.CommonRepository commonRepo;
 	
-	private static final String[] SPRING_CONFIGS = {
+	@Resource(name = "TripReconciler")
+	protected TripReconciler tripReconciler;
+	
+	@Resource(name = "TripLeaseRepository")
+	protected TripLeaseRepository tripLeaseRepository;
+	
+	@Resource(name = "ImportStatusFinder")
+	protected ImportStatusFinder importStatusFinder;
+	
+	@Resource(name = "ResourceAccounting")
+	protected ResourceAccounting resourceAccounting;
+	
+	@Resource(name = "TripValidator")
+	protected TripValidator tripValidator;
+	
+	@Resource(name = "TripSizeEstimator")
+	protected TripSizeEstimator tripSizeEstimator;
+	
+	@Resource(name = "TripMerger")
+	protected TripMerger tripMerger;
+	
+	@Resource(name = "EmbeddedFixtures")
+	protected EmbeddedFixtures embeddedFixtures;
+	
+	@Resource(name = "TripWatchdog")
+	protected TripWatchdog tripWatchdog;
+	
+	@Resource(name = "DryRunWriter")
+	protected DryRunWriter dryRunWriter;
+	
+	@Resource(name = "RunRollback")
+	protected RunRollback runRollback;
+	
+	@Resource(name = "CodeRemapper")
+	protected CodeRemapper codeRemapper;
+	
+	@Resource(name = "TripSummaryWriter")
+	protected TripSummaryWriter tripSummaryWriter;
+	
+	@Resource(name = "TripWriter")
+	protected TripWriter tripWriter;
+	
+	@Resource(name = "TripOverlapIndex")
+	protected TripOverlapIndex tripOverlapIndex;
+	
+	static final String[] SPRING_CONFIGS = {
 		"tubs-context.xml", /* Target setup */
 		"observer-context.xml", /* Source setup */
 		"copy-observer-to-tubs.xml" /* Setup for this application */
 	};
 	
-	private static final String SOURCE_NAME = "FoxPro Observer";
+	static final String SOURCE_NAME = "FoxPro Observer";
 	private static final String ENTERED_BY = "TubsTripProcessor"; // TODO Add SVN string?
 	
+	private static final int DEFAULT_LEASE_BATCH = 5;
+	private static final int DEFAULT_LEASE_SECONDS = 300;
+	private static final int DEFAULT_LEASE_ATTEMPTS = 3;
+	private static final long IDLE_WAIT_MILLIS = 10000L;
+	private static final String DEFAULT_SNAPSHOT_FILE = "observer-trips.snap";
+	// What the driving query has always selected
+	private static final String DEFAULT_GEAR = "S";
+	private static final String DEFAULT_FROM_YEAR = "1999";
+	private static final String DEFAULT_TO_YEAR = "2000";
+	private static final int DEFAULT_BUDGET_TRIPS = 25;
+	private static final int DEFAULT_LOAD_TEST_TRIPS = 100;
+	private static final int DEFAULT_ESTIMATE_SAMPLE = 50;
+	
+	private boolean metricsInStatus;
+	private int prepareThreads;
+	private int workers;
+	private boolean upsert;
+	private boolean tripSummaries;
+	private TripOverlapIndex.Action overlapAction;
+	private String runId = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+	private TripIdFile tripIdFile;
+	
 	/**
 	 * @param args
 	 */
 	public static void main(final String[] args) throws Exception {		
-		// FIXME Add argument parsing.
 		// FIXME With all the required libraries, will probably have to use Maven to execute
-		final ApplicationContext ctx = new ClassPathXmlApplicationContext(SPRING_CONFIGS);
-		ctx.getBean(CopyFromObserver.class).doCopy();
+		final ImporterOptions options = ImporterOptions.parse(args);
+		final Map<ImportStage, Long> stageBudgets = TripWatchdog.budgetsFromOptions(options);
+		// Statements can only be cancelled if the DataSources are wrapped as they're created
+		final StatementTracker statementTracker = stageBudgets.isEmpty() ? null : new StatementTracker();
+		final ClassPathXmlApplicationContext ctx = new ClassPathXmlApplicationContext(SPRING_CONFIGS, false);
+		if ("load-test".equals(options.getMode())) {
+			// Generated trips are never written anywhere but the embedded databases
+			ctx.addBeanFactoryPostProcessor(new EmbeddedDatabases());
+		}
+		ctx.addBeanFactoryPostProcessor(new TubsBatchSettings(TubsBatchSettings.DEFAULT_BATCH_SIZE));
+		if (null != statementTracker) {
+			ctx.addBeanFactoryPostProcessor(statementTracker);
+		}
+		ctx.refresh();
+		ctx.getBean("TripWatchdog", TripWatchdog.class).configure(stageBudgets, statementTracker);
+		final CopyFromObserver copier = ctx.getBean(CopyFromObserver.class);
+		copier.setMetricsInStatus(options.has("metrics-in-status"));
+		copier.setPrepareThreads(options.getInt("prepare-threads", 0));
+		copier.setWorkers(options.getInt("workers", 0));
+		copier.setUpsert(options.has("upsert"));
+		copier.setTripSummaries(options.has("trip-summaries"));
+		copier.setRunId(options.getString("run-id", copier.getRunId()));
+		if (options.has("ids")) {
+			copier.setTripIdFile(TripIdFile.open(new File(options.getString("ids", null)), options.getString("ids-format", null)));
+		}
+		System.out.println("Run ID: " + copier.getRunId());
+		if (options.has("mapping-threads")) {
+			ctx.getBean("TubsTripProcessor", TubsTripProcessor.class).setMappingThreads(options.getInt("mapping-threads", 0));
+		}
+		if (options.has("bulk-length-samples")) {
+			ctx.getBean("TubsTripProcessor", TubsTripProcessor.class).setBulkLengthSamples(true);
+		}
+		if (options.has("overlaps")) {
+			// --overlaps or --overlaps=flag imports them anyway, --overlaps=skip doesn't
+			copier.setOverlapAction("skip".equalsIgnoreCase(options.getString("overlaps", null)) ?
+			    TripOverlapIndex.Action.SKIP : TripOverlapIndex.Action.FLAG);
+			ctx.getBean("TripOverlapIndex", TripOverlapIndex.class).preload();
+		}
+		if (options.has("observer-reference-cache")) {
+			ctx.getBean("ObserverReferenceCache", ObserverReferenceCache.class).preload();
+		}
+		if (options.has("eez-file")) {
+			ctx.getBean("EezIndex", EezIndex.class).load(new File(options.getString("eez-file", null)));
+		}
+		if (options.has("reference-proxies")) {
+			// Check once up front, since the IDs are then never read back
+			final ReferenceLookup lookup = ctx.getBean("ReferenceLookup", ReferenceLookup.class);
+			lookup.validateReferenceIds(DataCleaner.getReferenceIds());
+			lookup.setIdsOnly(true);
+		}
+		if ("reconcile".equals(options.getMode())) {
+			// Reconciling must not create the observers, ports or vessels a trip is missing
+			ctx.getBean("TubsTripProcessor", TubsTripProcessor.class).setLookupOnly(true);
+			copier.doReconcile(options.getInt("threads", Runtime.getRuntime().availableProcessors()));
+		} else if ("reimport".equals(options.getMode())) {
+			copier.doReimport();
+		} else if ("replay".equals(options.getMode())) {
+			copier.doReplay(options.getString("errors", null));
+		} else if ("snapshot".equals(options.getMode())) {
+			copier.doSnapshot(
+			    new File(options.getString("file", DEFAULT_SNAPSHOT_FILE)),
+			    options.getString("gear", DEFAULT_GEAR),
+			    options.getString("from-year", DEFAULT_FROM_YEAR),
+			    options.getString("to-year", DEFAULT_TO_YEAR));
+		} else if ("transform".equals(options.getMode())) {
+			ctx.getBean("TubsTripProcessor", TubsTripProcessor.class).setLookupOnly(true);
+			copier.doTransformSnapshot(new File(options.getString("file", DEFAULT_SNAPSHOT_FILE)));
+		} else if ("query-budget".equals(options.getMode())) {
+			final boolean withinBudget = copier.doQueryBudgetCheck(
+			    options.getInt("limit", DEFAULT_BUDGET_TRIPS), QueryBudget.fromOptions(options));
+			copier.printRunReport();
+			System.exit(withinBudget ? 0 : 1);
+		} else if ("load-test".equals(options.getMode())) {
+			copier.doLoadTest(options.getInt("trips", DEFAULT_LOAD_TEST_TRIPS), options);
+		} else if ("estimate".equals(options.getMode())) {
+			ctx.getBean("TubsTripProcessor", TubsTripProcessor.class).setLookupOnly(true);
+			copier.doEstimate(
+			    options.getInt("sample", DEFAULT_ESTIMATE_SAMPLE),
+			    options.getInt("strata", RunEstimate.DEFAULT_STRATA),
+			    options.getInt("concurrency", Math.max(1, options.getInt("workers", 1))),
+			    options.has("with-write"),
+			    options.getInt("seed", 1));
+		} else if ("rollback".equals(options.getMode())) {
+			copier.doRollback(
+			    options.getString("run", null),
+			    options.getString("from", null),
+			    options.getString("to", null),
+			    options.getInt("batch", RunRollback.DEFAULT_BATCH_SIZE),
+			    options.has("confirm"));
+		} else if ("summarize".equals(options.getMode())) {
+			copier.doSummarize();
+		} else if ("remap".equals(options.getMode())) {
+			copier.doRemap(
+			    options.getString("changes", null),
+			    options.getInt("batch", RunRollback.DEFAULT_BATCH_SIZE),
+			    options.has("confirm"));
+		} else if ("distributed".equals(options.getMode())) {
+			copier.doDistributedCopy(
+			    options.getInt("batch", DEFAULT_LEASE_BATCH),
+			    options.getInt("lease-seconds", DEFAULT_LEASE_SECONDS) * 1000L,
+			    options.getInt("max-attempts", DEFAULT_LEASE_ATTEMPTS));
+		} else if (ImporterOptions.DEFAULT_MODE.equals(options.getMode())) {
+			copier.doCopy();
+		} else {
+			throw new IllegalArgumentException("Unknown mode: " + options.getMode());
+		}
+		copier.printRunReport();
 	}
 	
 	public CopyFromObserver() {}
 	
+	/**
+	 * When set, each trip's resource usage is also written to its ImportStatus comments.
+	 * @param value
+	 */
+	public void setMetricsInStatus(final boolean value) {
+		this.metricsInStatus = value;
+	}
+	
+	/**
+	 * When positive, trips are prepared (up to SAVE) on a pool of this size while
+	 * earlier trips are being saved.  Zero, the default, does everything in turn.
+	 * @param value
+	 */
+	public void setPrepareThreads(final int value) {
+		this.prepareThreads = value;
+	}
+	
+	/**
+	 * When positive, copy, reimport and replay import this many trips at once,
+	 * biggest first (see TripSizeEstimator).  Takes precedence over prepare threads.
+	 * @param value
+	 */
+	public void setWorkers(final int value) {
+		this.workers = value;
+	}
+	
+	/**
+	 * When set, a trip that was imported before is updated in place (see TripMerger)
+	 * rather than written again and the old copy removed.  Trips mapped with bulk
+	 * length samples are always written again, since TripMerger only sees entities.
+	 * @param value
+	 */
+	public void setUpsert(final boolean value) {
+		this.upsert = value;
+	}
+	
+	/**
+	 * When set, each trip's summary (see TripSummary) is written along with it,
+	 * in the same transaction.  Trips that already have a summary keep it up to
+	 * date either way.
+	 * @param value
+	 */
+	public void setTripSummaries(final boolean value) {
+		this.tripSummaries = value;
+	}
+	
+	/**
+	 * When set, each trip is checked against the TripOverlapIndex for trips by
+	 * the same vessel or observer with overlapping dates, and flagged or skipped.
+	 * Null, the default, doesn't check.
+	 * @param value
+	 */
+	public void setOverlapAction(final TripOverlapIndex.Action value) {
+		this.overlapAction = value;
+	}
+	
+	/**
+	 * Tags the ImportStatus of every trip this run touches, so that the whole
+	 * run can be rolled back later.  Defaults to the start time, to the second.
+	 * @param value
+	 */
+	public void setRunId(final String value) {
+		this.runId = value;
+	}
+	
+	public String getRunId() {
+		return runId;
+	}
+	
+	/**
+	 * When set, copy and reimport work through the trip IDs in this file instead
+	 * of the driving query.  The IDs are streamed from the file as they're needed.
+	 * @param value
+	 */
+	public void setTripIdFile(final TripIdFile value) {
+		this.tripIdFile = value;
+	}
+	
+	public void printRunReport() {
+		final RunReport report = resourceAccounting.getReport();
+		if (!report.getTrips().isEmpty()) {
+			System.out.println(report);
+		}
+	}
+	
 	private static AuditEntry getAuditEntry() {
 		final AuditEntry entry = new AuditEntry();
 		entry.setEnteredBy(ENTERED_BY);
@@ -87,56 +361,701 @@ public class CopyFromObserver {
 		return entry;
 	}
 	
-	// FIXME Accept arguments for gear type, limit, and year from caller
-	public void doCopy() {
-		existsFilterProcessor.setSourceName(SOURCE_NAME);
+	// FIXME Only snapshot takes gear type and years from the caller so far, and nothing takes the limit
+	protected List<Long> findTripIds() {
+		return findTripIds(DEFAULT_GEAR, DEFAULT_FROM_YEAR, DEFAULT_TO_YEAR);
+	}
+	
+	protected List<Long> findTripIds(final String gear, final String fromYear, final String toYear) {
 		// tripIdRepository is the driving query
-		final List<Long> tripIds = tripIdRepository.findTripIdsByGearAndYear("S", 12L, "1999", "2000");
+		return tripIdRepository.findTripIdsByGearAndYear(gear, 12L, fromYear, toYear);
+	}
+	
+	private static List<String> asSourceIds(final List<Long> tripIds) {
+		final List<String> ids = new ArrayList<String>(tripIds.size());
+		for (final Long tripId : tripIds) {
+			ids.add(Integer.toString(tripId.intValue()));
+		}
+		return ids;
+	}
+	
+	/**
+	 * doReconcile compares every trip from the driving query against its TUBS copy
+	 * and prints the trips (and sections) that differ.
+	 * @param threads
+	 */
+	public void doReconcile(final int threads) throws InterruptedException {
+		tripReconciler.setSourceName(SOURCE_NAME);
+		tripReconciler.setThreads(threads);
+		final ReconciliationReport report = tripReconciler.reconcile(findTripIds());
+		System.out.println(report);
+	}
+	
+	/**
+	 * doReplay re-imports only the trips whose last import failed or timed out, as recorded
+	 * in ImportStatus, without walking the driving query.
+	 * @param errorPattern Optional text that the failure comments must contain,
+	 *        e.g. the exception class name of the bug that was just fixed
+	 */
+	public void doReplay(final String errorPattern) throws InterruptedException {
+		existsFilterProcessor.setSourceName(SOURCE_NAME);
+		existsFilterProcessor.setReimportChanged(false);
+		final List<String> failedIds = importStatusFinder.findFailedSourceIds(SOURCE_NAME, errorPattern);
+		System.out.println(String.format("Replaying %d failed trips", failedIds.size()));
+		importTrips(failedIds);
+	}
+	
+	/**
+	 * doSnapshot copies observer trip graphs into a local snapshot file so that
+	 * mapping changes can be tried out offline.  The trips are those in the
+	 * trip ID file (--ids) if there is one, otherwise those the driving query
+	 * finds for gear and years (--gear, --from-year and --to-year, by default
+	 * purse seine trips from 1999 to 2000).
+	 * @param file
+	 * @param gear
+	 * @param fromYear
+	 * @param toYear
+	 */
+	public void doSnapshot(final File file, final String gear, final String fromYear, final String toYear) throws IOException {
+		final Iterator<String> ids;
+		if (null == tripIdFile) {
+			ids = asSourceIds(findTripIds(gear, fromYear, toYear)).iterator();
+		} else {
+			System.out.println("Reading trip IDs from " + tripIdFile);
+			ids = tripIdFile.iterator();
+		}
+		final TripSnapshotWriter writer = new TripSnapshotWriter(file);
+		try {
+			while (ids.hasNext()) {
+				final String id = ids.next();
+				try {
+					final org.spc.ofp.observer.domain.ITrip sourceTrip = observerTripProcessor.process(id);
+					if (null == sourceTrip) { continue; }
+					writer.write(Long.valueOf(id.trim()), sourceTrip);
+				} catch (Exception ex) {
+					System.out.println(String.format("Skipping trip %s due to error {%s}", id, ex.getMessage()));
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		System.out.println(String.format("Wrote %d trips to %s", writer.size(), file));
+	}
+	
+	/**
+	 * doTransformSnapshot runs every trip in a snapshot file through TubsTripProcessor
+	 * without reading from the observer database or saving anything to TUBS.
+	 * TubsTripProcessor must be in lookup-only mode (main() sets it for this mode),
+	 * as otherwise it creates the observers, ports and vessels that are missing.
+	 * @param file
+	 */
+	public void doTransformSnapshot(final File file) throws IOException {
+		final TripSnapshotReader reader = new TripSnapshotReader(file);
+		int converted = 0;
+		int failed = 0;
+		final long start = System.currentTimeMillis();
+		try {
+			for (final Long tripId : reader.getTripIds()) {
+				try {
+					if (null != tubsTripProcessor.process(reader.read(tripId))) { converted++; }
+				} catch (Exception ex) {
+					failed++;
+					System.out.println(String.format("Trip %d failed to convert {%s}", tripId, ex.getMessage()));
+					ex.printStackTrace(System.err);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		System.out.println(String.format("Converted %d trips (%d failed) in %d ms",
+		    converted, failed, System.currentTimeMillis() - start));
+	}
+	
+	public void doCopy() throws InterruptedException {
+		existsFilterProcessor.setSourceName(SOURCE_NAME);
+		existsFilterProcessor.setReimportChanged(false);
+		importSelectedTrips();
+	}
+	
+	/**
+	 * doQueryBudgetCheck imports the first few trips of the driving query, one at
+	 * a time so the statement counts are exact, and checks them against the budget.
+	 * Point it at a scratch TUBS database:  trips that already exist are skipped
+	 * and so are not measured.
+	 * @param limit Maximum number of trips to import
+	 * @param budget
+	 * @return true if every trip stayed within budget
+	 */
+	public boolean doQueryBudgetCheck(final int limit, final QueryBudget budget) {
+		existsFilterProcessor.setSourceName(SOURCE_NAME);
+		existsFilterProcessor.setReimportChanged(false);
+		final List<Long> tripIds = findTripIds();
+		for (final Long tripId : tripIds.subList(0, Math.min(limit, tripIds.size()))) {
+			importTrip(Integer.toString(tripId.intValue()));
+		}
+		final List<String> violations = budget.check(resourceAccounting.getReport());
+		for (final String violation : violations) {
+			System.out.println("Over query budget: " + violation);
+		}
+		return violations.isEmpty();
+	}
+	
+	/**
+	 * doLoadTest saves generated trips in the observer database and imports them
+	 * through importTrips(), as a copy would, so --workers and --prepare-threads
+	 * apply.  It then reports the concurrency, throughput, peak heap and stage
+	 * latencies.  main() points the whole context at embedded
+	 * databases for this mode (see EmbeddedDatabases), and this refuses to run
+	 * against anything else.
+	 * @param trips Number of trips to generate
+	 * @param options Trip shape:  --days, --sets (per day), --samples and --catch (per set), --seed
+	 */
+	public void doLoadTest(final int trips, final ImporterOptions options) throws Exception {
+		embeddedFixtures.checkEmbedded();
+		embeddedFixtures.seedReferenceValues();
+		existsFilterProcessor.setSourceName(SOURCE_NAME);
+		existsFilterProcessor.setReimportChanged(false);
+		final SyntheticTripGenerator generator = SyntheticTripGenerator.fromOptions(options);
+		final List<String> ids = new ArrayList<String>(trips);
+		for (int i = 1; i <= trips; i++) {
+			ids.add(embeddedFixtures.persistSourceTrip(generator.generate(i)));
+		}
+		resourceAccounting.getReport().clear();
+		final LoadTestReport report = new LoadTestReport(workers, prepareThreads);
+		report.start();
+		importTrips(ids);
+		report.finish(resourceAccounting.getReport());
+		System.out.println(report);
+	}
+	
+	/**
+	 * doRollback removes the TUBS trips imported by one run, or from a range of
+	 * source trip IDs, and resets their ImportStatus (see RunRollback).  Without
+	 * confirm it only reports what it would remove.
+	 * @param rollbackRunId Run to roll back, or null to use the range
+	 * @param from First source trip ID
+	 * @param to Last source trip ID, defaults to from
+	 * @param batchSize Trips per transaction
+	 * @param confirm Actually delete
+	 */
+	public void doRollback(final String rollbackRunId, final String from, final String to,
+	    final int batchSize, final boolean confirm) throws IOException {
+		final List<Long> tripIds;
+		if (null != rollbackRunId) {
+			tripIds = runRollback.findByRun(SOURCE_NAME, rollbackRunId);
+			System.out.println(String.format("Run %s imported %d trips", rollbackRunId, tripIds.size()));
+		} else if (null != from) {
+			final long first = Long.parseLong(from.trim());
+			final long last = null == to ? first : Long.parseLong(to.trim());
+			tripIds = runRollback.findBySourceRange(SOURCE_NAME, first, last);
+			System.out.println(String.format("Source trips %d-%d were imported as %d trips", first, last, tripIds.size()));
+		} else {
+			throw new IllegalArgumentException("rollback needs --run=<run id> or --from=<source id> [--to=<source id>]");
+		}
+		if (!confirm) {
+			System.out.println("Nothing deleted, run again with --confirm to roll them back");
+			return;
+		}
+		final int removed = runRollback.rollback(SOURCE_NAME, tripIds, batchSize);
+		System.out.println(String.format("Rolled back %d trips", removed));
+	}
+	
+	/**
+	 * doSummarize writes the summary of every trip imported from the observer
+	 * source, replacing any it already has.  For trips imported before the
+	 * summaries were kept; each trip is read back from TUBS.
+	 */
+	public void doSummarize() {
+		final List<Long> tripIds = runRollback.findBySource(SOURCE_NAME);
+		int summarized = 0;
 		for (final Long tripId : tripIds) {
-			final String id = Integer.toString(tripId.intValue());
-			System.out.println("Processing tripId: " + id);
-			final ImportStatus status = new ImportStatus();
-			status.setSourceId(id);			
-			status.setSourceName(SOURCE_NAME);
-			status.setStatus("F"); // Assume import will fail
-			status.setAuditEntry(getAuditEntry());
 			try {
-				// Check to see if trip already exists
-				final String checkedId = existsFilterProcessor.process(id);
-				// existsFilterProcessor returns null to signal that this ID has already been copied
-				if (null == checkedId || "".equalsIgnoreCase(checkedId.trim())) { continue; }
-				System.out.println("...doesn't exist in target system...");
-				// Convert the ID to an Observer trip
-				final org.spc.ofp.observer.domain.ITrip sourceTrip = observerTripProcessor.process(checkedId);
-				// Convert the Observer trip to a TUBS trip
-				final org.spc.ofp.tubs.domain.purseseine.PurseSeineTrip targetTrip = (PurseSeineTrip)tubsTripProcessor.process(sourceTrip);
-				if (null == targetTrip) { continue; }
-				System.out.println("...can be converted to a TUBS object...");
-				// Write the trip using JPA
-				targetTripRepository.save(targetTrip);
-				System.out.println("...written to target DB with ID=" + targetTrip.getId());
-				status.setTripId(targetTrip.getId());
+				if (tripSummaryWriter.rebuild(tripId)) { summarized++; }
+			} catch (Exception ex) {
+				System.out.println(String.format("Unable to summarize TUBS trip %d {%s}", tripId, ex.getMessage()));
+			}
+		}
+		System.out.println(String.format("Summarized %d of %d trips", summarized, tripIds.size()));
+	}
+	
+	/**
+	 * doRemap applies corrections to the DataCleaner purse seine lookups to every
+	 * trip already imported from the observer source (see CodeRemapper).  The
+	 * changes are checked, and without confirm nothing else is done.
+	 * @param changeFile One change per line:  lookup, source code, old ID, new ID
+	 * @param batchSize Trips per transaction
+	 * @param confirm
+	 */
+	public void doRemap(final String changeFile, final int batchSize, final boolean confirm) throws IOException {
+		if (null == changeFile) {
+			throw new IllegalArgumentException("remap needs --changes=<file>");
+		}
+		final List<CodeRemapper.Change> changes = CodeRemapper.parse(FileUtils.readLines(new File(changeFile), "UTF-8"));
+		CodeRemapper.plan(changes);
+		for (final CodeRemapper.Change change : changes) {
+			System.out.println("  " + change);
+		}
+		final List<Long> tripIds = runRollback.findBySource(SOURCE_NAME);
+		System.out.println(String.format("%d changes can be applied to %d imported trips", changes.size(), tripIds.size()));
+		if (!confirm) {
+			System.out.println("Nothing updated, run again with --confirm to apply them");
+			return;
+		}
+		final long updated = codeRemapper.remap(runId, tripIds, changes, batchSize);
+		System.out.println(String.format("Updated %d rows, logged as run %s", updated, runId));
+	}
+	
+	/**
+	 * doEstimate projects the run time and peak heap of a full copy from a
+	 * stratified sample of the driving query's trips (see RunEstimate).  Sampled
+	 * trips are loaded, transformed and validated; with write set they're also
+	 * saved in a transaction that is rolled back.  TubsTripProcessor must be in
+	 * lookup-only mode (main() sets it for this mode), so that TRANSFORM doesn't
+	 * create missing observers, ports and vessels;  then nothing is kept in TUBS
+	 * and no ImportStatus is written.  The exists check is skipped, so the
+	 * projection is for a run that imports every trip.
+	 * @param sampleSize Trips to run
+	 * @param strata Size strata to sample from
+	 * @param concurrency Workers to project for
+	 * @param write Also time SAVE
+	 * @param seed For the random sample
+	 */
+	public void doEstimate(final int sampleSize, final int strata, final int concurrency,
+	    final boolean write, final long seed) {
+		final List<Long> tripIds = findTripIds();
+		final RunEstimate estimate = RunEstimate.sample(
+		    tripIds, tripSizeEstimator.estimate(tripIds), sampleSize, strata, concurrency, new Random(seed));
+		resourceAccounting.getReport().clear();
+		estimate.start();
+		for (final Long tripId : estimate.getSample()) {
+			estimateTrip(Integer.toString(tripId.intValue()), write);
+		}
+		estimate.finish(resourceAccounting.getReport());
+		System.out.println(estimate);
+	}
+	
+	private void estimateTrip(final String id, final boolean write) {
+		final ResourceAccounting.TripMeter meter = resourceAccounting.start(id);
+		String status = "F";
+		try {
+			meter.stage(ImportStage.LOAD);
+			final org.spc.ofp.observer.domain.ITrip sourceTrip = observerTripProcessor.process(id);
+			SourceTripHasher.hash(sourceTrip);
+			meter.stage(ImportStage.TRANSFORM);
+			final PurseSeineTrip targetTrip = (PurseSeineTrip)tubsTripProcessor.process(sourceTrip);
+			if (null == targetTrip) { return; }
+			// Bulk length samples are counted, but never written here
+			meter.entities(EntityCounts.of(targetTrip).total() + sizeOf(takeLengthSamples()));
+			meter.stage(ImportStage.VALIDATE);
+			tripValidator.validate(targetTrip);
+			if (write) {
+				meter.stage(ImportStage.SAVE);
+				dryRunWriter.writeAndRollBack(targetTrip);
+			}
+			status = "S";
+		} catch (Exception ex) {
+			System.out.println(String.format("Sample trip %s failed {%s}", id, ex.getMessage()));
+		} finally {
+			meter.finish(status);
+		}
+	}
+	
+	/**
+	 * doReimport re-imports trips that have changed in the source since they were
+	 * last imported, replacing the existing TUBS trip.  Trips that were never
+	 * imported (or failed) are imported as usual.
+	 */
+	public void doReimport() throws InterruptedException {
+		existsFilterProcessor.setSourceName(SOURCE_NAME);
+		existsFilterProcessor.setReimportChanged(true);
+		importSelectedTrips();
+	}
+	
+	/**
+	 * Imports the trips in the trip ID file if there is one, otherwise every trip
+	 * the driving query finds.
+	 */
+	private void importSelectedTrips() throws InterruptedException {
+		if (null == tripIdFile) {
+			importTrips(asSourceIds(findTripIds()));
+			return;
+		}
+		System.out.println("Reading trip IDs from " + tripIdFile);
+		// Biggest first needs every ID up front, so file order it is
+		importTrips(tripIdFile.iterator());
+	}
+	
+	/**
+	 * doDistributedCopy shares the driving query with any other instance running
+	 * against the same TUBS database.  Trips are claimed a few at a time from the
+	 * import_lease table and the claims are renewed while we work on them.  Leases
+	 * left behind by a crashed instance expire and are picked up by the survivors.
+	 * A trip whose lease has run out maxAttempts times is abandoned rather than
+	 * claimed again, and listed at the end.  Each batch is imported with
+	 * importTrips, so --workers and --prepare-threads apply within it.
+	 * @param batchSize Number of trips to claim at once (--batch)
+	 * @param leaseMillis How long a claim lasts without being renewed (--lease-seconds)
+	 * @param maxAttempts Number of times a trip is claimed before it is abandoned (--max-attempts)
+	 */
+	public void doDistributedCopy(final int batchSize, final long leaseMillis, final int maxAttempts) throws InterruptedException {
+		existsFilterProcessor.setSourceName(SOURCE_NAME);
+		existsFilterProcessor.setReimportChanged(false);
+		tripLeaseRepository.seed(SOURCE_NAME, findTripIds());
+		
+		final LeaseHeartbeat heartbeat = new LeaseHeartbeat(tripLeaseRepository, SOURCE_NAME, leaseMillis);
+		System.out.println("Importing as lease owner " + heartbeat.getOwner());
+		heartbeat.start();
+		try {
+			while (true) {
+				final List<String> claimed = tripLeaseRepository.claim(SOURCE_NAME, heartbeat.getOwner(), batchSize, leaseMillis, maxAttempts);
+				if (claimed.isEmpty()) {
+					// Nothing free right now, but others may still die and leave leases behind
+					if (0 == tripLeaseRepository.countRemaining(SOURCE_NAME)) { break; }
+					Thread.sleep(Math.min(IDLE_WAIT_MILLIS, leaseMillis));
+					continue;
+				}
+				heartbeat.hold(claimed);
+				importTrips(claimed);
+				for (final String id : claimed) {
+					heartbeat.complete(id);
+				}
+			}
+		} finally {
+			heartbeat.stop();
+		}
+		final List<String> abandoned = tripLeaseRepository.findAbandoned(SOURCE_NAME);
+		if (!abandoned.isEmpty()) {
+			System.out.println(String.format("Abandoned after %d attempts: %s", maxAttempts, abandoned));
+		}
+	}
+	
+	/**
+	 * importTrips imports trips in the order given.  With prepare threads, up to
+	 * twice that many trips are checked, loaded, converted and validated ahead
+	 * while the current one is saved;  saves stay on this thread, in order.
+	 * @param ids
+	 */
+	protected void importTrips(final List<String> ids) throws InterruptedException {
+		importTrips(workers > 0 ? tripSizeEstimator.largestFirst(ids).iterator() : ids.iterator());
+	}
+	
+	/**
+	 * As above, but pulls IDs from it only as the workers or the prepare window
+	 * have room for them, so the whole list is never held at once.
+	 * @param it
+	 */
+	protected void importTrips(final Iterator<String> it) throws InterruptedException {
+		if (workers > 0) {
+			importTripsOnWorkers(it);
+			return;
+		}
+		if (prepareThreads <= 0) {
+			while (it.hasNext()) {
+				importTrip(it.next());
+			}
+			return;
+		}
+		final ExecutorService pool = Executors.newFixedThreadPool(prepareThreads,
+		    new ThreadFactoryBuilder().setNameFormat("trip-prepare-%d").setDaemon(true).build());
+		try {
+			final Queue<Future<PreparedTrip>> window = new LinkedList<Future<PreparedTrip>>();
+			while (it.hasNext() || !window.isEmpty()) {
+				while (it.hasNext() && window.size() < 2 * prepareThreads) {
+					final String id = it.next();
+					window.add(pool.submit(new Callable<PreparedTrip>() {
+						public PreparedTrip call() {
+							return prepareTrip(id);
+						}
+					}));
+				}
+				try {
+					saveTrip(window.remove().get());
+				} catch (ExecutionException ex) {
+					// prepareTrip catches everything, so this is an Error
+					throw Throwables.propagate(ex.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Imports each trip start to finish on one of the workers, in the order given.
+	 * No more than twice as many trips as there are workers are queued at once;
+	 * the next one goes in as soon as any trip finishes.
+	 * @param it
+	 */
+	private void importTripsOnWorkers(final Iterator<String> it) throws InterruptedException {
+		final ExecutorService pool = Executors.newFixedThreadPool(workers,
+		    new ThreadFactoryBuilder().setNameFormat("trip-worker-%d").setDaemon(true).build());
+		try {
+			final CompletionService<Object> done = new ExecutorCompletionService<Object>(pool);
+			int queued = 0;
+			while (it.hasNext() || queued > 0) {
+				while (it.hasNext() && queued < 2 * workers) {
+					final String id = it.next();
+					done.submit(new Runnable() {
+						public void run() {
+							importTrip(id);
+						}
+					}, null);
+					queued++;
+				}
+				try {
+					done.take().get();
+				} catch (ExecutionException ex) {
+					throw Throwables.propagate(ex.getCause());
+				}
+				queued--;
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	protected void importTrip(final String id) {
+		saveTrip(prepareTrip(id));
+	}
+	
+	/**
+	 * A trip that has been through every stage but SAVE.  Either targetTrip is
+	 * set, or status holds the reason the trip failed.
+	 */
+	private static class PreparedTrip {
+		final ImportStatus status;
+		final ResourceAccounting.TripMeter meter;
+		Long previousTripId;
+		String contentHash;
+		String gearType;
+		TripSummary summary;
+		TripOverlapIndex.Entry overlapEntry;
+		long entities;
+		PurseSeineTrip targetTrip;
+		LengthSampleBuffer lengthSamples;
+		
+		PreparedTrip(final ImportStatus status, final ResourceAccounting.TripMeter meter) {
+			this.status = status;
+			this.meter = meter;
+		}
+	}
+	
+	/**
+	 * @param id
+	 * @return null if the trip should be skipped
+	 */
+	private PreparedTrip prepareTrip(final String id) {
+		System.out.println("Processing tripId: " + id);
+		final ImportStatus status = new ImportStatus();
+		status.setSourceId(id);			
+		status.setSourceName(SOURCE_NAME);
+		status.setStatus("F"); // Assume import will fail
+		status.setAuditEntry(getAuditEntry());
+		final PreparedTrip prepared = new PreparedTrip(status, resourceAccounting.start(id));
+		final ResourceAccounting.TripMeter meter = prepared.meter;
+		final TripWatchdog.Watch watch = tripWatchdog.start(id);
+		try {
+			// Check to see if trip already exists
+			meter.stage(ImportStage.EXISTS_CHECK);
+			watch.stage(ImportStage.EXISTS_CHECK);
+			final String checkedId = existsFilterProcessor.process(id);
+			// existsFilterProcessor returns null to signal that this ID has already been copied
+			if (null == checkedId || "".equalsIgnoreCase(checkedId.trim())) { return null; }
+			System.out.println("...doesn't exist in target system (or has changed)...");
+			// A changed trip may have been loaded and hashed by the exists check already
+			final ExistsFilterProcessor.ChangedTrip changed = existsFilterProcessor.takeChangedTrip();
+			prepared.previousTripId = null == changed ? null : changed.getTripId();
+			// Convert the ID to an Observer trip
+			meter.stage(ImportStage.LOAD);
+			watch.stage(ImportStage.LOAD);
+			final org.spc.ofp.observer.domain.ITrip sourceTrip;
+			if (null != changed && null != changed.getSourceTrip()) {
+				sourceTrip = changed.getSourceTrip();
+				prepared.contentHash = changed.getContentHash();
+			} else {
+				sourceTrip = observerTripProcessor.process(checkedId);
+				prepared.contentHash = SourceTripHasher.hash(sourceTrip);
+			}
+			prepared.gearType = null == sourceTrip ? null : sourceTrip.getGearType();
+			// Convert the Observer trip to a TUBS trip
+			meter.stage(ImportStage.TRANSFORM);
+			watch.stage(ImportStage.TRANSFORM);
+			final org.spc.ofp.tubs.domain.purseseine.PurseSeineTrip targetTrip = (PurseSeineTrip)tubsTripProcessor.process(sourceTrip);
+			if (null == targetTrip) { return null; }
+			System.out.println("...can be converted to a TUBS object...");
+			prepared.lengthSamples = takeLengthSamples();
+			prepared.entities = EntityCounts.of(targetTrip).total() + sizeOf(prepared.lengthSamples);
+			if (tripSummaries) {
+				// While the graph is still in memory
+				prepared.summary = TripSummary.of(targetTrip);
+			}
+			meter.entities(prepared.entities);
+			// Reject bad values now rather than as a failed (and rolled back) save
+			meter.stage(ImportStage.VALIDATE);
+			watch.stage(ImportStage.VALIDATE);
+			final ImporterEvents.Span span = ImporterEvents.begin(ImportStage.VALIDATE, id)
+			    .gearType(prepared.gearType)
+			    .entities(prepared.entities);
+			final List<TripValidator.Violation> violations;
+			try {
+				violations = tripValidator.validate(targetTrip);
+			} finally {
+				span.end();
+			}
+			if (violations.isEmpty()) {
+				if (checkOverlaps(prepared, targetTrip)) {
+					prepared.targetTrip = targetTrip;
+				}
+			} else {
+				status.setComments(String.format(
+				    "Error summary: {%d validation errors}\nViolations:\n%s",
+				    violations.size(),
+				    Joiner.on('\n').join(violations)));
+				System.out.println(String.format(
+				    "Skipping trip %s due to %d validation errors, first is {%s}",
+				    id, violations.size(), violations.get(0)));
+			}
+		} catch (Exception ex) {
+			recordFailure(status, watch, ex);
+		} finally {
+			watch.close();
+			meter.handOff();
+		}
+		return prepared;
+	}
+	
+	private void saveTrip(final PreparedTrip prepared) {
+		if (null == prepared) { return; }
+		final ImportStatus status = prepared.status;
+		final ResourceAccounting.TripMeter meter = prepared.meter;
+		final PurseSeineTrip targetTrip = prepared.targetTrip;
+		if (null != targetTrip) {
+			final TripWatchdog.Watch watch = tripWatchdog.start(status.getSourceId());
+			final ImporterEvents.Span span = ImporterEvents.begin(ImportStage.SAVE, status.getSourceId())
+			    .gearType(prepared.gearType)
+			    .entities(prepared.entities);
+			try {
+				meter.stage(ImportStage.SAVE);
+				watch.stage(ImportStage.SAVE);
+				final Long previousTripId = prepared.previousTripId;
+				final TripMerger.Changes changes = (upsert && null != previousTripId && null == prepared.lengthSamples) ?
+				    tripMerger.merge(previousTripId, targetTrip, prepared.summary) :
+				    null;
+				if (null != changes) {
+					System.out.println(String.format("...merged into TUBS trip ID=%d (%s)", previousTripId, changes));
+					status.setTripId(previousTripId);
+				} else {
+					// Write the trip using JPA, with its samples and dropping the old copy in the same transaction
+					tripWriter.save(targetTrip, prepared.summary, prepared.lengthSamples, previousTripId);
+					System.out.println("...written to target DB with ID=" + targetTrip.getId());
+					if (null != previousTripId && !previousTripId.equals(targetTrip.getId())) {
+						System.out.println("...replaced previous TUBS trip with ID=" + previousTripId);
+					}
+					status.setTripId(targetTrip.getId());
+				}
+				watch.close();
 				status.setStatus("S");
+				if (null != prepared.overlapEntry) {
+					tripOverlapIndex.confirm(prepared.overlapEntry, status.getTripId(), previousTripId);
+				}
+				ImportStatusNotes.put(status, ImportStatusNotes.CONTENT_HASH, prepared.contentHash);
+				ImportStatusNotes.put(status, ImportStatusNotes.RUN_ID, runId);
 			} catch (Exception ex) {
-				status.setComments(
-				    String.format(
-				        "Error summary: {%s}\nFull stack trace:\n%s",
-				        ex.getMessage(),
-				        Throwables.getStackTraceAsString(ex)
-				    )
-				);
-				
-				System.out.println(
-				    String.format(
-				        "Skipping trip %s due to error {%s}",
-				        id,
-				        ex.getMessage()
-				    )
-				);
-				ex.printStackTrace(System.err);
+				// Clears the watchdog's interrupt, if any, before cleaning up
+				watch.close();
+				recordFailure(status, watch, ex);
+				if (null != prepared.overlapEntry) {
+					tripOverlapIndex.release(prepared.overlapEntry);
+				}
+			} finally {
+				span.end();
 			}
-			commonRepo.saveImportStatus(status);
 		}
+		final TripMetrics metrics = meter.finish(status.getStatus());
+		if (metricsInStatus) {
+			ImportStatusNotes.put(status, ImportStatusNotes.RESOURCES, metrics.summary());
+		}
+		commonRepo.saveImportStatus(status);
+	}
+	
+	/**
+	 * Checks a trip that is ready to save for overlaps, noting any in its status.
+	 * @return false if the trip overlaps another and is to be skipped
+	 */
+	private boolean checkOverlaps(final PreparedTrip prepared, final PurseSeineTrip targetTrip) {
+		if (null == overlapAction) { return true; }
+		final ImportStatus status = prepared.status;
+		final TripOverlapIndex.Claim claim =
+		    tripOverlapIndex.claim(status.getSourceId(), targetTrip, prepared.previousTripId, overlapAction);
+		prepared.overlapEntry = claim.getEntry();
+		if (claim.getOverlaps().isEmpty()) { return true; }
+		final String overlaps = Joiner.on(", ").join(claim.getOverlaps());
+		ImportStatusNotes.put(status, ImportStatusNotes.OVERLAPS, overlaps);
+		if (null == claim.getEntry()) {
+			System.out.println(String.format("Skipping trip %s, it overlaps %s", status.getSourceId(), overlaps));
+			return false;
+		}
+		System.out.println(String.format("...overlaps %s", overlaps));
+		return true;
+	}
+	
+	private LengthSampleBuffer takeLengthSamples() {
+		return tubsTripProcessor instanceof TubsTripProcessor ?
+		    ((TubsTripProcessor)tubsTripProcessor).takeLengthSamples() :
+		    null;
+	}
+	
+	private static int sizeOf(final LengthSampleBuffer samples) {
+		return null == samples ? 0 : samples.size();
+	}
+	
+	/**
+	 * Records ex, or a timeout ('T') if the watchdog fired, as ex is then most
+	 * likely a cancelled statement or an interrupt.
+	 */
+	private static void recordFailure(final ImportStatus status, final TripWatchdog.Watch watch, final Exception ex) {
+		final ImportStage overrun = watch.getOverrun();
+		if (null == overrun) {
+			recordFailure(status, ex);
+			return;
+		}
+		status.setStatus("T");
+		status.setComments(
+		    String.format(
+		        "Error summary: {Timed out in %s after %d ms}\nFull stack trace:\n%s",
+		        overrun,
+		        watch.getBudget(overrun),
+		        Throwables.getStackTraceAsString(ex)
+		    )
+		);
+		ImportStatusNotes.put(status, ImportStatusNotes.TIMED_OUT, overrun.name());
+		System.out.println(
+		    String.format(
+		        "Skipping trip %s, %s ran over its %d ms budget",
+		        status.getSourceId(),
+		        overrun,
+		        watch.getBudget(overrun)
+		    )
+		);
+	}
+	
+	private static void recordFailure(final ImportStatus status, final Exception ex) {
+		status.setComments(
+		    String.format(
+		        "Error summary: {%s}\nFull stack trace:\n%s",
+		        ex.getMessage(),
+		        Throwables.getStackTraceAsString(ex)
+		    )
+		);
+		
+		System.out.println(
+		    String.format(
+		        "Skipping trip %s due to error {%s}",
+		        status.getSourceId(),
+		        ex.getMessage()
+		    )
+		);
+		ex.printStackTrace(System.err);
 	}
 
 }
@@ -43,4 +43,109 @@ public class CopyFromObserverConfig {
 	public ItemProcessor<org.spc.ofp.observer.domain.ITrip, org.spc.ofp.tubs.domain.Trip> tubsTripProcessor() {
 		return new TubsTripProcessor(); 
 	}
+	
+	@Bean(name = "ObserverReferenceCache")
+	public ObserverReferenceCache observerReferenceCache() {
+		return new ObserverReferenceCache();
+	}
+	
+	@Bean(name = "ReferenceLookup")
+	public ReferenceLookup referenceLookup() {
+		return new ReferenceLookup();
+	}
+	
+	@Bean(name = "TripValidator")
+	public TripValidator tripValidator() {
+		return new TripValidator();
+	}
+	
+	@Bean(name = "TripSizeEstimator")
+	public TripSizeEstimator tripSizeEstimator() {
+		return new TripSizeEstimator();
+	}
+	
+	@Bean(name = "TripMerger")
+	public TripMerger tripMerger() {
+		return new TripMerger();
+	}
+	
+	@Bean(name = "EezIndex")
+	public EezIndex eezIndex() {
+		return new EezIndex();
+	}
+	
+	@Bean(name = "RunRollback")
+	public RunRollback runRollback() {
+		return new RunRollback();
+	}
+	
+	@Bean(name = "DryRunWriter")
+	public DryRunWriter dryRunWriter() {
+		return new DryRunWriter();
+	}
+	
+	@Bean(name = "TripWatchdog")
+	public TripWatchdog tripWatchdog() {
+		return new TripWatchdog();
+	}
+	
+	@Bean(name = "LengthSampleWriter")
+	public LengthSampleWriter lengthSampleWriter() {
+		return new LengthSampleWriter();
+	}
+	
+	@Bean(name = "ResourceAccounting")
+	public ResourceAccounting resourceAccounting() {
+		return new ResourceAccounting();
+	}
+	
+	@Bean(name = "TripReconciler")
+	public TripReconciler tripReconciler() {
+		return new TripReconciler();
+	}
+	
+	@Bean(name = "TripRemover")
+	public TripRemover tripRemover() {
+		return new TripRemover();
+	}
+	
+	@Bean(name = "ImportStatusFinder")
+	public ImportStatusFinder importStatusFinder() {
+		return new ImportStatusFinder();
+	}
+	
+	@Bean(name = "TripLeaseRepository")
+	public TripLeaseRepository tripLeaseRepository() {
+		return new TripLeaseRepository();
+	}
+	
+	@Bean(name = "CodeRemapper")
+	public CodeRemapper codeRemapper() {
+		return new CodeRemapper();
+	}
+	
+	@Bean(name = "TripSummaryWriter")
+	public TripSummaryWriter tripSummaryWriter() {
+		return new TripSummaryWriter();
+	}
+	
+	@Bean(name = "TripOverlapIndex")
+	public TripOverlapIndex tripOverlapIndex() {
+		return new TripOverlapIndex();
+	}
+	
+	@Bean(name = "TripWriter")
+	public TripWriter tripWriter() {
+		return new TripWriter();
+	}
+	
+	@Bean(name = "TubsMappings")
+	public TubsMappings tubsMappings() {
+		return new TubsMappings();
+	}
+	
+	@Bean(name = "EmbeddedFixtures")
+	public EmbeddedFixtures embeddedFixtures() {
+		return new EmbeddedFixtures();
+	}
 }
@@ -18,6 +18,9 @@
  */
 package org.spc.ofp.tubs.importer;
 
+import java.util.Set;
+import java.util.TreeSet;
+
 /**
  * DataCleaner holds data cleanliness and lookup utilities that are
  * too much of a hassle to do via database lookups.
@@ -30,6 +33,32 @@ package org.spc.ofp.tubs.importer;
  */
 public class DataCleaner {
 
+	// Larger than any FoxPro code the lookups below recognize
+	static final int MAX_SOURCE_CODE = 100;
+	private static final String[] SAMPLING_PROTOCOLS = { null, "N", "S" };
+
+	/**
+	 * Enumerates every ReferenceId primary key that the purse seine lookups
+	 * (activity, detection, association and sampling protocol) can produce.
+	 * @return
+	 */
+	public static Set<Integer> getReferenceIds() {
+		final Set<Integer> ids = new TreeSet<Integer>();
+		for (int code = 0; code <= MAX_SOURCE_CODE; code++) {
+			addIfPresent(ids, getPurseSeineActivity(code));
+			addIfPresent(ids, getPurseSeineDetection(code));
+			addIfPresent(ids, getPurseSeineAssociation(code));
+		}
+		for (final String code : SAMPLING_PROTOCOLS) {
+			ids.add((int)getSamplingProtocol(code));
+		}
+		return ids;
+	}
+
+	private static void addIfPresent(final Set<Integer> ids, final Integer id) {
+		if (null != id) { ids.add(id); }
+	}
+
 	public static Integer getGen6Activity(final Integer value) {
 		if (null == value) { return null; }
 		switch(value.intValue()) {
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceUnit;
+
+import org.spc.ofp.tubs.domain.Trip;
+import org.spc.ofp.tubs.domain.common.Port;
+import org.spc.ofp.tubs.domain.common.Vessel;
+
+/**
+ * DryRunWriter writes a TUBS trip graph and then rolls it back, to time the
+ * SAVE stage without leaving anything behind.  The inserts do reach the
+ * server, so identity values are used up and locks are held until the
+ * rollback.
+ *
+ * Trips converted in lookup-only mode can refer to observers, ports and
+ * vessels that aren't in TUBS yet;  those are written (and rolled back) too.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class DryRunWriter {
+
+	@PersistenceUnit(unitName = "tubs")
+	protected EntityManagerFactory tubsEmf;
+
+	public void writeAndRollBack(final Trip trip) {
+		final EntityManager em = tubsEmf.createEntityManager();
+		final EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			if (null != trip.getObserver() && null == trip.getObserver().getId()) {
+				em.persist(trip.getObserver());
+			}
+			persistIfMissing(em, trip.getDeparturePort());
+			persistIfMissing(em, trip.getReturnPort());
+			if (null != trip.getVessel() && null == em.find(Vessel.class, trip.getVessel().getId())) {
+				em.persist(trip.getVessel());
+			}
+			em.persist(trip);
+			em.flush();
+		} finally {
+			if (tx.isActive()) { tx.rollback(); }
+			em.close();
+		}
+	}
+
+	// Departure and return are often the same new port
+	private static void persistIfMissing(final EntityManager em, final Port port) {
+		if (null == port || em.contains(port)) { return; }
+		if (null == em.find(Port.class, port.getId())) {
+			em.persist(port);
+		}
+	}
+}
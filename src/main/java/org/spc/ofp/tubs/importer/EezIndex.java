@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * EezIndex finds the EEZ a position falls in, for source records that have a
+ * position but no EEZ code.
+ *
+ * The EEZ polygons come from a text file with one zone per line:  the EEZ code,
+ * a comma, then the polygon as WKT in decimal degrees (longitude first).  Blank
+ * lines and lines starting with # are skipped.  A shapefile can be converted with
+ * something like
+ *   ogr2ogr -f CSV -lco GEOMETRY=AS_WKT eez.csv eez.shp
+ * and a little reordering of the columns.
+ *
+ * Polygons are kept in an STR-tree, so a lookup only tests the handful of
+ * zones whose bounding box holds the point.  Results are cached by position
+ * (to about 10m), since a trip reports the same few positions over and over.
+ * Until load() is called every lookup returns null.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class EezIndex {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(EezIndex.class);
+
+	private static final int CACHE_SIZE = 100000;
+	private static final double GRID = 1.0e4; // 1/10000 of a degree
+	private static final String NONE = "";
+
+	// Optional sign, degrees (and maybe minutes, packed as DDMM.mmm), optional hemisphere
+	private static final Pattern POSITION = Pattern.compile("^([-+]?)(\\d+)(\\.\\d*)?\\s*([NSEWnsew]?)$");
+
+	private final GeometryFactory geometryFactory = new GeometryFactory();
+	private volatile STRtree tree;
+	private final Cache<Long, String> cache = CacheBuilder.newBuilder()
+	    .maximumSize(CACHE_SIZE)
+	    .build(new CacheLoader<Long, String>() {
+	    	@Override
+	    	public String load(final Long key) {
+	    		return search(key);
+	    	}
+	    });
+
+	private static class Zone {
+		final String code;
+		final PreparedGeometry geometry;
+
+		Zone(final String code, final PreparedGeometry geometry) {
+			this.code = code;
+			this.geometry = geometry;
+		}
+	}
+
+	/**
+	 * Replaces the index with the zones in file.
+	 * @param file
+	 * @return The number of zones loaded
+	 */
+	public int load(final File file) throws IOException {
+		final WKTReader reader = new WKTReader(geometryFactory);
+		final STRtree index = new STRtree();
+		int count = 0;
+		int lineNumber = 0;
+		for (final String line : FileUtils.readLines(file, "UTF-8")) {
+			lineNumber++;
+			final String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("#")) { continue; }
+			final int comma = trimmed.indexOf(',');
+			if (comma < 1) {
+				throw new IOException(String.format("%s line %d: expected <code>,<WKT>", file, lineNumber));
+			}
+			final String code = unquote(trimmed.substring(0, comma));
+			final Geometry geometry;
+			try {
+				geometry = reader.read(unquote(trimmed.substring(comma + 1)));
+			} catch (ParseException ex) {
+				throw new IOException(String.format("%s line %d: %s", file, lineNumber, ex.getMessage()));
+			}
+			index.insert(geometry.getEnvelopeInternal(), new Zone(code, PreparedGeometryFactory.prepare(geometry)));
+			count++;
+		}
+		index.build();
+		tree = index;
+		cache.invalidateAll();
+		LOGGER.info(String.format("Loaded %d EEZ polygons from %s", count, file));
+		return count;
+	}
+
+	private static String unquote(final String value) {
+		final String trimmed = value.trim();
+		return trimmed.length() > 1 && trimmed.startsWith("\"") && trimmed.endsWith("\"") ?
+		    trimmed.substring(1, trimmed.length() - 1).trim() :
+		    trimmed;
+	}
+
+	public boolean isLoaded() {
+		return null != tree;
+	}
+
+	/**
+	 * @param latitude Decimal degrees, south is negative
+	 * @param longitude Decimal degrees, west is negative
+	 * @return The EEZ code, or null if the position is on the high seas (or nothing is loaded)
+	 */
+	public String find(final Number latitude, final Number longitude) {
+		if (null == tree || null == latitude || null == longitude) { return null; }
+		final double lat = latitude.doubleValue();
+		final double lon = longitude.doubleValue();
+		if (Double.isNaN(lat) || Double.isNaN(lon) || Math.abs(lat) > 90.0 || Math.abs(lon) > 360.0) { return null; }
+		final double normalized = lon > 180.0 ? lon - 360.0 : lon;
+		final String code = cache.getUnchecked(key(lat, normalized));
+		return NONE.equals(code) ? null : code;
+	}
+
+	/**
+	 * @param latitude As written by observers, e.g. "0512.345S" or "-5.2058"
+	 * @param longitude As written by observers, e.g. "16530.000E" or "165.5"
+	 * @return The EEZ code, or null if a position is missing, unreadable or on the high seas
+	 */
+	public String find(final String latitude, final String longitude) {
+		if (null == tree) { return null; }
+		return find(parse(latitude, 4, 'S'), parse(longitude, 5, 'W'));
+	}
+
+	/**
+	 * Reads decimal degrees, or degrees and decimal minutes packed as DDMM.mmm
+	 * (DDDMM.mmm for longitude) when followed by a hemisphere letter.
+	 * @param value
+	 * @param packedDigits Integer digits that mark the packed form
+	 * @param negative The hemisphere letter that makes the value negative
+	 * @return Decimal degrees, or null if value can't be read
+	 */
+	static Double parse(final String value, final int packedDigits, final char negative) {
+		if (Strings.isNullOrEmpty(value)) { return null; }
+		final Matcher m = POSITION.matcher(value.trim());
+		if (!m.matches()) { return null; }
+		final String whole = m.group(2);
+		final String hemisphere = m.group(4);
+		double degrees = Double.parseDouble(whole + Strings.nullToEmpty(m.group(3)));
+		if (!hemisphere.isEmpty() && whole.length() >= packedDigits) {
+			final double wholeDegrees = Math.floor(degrees / 100.0);
+			degrees = wholeDegrees + (degrees - wholeDegrees * 100.0) / 60.0;
+		}
+		if ("-".equals(m.group(1)) || hemisphere.equalsIgnoreCase(String.valueOf(negative))) {
+			degrees = -degrees;
+		}
+		return degrees;
+	}
+
+	private static long key(final double lat, final double lon) {
+		final long y = Math.round(lat * GRID) + Math.round(90.0 * GRID);
+		final long x = Math.round(lon * GRID) + Math.round(180.0 * GRID);
+		return y * Math.round(361.0 * GRID) + x;
+	}
+
+	private String search(final long key) {
+		final long width = Math.round(361.0 * GRID);
+		final double lat = (key / width) / GRID - 90.0;
+		final double lon = (key % width) / GRID - 180.0;
+		String code = search(lat, lon);
+		// Some EEZ data sets run 0..360 so that zones don't split at the date line
+		if (null == code && lon < 0.0) { code = search(lat, lon + 360.0); }
+		return null == code ? NONE : code;
+	}
+
+	private String search(final double lat, final double lon) {
+		final Point point = geometryFactory.createPoint(new Coordinate(lon, lat));
+		@SuppressWarnings("unchecked")
+		final List<Zone> candidates = tree.query(point.getEnvelopeInternal());
+		for (final Zone zone : candidates) {
+			// PreparedGeometry builds its indexes lazily, which isn't thread safe
+			synchronized (zone) {
+				if (zone.geometry.covers(point)) { return zone.code; }
+			}
+		}
+		return null;
+	}
+}
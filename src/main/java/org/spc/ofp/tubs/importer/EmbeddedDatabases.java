@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.orm.jpa.AbstractEntityManagerFactoryBean;
+
+/**
+ * EmbeddedDatabases points the whole context at in-memory H2 databases, one
+ * per DataSource, in SQL Server mode.  Every DataSource in the context is
+ * replaced as it is created, and every persistence unit gets the H2 dialect,
+ * its tables created from the mappings, and Hibernate statistics turned on.
+ * The tests and the load-test mode run against it, so neither can touch a
+ * real database.
+ *
+ * Add it to the context before refresh() with addBeanFactoryPostProcessor(),
+ * ahead of StatementTracker if both are used.  Hibernate doesn't create
+ * schemas, so the ones the mappings use are created when each database is
+ * first opened.  The importer's own tables (see sql/) aren't mapped and so
+ * don't exist;  the features that need them find that out and stay off.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class EmbeddedDatabases implements BeanFactoryPostProcessor, BeanPostProcessor {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedDatabases.class);
+
+	private static final String URL_PREFIX = "jdbc:h2:mem:";
+
+	// dbo for the observer database, obsv and ps for TUBS
+	private static final String[] SCHEMAS = { "dbo", "obsv", "ps" };
+
+	public void postProcessBeanFactory(final ConfigurableListableBeanFactory beanFactory) throws BeansException {
+		beanFactory.addBeanPostProcessor(this);
+	}
+
+	public Object postProcessBeforeInitialization(final Object bean, final String beanName) throws BeansException {
+		if (bean instanceof AbstractEntityManagerFactoryBean) {
+			final Map<String, Object> properties = ((AbstractEntityManagerFactoryBean)bean).getJpaPropertyMap();
+			properties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+			properties.put("hibernate.hbm2ddl.auto", "create");
+			properties.put("hibernate.generate_statistics", "true");
+		}
+		return bean;
+	}
+
+	public Object postProcessAfterInitialization(final Object bean, final String beanName) throws BeansException {
+		if (bean instanceof DataSource) {
+			final String url = url(beanName);
+			LOGGER.debug(String.format("DataSource %s replaced by %s", beanName, url));
+			final DriverManagerDataSource embedded = new DriverManagerDataSource(url, "sa", "");
+			embedded.setDriverClassName("org.h2.Driver");
+			return embedded;
+		}
+		return bean;
+	}
+
+	static String url(final String beanName) {
+		final StringBuilder url = new StringBuilder(URL_PREFIX)
+		    .append(beanName.replaceAll("[^A-Za-z0-9]", "_"))
+		    .append(";MODE=MSSQLServer;DB_CLOSE_DELAY=-1;INIT=");
+		for (int i = 0; i < SCHEMAS.length; i++) {
+			if (i > 0) { url.append("\\;"); }
+			url.append("CREATE SCHEMA IF NOT EXISTS ").append(SCHEMAS[i]);
+		}
+		return url.toString();
+	}
+
+	/**
+	 * @param dataSource
+	 * @return true if dataSource is one of ours (or any other in-memory H2 database)
+	 */
+	public static boolean isEmbedded(final DataSource dataSource) {
+		try {
+			final Connection con = dataSource.getConnection();
+			try {
+				return isEmbedded(con.getMetaData().getURL());
+			} finally {
+				con.close();
+			}
+		} catch (SQLException ex) {
+			LOGGER.warn("Unable to tell what database a DataSource is for: " + ex.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @param url A JDBC URL
+	 * @return true if it is for an in-memory H2 database
+	 */
+	public static boolean isEmbedded(final String url) {
+		return null != url && url.startsWith(URL_PREFIX);
+	}
+}
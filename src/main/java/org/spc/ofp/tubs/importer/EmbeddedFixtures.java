@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+
+import javax.annotation.Resource;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceUnit;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.spc.ofp.observer.domain.FishTransfer;
+import org.spc.ofp.observer.domain.Gen6Detail;
+import org.spc.ofp.observer.domain.Gen6Header;
+import org.spc.ofp.observer.domain.VesselSighting;
+import org.spc.ofp.observer.domain.purseseine.DayLog;
+import org.spc.ofp.observer.domain.purseseine.FishingDay;
+import org.spc.ofp.observer.domain.purseseine.LengthFrequencyDetail;
+import org.spc.ofp.observer.domain.purseseine.LengthFrequencyHeader;
+import org.spc.ofp.observer.domain.purseseine.PurseSeineTrip;
+import org.spc.ofp.observer.domain.purseseine.SetCatch;
+import org.spc.ofp.tubs.domain.common.Condition;
+import org.spc.ofp.tubs.domain.common.Fate;
+import org.spc.ofp.tubs.domain.common.ReferenceId;
+import org.spc.ofp.tubs.domain.common.SeaState;
+
+/**
+ * EmbeddedFixtures fills the embedded databases (see EmbeddedDatabases) with
+ * what an import needs:  observer trips in the source, and in TUBS the
+ * reference values DataCleaner maps onto and the sea state, condition and
+ * fate codes SyntheticTripGenerator uses.  It refuses to write to a database
+ * that isn't embedded.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class EmbeddedFixtures {
+
+	@PersistenceUnit(unitName = "observer")
+	protected EntityManagerFactory observerEmf;
+
+	@PersistenceUnit(unitName = "tubs")
+	protected EntityManagerFactory tubsEmf;
+
+	@Resource(name = "TubsMappings")
+	protected TubsMappings mappings;
+
+	/**
+	 * @throws IllegalStateException unless both the observer and TUBS units are on embedded databases
+	 */
+	public void checkEmbedded() {
+		open(observerEmf).close();
+		open(tubsEmf).close();
+	}
+
+	/**
+	 * Inserts every reference value DataCleaner can produce, and every sea state,
+	 * condition and fate code SyntheticTripGenerator uses, if they aren't there yet.
+	 * @return The number inserted
+	 */
+	public int seedReferenceValues() {
+		final String sql = String.format("INSERT INTO %s (%s, %s) VALUES (?, ?)",
+		    mappings.getTable(ReferenceId.class),
+		    mappings.getIdColumn(ReferenceId.class),
+		    mappings.getColumn(ReferenceId.class, "description"));
+		final EntityManager em = open(tubsEmf);
+		final EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			int inserted = 0;
+			for (final Integer id : DataCleaner.getReferenceIds()) {
+				if (null != em.find(ReferenceId.class, id)) { continue; }
+				em.createNativeQuery(sql)
+				    .setParameter(1, id)
+				    .setParameter(2, "Reference value " + id)
+				    .executeUpdate();
+				inserted++;
+			}
+			inserted += seedCodes(em, SeaState.class, SyntheticTripGenerator.SEA_STATES);
+			inserted += seedCodes(em, Condition.class, SyntheticTripGenerator.CONDITIONS);
+			inserted += seedCodes(em, Fate.class, SyntheticTripGenerator.FATES);
+			tx.commit();
+			return inserted;
+		} finally {
+			if (tx.isActive()) { tx.rollback(); }
+			em.close();
+		}
+	}
+
+	private int seedCodes(final EntityManager em, final Class<?> codeTable, final String[] codes) {
+		final String table = mappings.getTable(codeTable);
+		final String idColumn = mappings.getIdColumn(codeTable);
+		final String codeColumn = mappings.getColumn(codeTable, "code");
+		final String existsSql = String.format("SELECT COUNT(*) FROM %s WHERE %s = ?", table, codeColumn);
+		final String insertSql = String.format("INSERT INTO %s (%s, %s) VALUES (?, ?)", table, idColumn, codeColumn);
+		long nextId = ((Number)em.createNativeQuery(
+		    String.format("SELECT COALESCE(MAX(%s), 0) FROM %s", idColumn, table)).getSingleResult()).longValue();
+		int inserted = 0;
+		for (final String code : codes) {
+			final Number found = (Number)em.createNativeQuery(existsSql).setParameter(1, code).getSingleResult();
+			if (found.intValue() > 0) { continue; }
+			em.createNativeQuery(insertSql)
+			    .setParameter(1, Long.valueOf(++nextId))
+			    .setParameter(2, code)
+			    .executeUpdate();
+			inserted++;
+		}
+		return inserted;
+	}
+
+	/**
+	 * Saves a new trip, with its days, activities, catch and length samples,
+	 * sightings, transfers and pollution reports, and its observer, vessel and
+	 * ports if they aren't there yet.
+	 * @param trip
+	 * @return The trip's source ID, as the import modes take it
+	 */
+	public String persistSourceTrip(final PurseSeineTrip trip) {
+		final EntityManager em = open(observerEmf);
+		final EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			persistIfMissing(em, trip.getObserver());
+			persistIfMissing(em, trip.getBoat());
+			persistIfMissing(em, trip.getDeparturePort());
+			persistIfMissing(em, trip.getReturnPort());
+			// Parents first, each child pointed at its parent whatever the property is called
+			em.persist(trip);
+			for (final FishingDay day : nonNull(trip.getFishingDays())) {
+				persistChild(em, day, trip);
+				for (final DayLog dl : nonNull(day.getActivities())) {
+					persistChild(em, dl, day);
+					for (final SetCatch sc : nonNull(dl.getSetCatchList())) {
+						persistChild(em, sc, dl);
+					}
+					for (final LengthFrequencyHeader header : nonNull(dl.getHeaders())) {
+						persistChild(em, header, dl);
+						for (final LengthFrequencyDetail detail : nonNull(header.getDetails())) {
+							persistChild(em, detail, header);
+						}
+					}
+				}
+			}
+			for (final VesselSighting vs : nonNull(trip.getVesselSightings())) {
+				persistChild(em, vs, trip);
+			}
+			for (final FishTransfer xfer : nonNull(trip.getFishTransfers())) {
+				persistChild(em, xfer, trip);
+			}
+			for (final Gen6Header report : nonNull(trip.getPollutionReports())) {
+				persistChild(em, report, trip);
+				for (final Gen6Detail detail : nonNull(report.getDetails())) {
+					persistChild(em, detail, report);
+				}
+			}
+			tx.commit();
+			return Long.toString(trip.getId());
+		} finally {
+			if (tx.isActive()) { tx.rollback(); }
+			em.close();
+		}
+	}
+
+	private static void persistChild(final EntityManager em, final Object child, final Object parent) {
+		if (null == child) { return; }
+		TripMerger.attach(child, parent);
+		em.persist(child);
+	}
+
+	private static void persistIfMissing(final EntityManager em, final Object entity) {
+		if (null == entity || em.contains(entity)) { return; }
+		final Object id = TripMerger.entityId(entity);
+		if (null == id || null == em.find(entity.getClass(), id)) {
+			em.persist(entity);
+		}
+	}
+
+	private static <T> Collection<T> nonNull(final Collection<T> c) {
+		return null == c ? Collections.<T>emptyList() : c;
+	}
+
+	/**
+	 * @param emf
+	 * @return An EntityManager on emf, which must be an embedded database
+	 * @throws IllegalStateException if it isn't
+	 */
+	private static EntityManager open(final EntityManagerFactory emf) {
+		final EntityManager em = emf.createEntityManager();
+		final String[] url = new String[1];
+		((Session)em.getDelegate()).doWork(new Work() {
+			public void execute(final Connection con) throws SQLException {
+				url[0] = con.getMetaData().getURL();
+			}
+		});
+		if (!EmbeddedDatabases.isEmbedded(url[0])) {
+			em.close();
+			throw new IllegalStateException("Fixtures are only ever written to embedded databases, not " + url[0]);
+		}
+		return em;
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.Collection;
+
+import org.spc.ofp.tubs.domain.Trip;
+import org.spc.ofp.tubs.domain.purseseine.Activity;
+import org.spc.ofp.tubs.domain.purseseine.Day;
+import org.spc.ofp.tubs.domain.purseseine.FishingSet;
+import org.spc.ofp.tubs.domain.purseseine.LengthSamplingHeader;
+import org.spc.ofp.tubs.domain.purseseine.PurseSeineTrip;
+
+/**
+ * EntityCounts is a cheap census of a TUBS trip graph, without the hashing
+ * that TripFingerprint does.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class EntityCounts {
+
+	private int days;
+	private int activities;
+	private int sets;
+	private int lengthSamples;
+	private int setCatch;
+	private int sightings;
+	private int transfers;
+	private int pollutionReports;
+
+	private EntityCounts() {}
+
+	public static EntityCounts of(final Trip trip) {
+		final EntityCounts counts = new EntityCounts();
+		if (null == trip) { return counts; }
+		counts.sightings = size(trip.getVesselSightings());
+		counts.transfers = size(trip.getFishTransfers());
+		counts.pollutionReports = size(trip.getPollutionReports());
+		if (trip instanceof PurseSeineTrip && null != ((PurseSeineTrip)trip).getDays()) {
+			for (final Day day : ((PurseSeineTrip)trip).getDays()) {
+				if (null == day) { continue; }
+				counts.days++;
+				if (null == day.getActivities()) { continue; }
+				for (final Activity activity : day.getActivities()) {
+					if (null == activity) { continue; }
+					counts.activities++;
+					final FishingSet fset = activity.getFishingSet();
+					if (null == fset) { continue; }
+					counts.sets++;
+					counts.setCatch += size(fset.getCatchList());
+					if (null == fset.getLengthSamples()) { continue; }
+					for (final LengthSamplingHeader header : fset.getLengthSamples()) {
+						if (null != header) { counts.lengthSamples += size(header.getSamples()); }
+					}
+				}
+			}
+		}
+		return counts;
+	}
+
+	private static int size(final Collection<?> c) {
+		return null == c ? 0 : c.size();
+	}
+
+	public int getDays() { return days; }
+	public int getActivities() { return activities; }
+	public int getSets() { return sets; }
+	public int getLengthSamples() { return lengthSamples; }
+	public int getSetCatch() { return setCatch; }
+	public int getSightings() { return sightings; }
+	public int getTransfers() { return transfers; }
+	public int getPollutionReports() { return pollutionReports; }
+
+	/**
+	 * @return The number of rows these entities will be written as (trip row not included)
+	 */
+	public int total() {
+		return days + activities + sets + lengthSamples + setCatch + sightings + transfers + pollutionReports;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("days=%d activities=%d sets=%d samples=%d catch=%d sightings=%d transfers=%d gen6=%d",
+		    days, activities, sets, lengthSamples, setCatch, sightings, transfers, pollutionReports);
+	}
+}
@@ -18,6 +18,12 @@
  */
 package org.spc.ofp.tubs.importer;
 
+import javax.annotation.Resource;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+
+import org.spc.ofp.observer.domain.ITrip;
 import org.spc.ofp.tubs.domain.ImportStatus;
 import org.spc.ofp.tubs.domain.common.CommonRepository;
 import org.springframework.batch.item.ItemProcessor;
@@ -27,21 +33,95 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 
 /**
+ * ExistsFilterProcessor passes through the source trip IDs that still need to
+ * be imported.
+ *
+ * A trip that it lets through again because its content changed (see
+ * setReimportChanged) is left for the caller to pick up with takeChangedTrip():
+ * the TUBS trip it replaces and the new content hash, plus the source graph
+ * if it had to be loaded to hash it, so that it isn't loaded again.
+ *
+ * Purse seine trips are hashed from projection queries (see SourceTripHasher),
+ * so an unchanged trip costs a handful of narrow queries rather than a full
+ * graph load.  Other trips are still loaded to be hashed.
+ *
  * @author Corey Cole <coreyc@spc.int>
  *
  */
 public class ExistsFilterProcessor implements ItemProcessor<String, String> {
+	
+	/**
+	 * A successfully imported trip whose source has changed since.
+	 */
+	public static class ChangedTrip {
+		private final Long tripId;
+		private final ITrip sourceTrip;
+		private final String contentHash;
+		
+		ChangedTrip(final Long tripId, final ITrip sourceTrip, final String contentHash) {
+			this.tripId = tripId;
+			this.sourceTrip = sourceTrip;
+			this.contentHash = contentHash;
+		}
+		
+		/** @return The TUBS trip imported last time */
+		public Long getTripId() { return tripId; }
+		/** @return The source graph, or null if it wasn't loaded */
+		public ITrip getSourceTrip() { return sourceTrip; }
+		/** @return The hash of the source, or null if it wasn't hashed */
+		public String getContentHash() { return contentHash; }
+	}
 
 	@Autowired
 	CommonRepository repo;
 	
+	@Resource(name = "ObserverTripProcessor")
+	ItemProcessor<String, ITrip> observerTripProcessor;
+	
+	@PersistenceUnit(unitName = "observer")
+	EntityManagerFactory observerEmf;
+	
 	private String sourceName;
 	
+	private boolean reimportChanged;
+	
+	private final ThreadLocal<ChangedTrip> changedTrip = new ThreadLocal<ChangedTrip>();
+	
 	public void setSourceName(final String value) {
 		this.sourceName = value;
 	}
 	
+	/**
+	 * When set, trips that were successfully imported are passed through again
+	 * if the content hash of the source graph no longer matches the hash
+	 * recorded in ImportStatus.
+	 * @param value
+	 */
+	public void setReimportChanged(final boolean value) {
+		this.reimportChanged = value;
+	}
+	
+	/**
+	 * @return What the last call to process() on this thread found out about a
+	 * changed trip, or null if it didn't let one through.  Only handed out once.
+	 */
+	public ChangedTrip takeChangedTrip() {
+		final ChangedTrip changed = changedTrip.get();
+		changedTrip.remove();
+		return changed;
+	}
+	
 	public String process(final String input) throws Exception {
+		changedTrip.remove();
+		final ImporterEvents.Span span = ImporterEvents.begin(ImportStage.EXISTS_CHECK, input);
+		try {
+			return checkExists(input);
+		} finally {
+			span.end();
+		}
+	}
+	
+	protected String checkExists(final String input) throws Exception {
 		Preconditions.checkNotNull(input, "Source Trip Id is null");
 		Preconditions.checkArgument(!"".equalsIgnoreCase(input.trim()), "Source Trip Id is blank");
 		
@@ -55,9 +135,50 @@ public class ExistsFilterProcessor implements ItemProcessor<String, String> {
 			is = repo.findImportStatus(input, sourceName);		
 		} catch (Exception ignoreMe) { } // NOPMD
 		// Status of 'S' is success, anything else is 'go for it'
-		return (null != is && "S".equalsIgnoreCase(is.getStatus())) ?
-				null :
-				input;
+		if (null == is || !"S".equalsIgnoreCase(is.getStatus())) {
+			return input;
+		}
+		return (reimportChanged && isChanged(input, is)) ?
+				input :
+				null;
+	}
+	
+	protected boolean isChanged(final String input, final ImportStatus is) throws Exception {
+		final String previousHash = ImportStatusNotes.get(is, ImportStatusNotes.CONTENT_HASH);
+		// Imported before we kept hashes, so there's nothing to compare against
+		if (Strings.isNullOrEmpty(previousHash)) {
+			changedTrip.set(new ChangedTrip(is.getTripId(), null, null));
+			return true;
+		}
+		String currentHash = hashWithoutLoading(input);
+		ITrip sourceTrip = null;
+		if (null == currentHash) {
+			sourceTrip = observerTripProcessor.process(input);
+			currentHash = SourceTripHasher.hash(sourceTrip);
+		}
+		if (previousHash.equalsIgnoreCase(Strings.nullToEmpty(currentHash))) { return false; }
+		changedTrip.set(new ChangedTrip(is.getTripId(), sourceTrip, currentHash));
+		return true;
+	}
+	
+	/**
+	 * @param input
+	 * @return The content hash from projection queries, or null if the trip
+	 * has to be loaded to be hashed
+	 */
+	protected String hashWithoutLoading(final String input) {
+		final long tripId;
+		try {
+			tripId = Long.parseLong(input.trim());
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+		final EntityManager em = observerEmf.createEntityManager();
+		try {
+			return SourceTripHasher.hash(em, tripId);
+		} finally {
+			em.close();
+		}
 	}
 
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+/**
+ * The steps every trip goes through on its way from the observer database to TUBS.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public enum ImportStage {
+	/** ExistsFilterProcessor */
+	EXISTS_CHECK,
+	/** ObserverTripProcessor */
+	LOAD,
+	/** TubsTripProcessor */
+	TRANSFORM,
+	/** TripValidator */
+	VALIDATE,
+	/** Writing the TUBS graph */
+	SAVE
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import javax.persistence.TypedQuery;
+
+import com.google.common.base.Strings;
+
+/**
+ * ImportStatusFinder answers set-based questions about ImportStatus that
+ * CommonRepository (which works one trip at a time) can't.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class ImportStatusFinder {
+
+	@PersistenceUnit(unitName = "tubs")
+	protected EntityManagerFactory tubsEmf;
+
+	// A trip that failed and was later imported has both an 'F' and an 'S' row.
+	// Timed out trips ('T') were never written, so they're replayed like failures.
+	private static final String FAILED_JPQL =
+	    "SELECT DISTINCT s.sourceId FROM ImportStatus s " +
+	    "WHERE s.sourceName = :sourceName AND s.status IN ('F', 'T') " +
+	    "AND s.sourceId NOT IN (" +
+	    "SELECT ok.sourceId FROM ImportStatus ok WHERE ok.sourceName = :sourceName AND ok.status = 'S')";
+
+	private static final String ERROR_FILTER = " AND s.comments LIKE :errorPattern";
+
+	private static final String ORDER_BY = " ORDER BY s.sourceId";
+
+	/**
+	 * Finds every source trip whose import failed (or timed out) and hasn't succeeded since.
+	 * @param sourceName
+	 * @param errorPattern Optional.  Only failures whose comments contain this text
+	 *        are returned.  SQL wildcards (% and _) may be used.
+	 * @return Source trip IDs, in one round trip to the database
+	 */
+	public List<String> findFailedSourceIds(final String sourceName, final String errorPattern) {
+		final boolean filtered = !Strings.isNullOrEmpty(errorPattern);
+		final EntityManager em = tubsEmf.createEntityManager();
+		try {
+			final TypedQuery<String> query = em.createQuery(
+			    FAILED_JPQL + (filtered ? ERROR_FILTER : "") + ORDER_BY, String.class);
+			query.setParameter("sourceName", sourceName);
+			if (filtered) {
+				query.setParameter("errorPattern", "%" + errorPattern + "%");
+			}
+			return query.getResultList();
+		} finally {
+			em.close();
+		}
+	}
+}
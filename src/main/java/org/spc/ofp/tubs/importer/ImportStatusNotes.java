@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.spc.ofp.tubs.domain.ImportStatus;
+
+import com.google.common.base.Strings;
+
+/**
+ * ImportStatusNotes reads and writes tagged "Name: value" lines in the
+ * ImportStatus comments, which is the only free-form column we have there.
+ *
+ * Tags are written at the top of the comments so that they survive any
+ * stack trace appended below them.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class ImportStatusNotes {
+
+	public static final String CONTENT_HASH = "Content hash";
+	public static final String RESOURCES = "Resources";
+	public static final String TIMED_OUT = "Timed out in";
+	public static final String RUN_ID = "Run";
+	public static final String OVERLAPS = "Overlaps";
+
+	private ImportStatusNotes() {}
+
+	public static String get(final ImportStatus status, final String tag) {
+		if (null == status || null == status.getComments()) { return null; }
+		final Matcher m = pattern(tag).matcher(status.getComments());
+		return m.find() ? m.group(1).trim() : null;
+	}
+
+	public static void put(final ImportStatus status, final String tag, final String value) {
+		final String comments = Strings.nullToEmpty(status.getComments());
+		final String line = String.format("%s: %s", tag, Strings.nullToEmpty(value));
+		final Matcher m = pattern(tag).matcher(comments);
+		status.setComments(m.find() ?
+		    comments.substring(0, m.start()) + line + comments.substring(m.end()) :
+		    comments.isEmpty() ? line : line + "\n" + comments);
+	}
+
+	private static Pattern pattern(final String tag) {
+		return Pattern.compile("^" + Pattern.quote(tag) + ": (.*)$", Pattern.MULTILINE);
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ImporterEvents reports each stage of each trip to Java Flight Recorder, as
+ * an "org.spc.ofp.tubs.importer.TripStage" event carrying the trip ID, stage,
+ * gear type and entity count.  In a recording the JDBC and GC activity can
+ * then be lined up with the trip that caused it.
+ *
+ * The importer is built for Java 6, so the event type is defined at run time
+ * through jdk.jfr.EventFactory, by reflection.  On JVMs without JFR every
+ * call is a no-op.  When JFR is there but the event isn't being recorded,
+ * begin() costs one check of the event type and allocates nothing.
+ *
+ * Usage:
+ *   final ImporterEvents.Span span = ImporterEvents.begin(ImportStage.LOAD, tripId);
+ *   try { ... } finally { span.end(); }
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public final class ImporterEvents {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ImporterEvents.class);
+
+	public static final String EVENT_NAME = "org.spc.ofp.tubs.importer.TripStage";
+
+	// Field order, as declared to the EventFactory
+	private static final int TRIP_ID = 0;
+	private static final int STAGE = 1;
+	private static final int GEAR_TYPE = 2;
+	private static final int ENTITIES = 3;
+
+	private static final Object FACTORY;
+	private static final Object EVENT_TYPE;
+	private static final Method IS_ENABLED;
+	private static final Method NEW_EVENT;
+	private static final Method BEGIN;
+	private static final Method END;
+	private static final Method SHOULD_COMMIT;
+	private static final Method SET;
+	private static final Method COMMIT;
+
+	static {
+		Object factory = null;
+		Object eventType = null;
+		Method isEnabled = null, newEvent = null, begin = null, end = null, shouldCommit = null, set = null, commit = null;
+		try {
+			final Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+			final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			final Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+			final Constructor<?> field = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+
+			final List<Object> annotations = new ArrayList<Object>();
+			annotations.add(annotation("jdk.jfr.Name", EVENT_NAME));
+			annotations.add(annotation("jdk.jfr.Label", "Trip Stage"));
+			annotations.add(annotation("jdk.jfr.Category", new String[] { "TUBS", "Importer" }));
+			annotations.add(annotation("jdk.jfr.Description", "One stage of importing one observer trip"));
+			// The stack would only ever show this class's reflective calls
+			annotations.add(annotation("jdk.jfr.StackTrace", Boolean.FALSE));
+
+			final List<Object> fields = new ArrayList<Object>();
+			fields.add(field.newInstance(String.class, "tripId", labelled("Trip ID")));
+			fields.add(field.newInstance(String.class, "stage", labelled("Stage")));
+			fields.add(field.newInstance(String.class, "gearType", labelled("Gear Type")));
+			fields.add(field.newInstance(long.class, "entities", labelled("Entities")));
+
+			factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+			eventType = factoryClass.getMethod("getEventType").invoke(factory);
+			isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+			newEvent = factoryClass.getMethod("newEvent");
+			begin = eventClass.getMethod("begin");
+			end = eventClass.getMethod("end");
+			shouldCommit = eventClass.getMethod("shouldCommit");
+			set = eventClass.getMethod("set", int.class, Object.class);
+			commit = eventClass.getMethod("commit");
+			LOGGER.debug("Flight Recorder events enabled");
+		} catch (ClassNotFoundException ex) {
+			LOGGER.debug("No Flight Recorder on this JVM, importer events are off");
+			factory = null;
+		} catch (Exception ex) {
+			LOGGER.warn("Unable to define Flight Recorder events: " + ex);
+			factory = null;
+		}
+		FACTORY = factory;
+		EVENT_TYPE = eventType;
+		IS_ENABLED = isEnabled;
+		NEW_EVENT = newEvent;
+		BEGIN = begin;
+		END = end;
+		SHOULD_COMMIT = shouldCommit;
+		SET = set;
+		COMMIT = commit;
+	}
+
+	private ImporterEvents() {}
+
+	private static Object annotation(final String type, final Object value) throws Exception {
+		final Class<? extends Annotation> annotationType = Class.forName(type).asSubclass(Annotation.class);
+		return Class.forName("jdk.jfr.AnnotationElement")
+		    .getConstructor(Class.class, Object.class)
+		    .newInstance(annotationType, value);
+	}
+
+	private static List<Object> labelled(final String label) throws Exception {
+		return Arrays.asList(annotation("jdk.jfr.Label", label));
+	}
+
+	/**
+	 * @return true if events are being recorded right now
+	 */
+	public static boolean isRecording() {
+		if (null == FACTORY) { return false; }
+		try {
+			return Boolean.TRUE.equals(IS_ENABLED.invoke(EVENT_TYPE));
+		} catch (Exception ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Starts timing a stage.  Always end() the span, even on failure.
+	 * @param stage
+	 * @param tripId Source trip ID
+	 * @return A span; a shared do-nothing span when events aren't being recorded
+	 */
+	public static Span begin(final ImportStage stage, final String tripId) {
+		if (!isRecording()) { return Span.NONE; }
+		try {
+			final Object event = NEW_EVENT.invoke(FACTORY);
+			BEGIN.invoke(event);
+			return new Span(event, stage, tripId);
+		} catch (Exception ex) {
+			LOGGER.debug("Unable to start Flight Recorder event: " + ex);
+			return Span.NONE;
+		}
+	}
+
+	/**
+	 * One stage of one trip.  Not thread safe; end it on the thread that began it.
+	 */
+	public static class Span {
+		static final Span NONE = new Span(null, null, null);
+
+		private final Object event;
+		private final ImportStage stage;
+		private final String tripId;
+		private String gearType;
+		private long entities;
+
+		Span(final Object event, final ImportStage stage, final String tripId) {
+			this.event = event;
+			this.stage = stage;
+			this.tripId = tripId;
+		}
+
+		/**
+		 * @return false for the do-nothing span, so that callers can skip work
+		 * (such as counting entities) that's only needed for the event
+		 */
+		public boolean isRecording() {
+			return null != event;
+		}
+
+		public Span gearType(final String value) {
+			if (null != event) { this.gearType = value; }
+			return this;
+		}
+
+		public Span entities(final long value) {
+			if (null != event) { this.entities = value; }
+			return this;
+		}
+
+		public void end() {
+			if (null == event) { return; }
+			try {
+				END.invoke(event);
+				if (Boolean.TRUE.equals(SHOULD_COMMIT.invoke(event))) {
+					SET.invoke(event, TRIP_ID, tripId);
+					SET.invoke(event, STAGE, stage.name());
+					SET.invoke(event, GEAR_TYPE, gearType);
+					SET.invoke(event, ENTITIES, entities);
+					COMMIT.invoke(event);
+				}
+			} catch (Exception ex) {
+				LOGGER.debug("Unable to commit Flight Recorder event: " + ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.base.Strings;
+
+/**
+ * ImporterOptions is a bare bones command line parser.
+ *
+ * The first argument that doesn't start with "--" is the mode (default "copy"),
+ * everything else is expected to look like --name=value or --flag.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class ImporterOptions {
+
+	public static final String DEFAULT_MODE = "copy";
+
+	private String mode = DEFAULT_MODE;
+	private final Map<String, String> values = new HashMap<String, String>();
+
+	public static ImporterOptions parse(final String[] args) {
+		final ImporterOptions options = new ImporterOptions();
+		if (null == args) { return options; }
+		boolean haveMode = false;
+		for (final String arg : args) {
+			if (Strings.isNullOrEmpty(arg)) { continue; }
+			if (arg.startsWith("--")) {
+				final int eq = arg.indexOf('=');
+				if (eq < 0) {
+					options.values.put(arg.substring(2), "true");
+				} else {
+					options.values.put(arg.substring(2, eq), arg.substring(eq + 1));
+				}
+			} else if (!haveMode) {
+				options.mode = arg.trim().toLowerCase();
+				haveMode = true;
+			} else {
+				throw new IllegalArgumentException("Unexpected argument: " + arg);
+			}
+		}
+		return options;
+	}
+
+	public String getMode() {
+		return mode;
+	}
+
+	public boolean has(final String name) {
+		return values.containsKey(name);
+	}
+
+	public String getString(final String name, final String defaultValue) {
+		final String value = values.get(name);
+		return Strings.isNullOrEmpty(value) ? defaultValue : value;
+	}
+
+	public int getInt(final String name, final int defaultValue) {
+		final String value = values.get(name);
+		if (Strings.isNullOrEmpty(value)) { return defaultValue; }
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException(String.format("--%s expects a number, not '%s'", name, value));
+		}
+	}
+}
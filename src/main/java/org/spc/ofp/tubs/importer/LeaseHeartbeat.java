@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Sets;
+
+/**
+ * LeaseHeartbeat keeps the leases held by this instance alive while trips are
+ * being imported.  Renewal runs on a daemon thread every third of the lease time,
+ * so a crashed instance stops renewing and its leases expire for others to take.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class LeaseHeartbeat {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(LeaseHeartbeat.class);
+
+	private final TripLeaseRepository leases;
+	private final String sourceName;
+	private final String owner;
+	private final long leaseMillis;
+	private final Set<String> held = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private ScheduledExecutorService timer;
+
+	public LeaseHeartbeat(final TripLeaseRepository leases, final String sourceName, final long leaseMillis) {
+		this.leases = leases;
+		this.sourceName = sourceName;
+		this.leaseMillis = leaseMillis;
+		// RuntimeMXBean name is pid@host, which makes stale leases easy to trace back
+		this.owner = ManagementFactory.getRuntimeMXBean().getName() + "/" +
+		    UUID.randomUUID().toString().substring(0, 8);
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	public synchronized void start() {
+		if (null != timer) { return; }
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "lease-heartbeat");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final long period = Math.max(1L, leaseMillis / 3);
+		timer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				renew();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (null != timer) {
+			timer.shutdownNow();
+			timer = null;
+		}
+		if (!held.isEmpty()) {
+			// Hand back anything we claimed but never got to
+			leases.release(sourceName, owner, new ArrayList<String>(held));
+			held.clear();
+		}
+	}
+
+	public void hold(final Collection<String> sourceIds) {
+		held.addAll(sourceIds);
+	}
+
+	public void complete(final String sourceId) {
+		held.remove(sourceId);
+		leases.complete(sourceName, owner, sourceId);
+	}
+
+	void renew() {
+		if (held.isEmpty()) { return; }
+		try {
+			final List<String> lost = leases.renew(sourceName, owner, new ArrayList<String>(held), leaseMillis);
+			if (!lost.isEmpty()) {
+				LOGGER.warn(String.format("Lost leases on %s; another instance may import them too", lost));
+				held.removeAll(lost);
+			}
+		} catch (Exception ex) {
+			// Keep going, the next beat may succeed before the leases run out
+			LOGGER.warn("Unable to renew leases", ex);
+		}
+	}
+}
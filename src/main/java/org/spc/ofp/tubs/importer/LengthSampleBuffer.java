@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.spc.ofp.observer.domain.purseseine.LengthFrequencyDetail;
+import org.spc.ofp.tubs.domain.purseseine.LengthSamplingHeader;
+
+/**
+ * LengthSampleBuffer holds the length samples of one trip in columns of
+ * primitives instead of one LengthSample entity per fish.  A big trip has
+ * tens of thousands of samples, and as entities each one costs an object, an
+ * AuditEntry, a boxed Integer or two and a slot in the persistence context.
+ *
+ * Each row points at its header by position in getHeaders(); the header's ID
+ * is only known once the trip has been saved.  Species codes are kept once
+ * each in a small dictionary.
+ *
+ * Rows may be added from several mapping threads at once.  Reads are meant
+ * for after mapping is done.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class LengthSampleBuffer {
+
+	/** Stands in for a null length or sample number */
+	public static final int NULL_INT = Integer.MIN_VALUE;
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	private final String enteredBy;
+	private final Date enteredDate;
+
+	private final List<LengthSamplingHeader> headers = new ArrayList<LengthSamplingHeader>();
+	private final List<String> species = new ArrayList<String>();
+	private final Map<String, Integer> speciesIndex = new HashMap<String, Integer>();
+
+	private int size;
+	private int[] headerIndexes = new int[INITIAL_CAPACITY];
+	private int[] lengths = new int[INITIAL_CAPACITY];
+	private int[] sampleNumbers = new int[INITIAL_CAPACITY];
+	private short[] speciesCodes = new short[INITIAL_CAPACITY];
+
+	/**
+	 * @param enteredBy Audit user for every row
+	 * @param enteredDate Audit date for every row
+	 */
+	public LengthSampleBuffer(final String enteredBy, final Date enteredDate) {
+		this.enteredBy = enteredBy;
+		this.enteredDate = enteredDate;
+	}
+
+	/**
+	 * Adds the samples of one header.  Null details are skipped, as
+	 * TubsTripProcessor does for entities.
+	 * @param header The TUBS header the samples belong to
+	 * @param details
+	 */
+	public synchronized void add(final LengthSamplingHeader header, final List<LengthFrequencyDetail> details) {
+		if (null == header || null == details || details.isEmpty()) { return; }
+		final int headerIndex = headers.size();
+		headers.add(header);
+		ensureCapacity(size + details.size());
+		for (final LengthFrequencyDetail detail : details) {
+			if (null == detail) { continue; }
+			headerIndexes[size] = headerIndex;
+			lengths[size] = toInt(detail.getLen());
+			sampleNumbers[size] = toInt(detail.getSample_no());
+			speciesCodes[size] = speciesIndexOf(detail.getSp_id());
+			size++;
+		}
+	}
+
+	private void ensureCapacity(final int needed) {
+		if (needed <= lengths.length) { return; }
+		final int capacity = Math.max(needed, lengths.length * 2);
+		headerIndexes = Arrays.copyOf(headerIndexes, capacity);
+		lengths = Arrays.copyOf(lengths, capacity);
+		sampleNumbers = Arrays.copyOf(sampleNumbers, capacity);
+		speciesCodes = Arrays.copyOf(speciesCodes, capacity);
+	}
+
+	private short speciesIndexOf(final String code) {
+		if (null == code) { return -1; }
+		Integer index = speciesIndex.get(code);
+		if (null == index) {
+			if (species.size() >= Short.MAX_VALUE) {
+				throw new IllegalStateException("Too many distinct species codes in one trip");
+			}
+			index = Integer.valueOf(species.size());
+			species.add(code);
+			speciesIndex.put(code, index);
+		}
+		return index.shortValue();
+	}
+
+	private static int toInt(final Integer value) {
+		return null == value ? NULL_INT : value.intValue();
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized boolean isEmpty() {
+		return 0 == size;
+	}
+
+	public String getEnteredBy() {
+		return enteredBy;
+	}
+
+	public Date getEnteredDate() {
+		return enteredDate;
+	}
+
+	public synchronized LengthSamplingHeader getHeader(final int row) {
+		return headers.get(headerIndexes[checkRow(row)]);
+	}
+
+	/**
+	 * @return The length, or NULL_INT
+	 */
+	public synchronized int getLength(final int row) {
+		return lengths[checkRow(row)];
+	}
+
+	/**
+	 * @return The sample number, or NULL_INT
+	 */
+	public synchronized int getSampleNumber(final int row) {
+		return sampleNumbers[checkRow(row)];
+	}
+
+	public synchronized String getSpeciesCode(final int row) {
+		final short index = speciesCodes[checkRow(row)];
+		return index < 0 ? null : species.get(index);
+	}
+
+	private int checkRow(final int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException(String.format("Row %d of %d", row, size));
+		}
+		return row;
+	}
+}
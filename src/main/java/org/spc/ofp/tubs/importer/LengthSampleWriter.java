@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+import javax.annotation.Resource;
+import javax.sql.DataSource;
+
+import org.spc.ofp.tubs.domain.purseseine.LengthSample;
+import org.spc.ofp.tubs.domain.purseseine.LengthSamplingHeader;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * LengthSampleWriter inserts the contents of a LengthSampleBuffer with plain
+ * JDBC batches, straight from the buffer's columns.  It has to run after the
+ * trip itself is saved, since that is when the sample headers get their IDs;
+ * TripWriter runs it in the transaction that saves the trip.
+ *
+ * The table and column names are taken from the TUBS mapping of LengthSample.
+ * Rows written here are ordinary LengthSample rows once they're in, so
+ * TripRemover cleans them up along with the rest of the trip.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class LengthSampleWriter {
+
+	// In the order of the parameters in setValues() below
+	private static final String[] PROPERTIES = {
+		"header", "sampleNumber", "speciesCode", "length", "auditEntry.enteredBy", "auditEntry.enteredDate"
+	};
+
+	// Rows per round trip to the server
+	private static final int BATCH_SIZE = 1000;
+
+	@Resource(name = "TubsMappings")
+	protected TubsMappings mappings;
+
+	private JdbcTemplate jdbc;
+	private String insertSql;
+
+	@Resource(name = "tubs.DataSource")
+	public void setDataSource(final DataSource dataSource) {
+		this.jdbc = new JdbcTemplate(dataSource);
+	}
+
+	/**
+	 * @param samples Samples whose headers have been saved
+	 * @return The number of rows written
+	 */
+	public int write(final LengthSampleBuffer samples) {
+		if (null == samples || samples.isEmpty()) { return 0; }
+		final int total = samples.size();
+		final String sql = getInsertSql();
+		final Timestamp enteredDate = null == samples.getEnteredDate() ?
+		    null :
+		    new Timestamp(samples.getEnteredDate().getTime());
+		for (int start = 0; start < total; start += BATCH_SIZE) {
+			final int offset = start;
+			final int count = Math.min(BATCH_SIZE, total - start);
+			jdbc.batchUpdate(sql, new BatchPreparedStatementSetter() {
+				public void setValues(final PreparedStatement ps, final int i) throws SQLException {
+					final int row = offset + i;
+					ps.setLong(1, headerId(samples.getHeader(row)));
+					setInt(ps, 2, samples.getSampleNumber(row));
+					ps.setString(3, samples.getSpeciesCode(row));
+					setInt(ps, 4, samples.getLength(row));
+					ps.setString(5, samples.getEnteredBy());
+					ps.setTimestamp(6, enteredDate);
+				}
+
+				public int getBatchSize() {
+					return count;
+				}
+			});
+		}
+		return total;
+	}
+
+	private synchronized String getInsertSql() {
+		if (null == insertSql) {
+			final StringBuilder columns = new StringBuilder();
+			final StringBuilder values = new StringBuilder();
+			for (final String property : PROPERTIES) {
+				if (columns.length() > 0) {
+					columns.append(", ");
+					values.append(", ");
+				}
+				columns.append(mappings.getColumn(LengthSample.class, property));
+				values.append('?');
+			}
+			insertSql = String.format("INSERT INTO %s (%s) VALUES (%s)",
+			    mappings.getTable(LengthSample.class), columns, values);
+		}
+		return insertSql;
+	}
+
+	private static long headerId(final LengthSamplingHeader header) {
+		if (null == header.getId()) {
+			throw new IllegalStateException("Length sampling header has not been saved");
+		}
+		return header.getId().longValue();
+	}
+
+	private static void setInt(final PreparedStatement ps, final int index, final int value) throws SQLException {
+		if (LengthSampleBuffer.NULL_INT == value) {
+			ps.setNull(index, Types.INTEGER);
+		} else {
+			ps.setInt(index, value);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LoadTestReport turns the TripMetrics of a load test run into throughput,
+ * peak heap and per-stage latency percentiles.
+ *
+ * Call start() right before the first trip so that the heap peaks (which the
+ * JVM tracks per memory pool) only cover the run.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class LoadTestReport {
+
+	private static final double[] PERCENTILES = { 50.0, 90.0, 99.0 };
+
+	private final int workers;
+	private final int prepareThreads;
+	private long startNanos;
+	private long endNanos;
+	private List<TripMetrics> trips;
+
+	/**
+	 * @param workers Import workers the run used (0 for none)
+	 * @param prepareThreads Prepare threads the run used (0 for none)
+	 */
+	public LoadTestReport(final int workers, final int prepareThreads) {
+		this.workers = workers;
+		this.prepareThreads = prepareThreads;
+	}
+
+	public void start() {
+		resetPeakHeap();
+		startNanos = System.nanoTime();
+	}
+
+	static void resetPeakHeap() {
+		for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (MemoryType.HEAP == pool.getType()) { pool.resetPeakUsage(); }
+		}
+	}
+
+	public void finish(final RunReport report) {
+		endNanos = System.nanoTime();
+		trips = report.getTrips();
+	}
+
+	/**
+	 * Sums the peak of each heap pool, which overstates the true peak a little
+	 * since the pools don't all peak at once.
+	 * @return
+	 */
+	static long peakHeapBytes() {
+		long peak = 0L;
+		for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (MemoryType.HEAP != pool.getType()) { continue; }
+			final MemoryUsage usage = pool.getPeakUsage();
+			if (null != usage) { peak += usage.getUsed(); }
+		}
+		return peak;
+	}
+
+	/**
+	 * Nearest rank percentile of an already sorted array.
+	 * @param sorted
+	 * @param percentile
+	 * @return
+	 */
+	static long percentile(final long[] sorted, final double percentile) {
+		if (0 == sorted.length) { return 0L; }
+		final int rank = (int)Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+
+	String concurrency() {
+		if (workers > 0) { return String.format("%d workers", workers); }
+		if (prepareThreads > 0) { return String.format("%d prepare threads", prepareThreads); }
+		return "sequential";
+	}
+
+	@Override
+	public String toString() {
+		int succeeded = 0;
+		long rows = 0L;
+		for (final TripMetrics m : trips) {
+			if (!"S".equalsIgnoreCase(m.getStatus())) { continue; }
+			succeeded++;
+			rows += m.getEntities();
+		}
+		final double seconds = Math.max(1L, endNanos - startNanos) / 1.0e9;
+		final StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Load test (%s): %d trips (%d failed) in %.1fs, %.2f trips/s, %.0f rows/s, peak heap %dMB%n",
+		    concurrency(), succeeded, trips.size() - succeeded, seconds,
+		    succeeded / seconds, rows / seconds,
+		    peakHeapBytes() / (1024L * 1024L)));
+		for (final ImportStage stage : ImportStage.values()) {
+			final long[] nanos = new long[trips.size()];
+			for (int i = 0; i < nanos.length; i++) {
+				nanos[i] = trips.get(i).getStageNanos(stage);
+			}
+			Arrays.sort(nanos);
+			if (0 == nanos.length || 0L == nanos[nanos.length - 1]) { continue; }
+			sb.append(String.format("  %-12s", stage.name().toLowerCase()));
+			for (final double p : PERCENTILES) {
+				sb.append(String.format(" p%.0f=%dms", p, TimeUnit.NANOSECONDS.toMillis(percentile(nanos, p))));
+			}
+			sb.append(String.format(" max=%dms%n", TimeUnit.NANOSECONDS.toMillis(nanos[nanos.length - 1])));
+		}
+		return sb.toString();
+	}
+}
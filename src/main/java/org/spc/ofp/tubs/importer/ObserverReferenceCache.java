@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.criteria.CriteriaQuery;
+
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spc.ofp.observer.domain.FieldStaff;
+import org.spc.ofp.observer.domain.Port;
+import org.spc.ofp.observer.domain.Vessel;
+import org.spc.ofp.observer.domain.purseseine.PurseSeineTrip;
+
+/**
+ * ObserverReferenceCache holds every observer, vessel and port in the source
+ * database for the length of a run.  There are a few dozen of each, shared by
+ * thousands of trips, and without the cache each trip loads its own copies
+ * the first time the mapping touches them.
+ *
+ * attach() swaps a freshly loaded trip's uninitialized observer, boat and port
+ * proxies for the cached entities, so the per-trip queries only cover the
+ * trip's own data.  Associations the source mapping fetches eagerly are
+ * already loaded by then and are left alone.
+ *
+ * The cached entities are detached and shared between threads:  read only.
+ * Until preload() is called attach() does nothing.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class ObserverReferenceCache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ObserverReferenceCache.class);
+
+	@PersistenceUnit(unitName = "observer")
+	protected EntityManagerFactory observerEmf;
+
+	private volatile Map<Object, FieldStaff> observers = Collections.emptyMap();
+	private volatile Map<Object, Vessel> vessels = Collections.emptyMap();
+	private volatile Map<Object, Port> ports = Collections.emptyMap();
+
+	/**
+	 * Loads (or reloads) every observer, vessel and port, one query each.
+	 * @return The number of entities cached
+	 */
+	public int preload() {
+		final EntityManager em = observerEmf.createEntityManager();
+		try {
+			observers = loadAll(em, FieldStaff.class);
+			vessels = loadAll(em, Vessel.class);
+			ports = loadAll(em, Port.class);
+		} finally {
+			em.close();
+		}
+		LOGGER.info(String.format("Cached %d observers, %d vessels and %d ports",
+		    observers.size(), vessels.size(), ports.size()));
+		return observers.size() + vessels.size() + ports.size();
+	}
+
+	private <T> Map<Object, T> loadAll(final EntityManager em, final Class<T> type) {
+		final CriteriaQuery<T> query = em.getCriteriaBuilder().createQuery(type);
+		query.select(query.from(type));
+		final PersistenceUnitUtil util = observerEmf.getPersistenceUnitUtil();
+		final Map<Object, T> entities = new HashMap<Object, T>();
+		for (final T entity : em.createQuery(query).getResultList()) {
+			entities.put(util.getIdentifier(entity), entity);
+		}
+		return Collections.unmodifiableMap(entities);
+	}
+
+	/**
+	 * Points trip at the cached observer, boat and ports wherever it only holds
+	 * an uninitialized proxy for them.
+	 * @param trip
+	 */
+	public void attach(final PurseSeineTrip trip) {
+		if (null == trip) { return; }
+		trip.setObserver(resolve(observers, trip.getObserver()));
+		trip.setBoat(resolve(vessels, trip.getBoat()));
+		trip.setDeparturePort(resolve(ports, trip.getDeparturePort()));
+		trip.setReturnPort(resolve(ports, trip.getReturnPort()));
+	}
+
+	private static <T> T resolve(final Map<Object, T> cache, final T entity) {
+		if (!(entity instanceof HibernateProxy)) { return entity; }
+		final LazyInitializer proxy = ((HibernateProxy)entity).getHibernateLazyInitializer();
+		if (!proxy.isUninitialized()) { return entity; }
+		final T cached = cache.get(proxy.getIdentifier());
+		return null == cached ? entity : cached;
+	}
+}
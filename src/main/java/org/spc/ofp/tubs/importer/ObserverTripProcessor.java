@@ -28,6 +28,8 @@ import org.spc.ofp.observer.domain.ITrip;
 import org.spc.ofp.observer.domain.TripRepository;
 import org.spc.ofp.observer.domain.VesselRepository;
 import org.spc.ofp.observer.domain.longline.LongLineTrip;
+import org.spc.ofp.observer.domain.purseseine.DayLog;
+import org.spc.ofp.observer.domain.purseseine.FishingDay;
 import org.spc.ofp.observer.domain.purseseine.PurseSeineTrip;
 import org.spc.ofp.observer.domain.purseseine.PurseSeineTripRepository;
 
@@ -53,9 +55,25 @@ public class ObserverTripProcessor implements ItemProcessor<String, ITrip> {
 	@Resource(name = "observer.VesselRepository")
 	VesselRepository vesselRepo;
 	
+	@Resource(name = "ObserverReferenceCache")
+	ObserverReferenceCache referenceCache;
+	
 	private static final Logger LOGGER = LoggerFactory.getLogger(ObserverTripProcessor.class);
 	
 	public ITrip process(final String tripId) throws Exception {
+		final ImporterEvents.Span span = ImporterEvents.begin(ImportStage.LOAD, tripId);
+		try {
+			final ITrip trip = load(tripId);
+			if (span.isRecording() && null != trip) {
+				span.gearType(trip.getGearType()).entities(countEntities(trip));
+			}
+			return trip;
+		} finally {
+			span.end();
+		}
+	}
+	
+	protected ITrip load(final String tripId) throws Exception {
 		Preconditions.checkNotNull(tripId, "TripId is null");
 		Preconditions.checkArgument(!"".equalsIgnoreCase(tripId.trim()), "TripId is blank");
 		final long id = Long.parseLong(tripId); // Let parseLong throw the exception if it's not numeric
@@ -88,10 +106,27 @@ public class ObserverTripProcessor implements ItemProcessor<String, ITrip> {
 	private PurseSeineTrip processPurseSeine(final long tripId) {
 		LOGGER.debug(String.format("ObserverTripProcessor thinks tripId={%s} is a Purse Seine trip", tripId));
 		final PurseSeineTrip pst = purseSeineTripRepo.findById(tripId);
+		referenceCache.attach(pst);
 		LOGGER.debug(String.format("Purse Seine trip has %d fishing day entities", pst.getFishingDays().size()));
 		return pst;
 	}
 	
+	/**
+	 * @return Days and sets, the same measure TripSizeEstimator uses
+	 */
+	static long countEntities(final ITrip trip) {
+		if (!(trip instanceof PurseSeineTrip) || null == ((PurseSeineTrip)trip).getFishingDays()) { return 0L; }
+		long count = 0L;
+		for (final FishingDay day : ((PurseSeineTrip)trip).getFishingDays()) {
+			count++;
+			if (null == day || null == day.getActivities()) { continue; }
+			for (final DayLog dl : day.getActivities()) {
+				if (null != dl && null != dl.getS_act_id() && 1 == dl.getS_act_id().intValue()) { count++; }
+			}
+		}
+		return count;
+	}
+	
 	private LongLineTrip processLongLine(final long tripId) {	
 		LOGGER.debug(String.format("ObserverTripProcessor thinks tripId={%s} is a Long Line trip", tripId));
 		return null;
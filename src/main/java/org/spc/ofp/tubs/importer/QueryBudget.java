@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * QueryBudget holds upper bounds on the SQL a trip import may issue and checks
+ * a RunReport against them.  It exists to catch N+1 regressions in the mappings,
+ * e.g. a new lookup per SetCatch row, before they reach a production run.
+ * ImportStatementCountTest pins the exact counts for fixed fixture trips;  this
+ * is the looser check for real trips, against scratch copies of the databases.
+ *
+ * Bounds are fixed per trip plus a per-entity allowance.  The defaults leave
+ * room for one insert per entity and a handful of lookups per trip.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class QueryBudget {
+
+	public static final int DEFAULT_SOURCE_PER_TRIP = 50;
+	public static final double DEFAULT_SOURCE_PER_ENTITY = 1.0;
+	public static final int DEFAULT_TARGET_PER_TRIP = 50;
+	public static final double DEFAULT_TARGET_PER_ENTITY = 1.5;
+
+	private int sourcePerTrip = DEFAULT_SOURCE_PER_TRIP;
+	private double sourcePerEntity = DEFAULT_SOURCE_PER_ENTITY;
+	private int targetPerTrip = DEFAULT_TARGET_PER_TRIP;
+	private double targetPerEntity = DEFAULT_TARGET_PER_ENTITY;
+
+	public static QueryBudget fromOptions(final ImporterOptions options) {
+		final QueryBudget budget = new QueryBudget();
+		budget.sourcePerTrip = options.getInt("max-source-sql-per-trip", DEFAULT_SOURCE_PER_TRIP);
+		budget.sourcePerEntity = Double.parseDouble(
+		    options.getString("max-source-sql-per-entity", Double.toString(DEFAULT_SOURCE_PER_ENTITY)));
+		budget.targetPerTrip = options.getInt("max-target-sql-per-trip", DEFAULT_TARGET_PER_TRIP);
+		budget.targetPerEntity = Double.parseDouble(
+		    options.getString("max-target-sql-per-entity", Double.toString(DEFAULT_TARGET_PER_ENTITY)));
+		return budget;
+	}
+
+	public long sourceLimit(final long entities) {
+		return sourcePerTrip + (long)Math.ceil(sourcePerEntity * entities);
+	}
+
+	public long targetLimit(final long entities) {
+		return targetPerTrip + (long)Math.ceil(targetPerEntity * entities);
+	}
+
+	/**
+	 * @param report
+	 * @return One message per trip that went over budget; empty if all is well
+	 */
+	public List<String> check(final RunReport report) {
+		final List<String> violations = new ArrayList<String>();
+		for (final TripMetrics m : report.getTrips()) {
+			// Only a trip that made it all the way through has meaningful counts
+			if (!"S".equalsIgnoreCase(m.getStatus())) { continue; }
+			if (m.getSourceStatements() > sourceLimit(m.getEntities())) {
+				violations.add(String.format("Trip %s: %d source statements for %d entities (limit %d)",
+				    m.getSourceId(), m.getSourceStatements(), m.getEntities(), sourceLimit(m.getEntities())));
+			}
+			if (m.getTargetStatements() > targetLimit(m.getEntities())) {
+				violations.add(String.format("Trip %s: %d target statements for %d entities (limit %d)",
+				    m.getSourceId(), m.getTargetStatements(), m.getEntities(), targetLimit(m.getEntities())));
+			}
+		}
+		return violations;
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.spc.ofp.tubs.importer.TripFingerprint.Section;
+
+/**
+ * ReconciliationReport collects the outcome of comparing source and target
+ * fingerprints.  Trips that couldn't be compared at all (the source wouldn't
+ * load or convert, or the target is gone) are kept apart from the ones that
+ * differ.  Instances are filled from several worker threads.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class ReconciliationReport {
+
+	public static class Mismatch {
+		private final String sourceId;
+		private final Long tripId;
+		private final String details;
+
+		Mismatch(final String sourceId, final Long tripId, final String details) {
+			this.sourceId = sourceId;
+			this.tripId = tripId;
+			this.details = details;
+		}
+
+		public String getSourceId() { return sourceId; }
+		public Long getTripId() { return tripId; }
+		public String getDetails() { return details; }
+
+		@Override
+		public String toString() {
+			return String.format("sourceId=%s tripId=%s: %s", sourceId, tripId, details);
+		}
+	}
+
+	private final List<Mismatch> mismatches = new ArrayList<Mismatch>();
+	private final List<Mismatch> failures = new ArrayList<Mismatch>();
+	private int matched;
+	private int notImported;
+
+	synchronized void matched() {
+		matched++;
+	}
+
+	synchronized void notImported() {
+		notImported++;
+	}
+
+	synchronized void mismatch(
+	    final String sourceId, final Long tripId, final Set<Section> sections,
+	    final TripFingerprint source, final TripFingerprint target) {
+		final StringBuilder sb = new StringBuilder();
+		for (final Section section : sections) {
+			if (sb.length() > 0) { sb.append(", "); }
+			sb.append(String.format("%s (source=%d, target=%d)",
+			    section, source.getCount(section), target.getCount(section)));
+		}
+		mismatches.add(new Mismatch(sourceId, tripId, sb.toString()));
+	}
+
+	synchronized void failed(final String sourceId, final Long tripId, final String reason) {
+		failures.add(new Mismatch(sourceId, tripId, reason));
+	}
+
+	public synchronized int getMatched() {
+		return matched;
+	}
+
+	public synchronized int getNotImported() {
+		return notImported;
+	}
+
+	public synchronized List<Mismatch> getMismatches() {
+		return Collections.unmodifiableList(new ArrayList<Mismatch>(mismatches));
+	}
+
+	/**
+	 * @return The trips that weren't compared, with the reason as the details
+	 */
+	public synchronized List<Mismatch> getFailures() {
+		return Collections.unmodifiableList(new ArrayList<Mismatch>(failures));
+	}
+
+	@Override
+	public synchronized String toString() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Reconciliation: %d matched, %d differ, %d failed, %d not imported%n",
+		    matched, mismatches.size(), failures.size(), notImported));
+		for (final Mismatch mismatch : mismatches) {
+			sb.append("  ").append(mismatch).append(String.format("%n"));
+		}
+		for (final Mismatch failure : failures) {
+			sb.append("  not compared: ").append(failure).append(String.format("%n"));
+		}
+		return sb.toString();
+	}
+}
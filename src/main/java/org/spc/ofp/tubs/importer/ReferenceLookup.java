@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+
+import org.spc.ofp.tubs.domain.common.CommonRepository;
+import org.spc.ofp.tubs.domain.common.Condition;
+import org.spc.ofp.tubs.domain.common.Fate;
+import org.spc.ofp.tubs.domain.common.ReferenceId;
+import org.spc.ofp.tubs.domain.common.SeaState;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.collect.Lists;
+
+/**
+ * ReferenceLookup is a thread safe, read-through cache in front of the
+ * CommonRepository code table lookups used while mapping a trip:  reference
+ * values, sea states, and catch conditions and fates.
+ *
+ * Code tables don't change during a run, so each value is fetched at most
+ * once (give or take a race between two threads, which is harmless).  Misses
+ * aren't cached so that a bad code keeps showing up in the logs.
+ *
+ * With IDs only turned on, reference values are never read at all:  the IDs
+ * DataCleaner hands out are only ever used as foreign keys, so a detached
+ * ReferenceId with just its ID set does the job without a SELECT.  These
+ * holders belong to no EntityManager and are shared between threads, so they
+ * must not be modified;  their description is always null.  Call
+ * validateReferenceIds() once at startup, since a bad ID would otherwise only
+ * surface as a constraint violation on save.
+ *
+ * ReferenceId keys are Integers, as in the mapping;  a long ID that doesn't
+ * fit is rejected rather than truncated.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class ReferenceLookup {
+
+	@Autowired
+	protected CommonRepository repo;
+
+	@PersistenceUnit(unitName = "tubs")
+	protected EntityManagerFactory tubsEmf;
+
+	private static final String EXISTING_IDS_JPQL = "SELECT r.id FROM ReferenceId r WHERE r.id IN (:ids)";
+	// Stay well under the SQL Server limit of 2100 parameters
+	private static final int IN_LIST_SIZE = 1000;
+
+	private volatile boolean idsOnly;
+
+	private final ConcurrentMap<Integer, ReferenceId> referenceValues = new ConcurrentHashMap<Integer, ReferenceId>();
+	private final ConcurrentMap<String, SeaState> seaStates = new ConcurrentHashMap<String, SeaState>();
+	private final ConcurrentMap<String, Condition> conditions = new ConcurrentHashMap<String, Condition>();
+	private final ConcurrentMap<String, Fate> fates = new ConcurrentHashMap<String, Fate>();
+
+	public void setIdsOnly(final boolean value) {
+		if (value != idsOnly) { referenceValues.clear(); }
+		this.idsOnly = value;
+	}
+
+	/**
+	 * @param id
+	 * @return The reference value, or null if there is none
+	 * @throws IllegalArgumentException if id is out of the range of a ReferenceId
+	 */
+	public ReferenceId findReferenceValueById(final long id) {
+		final Integer key = toKey(id);
+		ReferenceId value = referenceValues.get(key);
+		if (null == value) {
+			value = idsOnly ? holderFor(key) : repo.findReferenceValueById(id);
+			if (null != value) { referenceValues.putIfAbsent(key, value); }
+		}
+		return value;
+	}
+
+	private static Integer toKey(final long id) {
+		if (id < 0 || id > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Not a ReferenceId: " + id);
+		}
+		return Integer.valueOf((int)id);
+	}
+
+	private static ReferenceId holderFor(final Integer id) {
+		final ReferenceId value = new ReferenceId();
+		value.setId(id);
+		return value;
+	}
+
+	/**
+	 * Checks that every ID exists in the reference table, in a handful of queries.
+	 * @param ids
+	 * @throws IllegalStateException listing the IDs that don't exist
+	 */
+	public void validateReferenceIds(final Collection<Integer> ids) {
+		final Set<Integer> missing = new TreeSet<Integer>(ids);
+		final EntityManager em = tubsEmf.createEntityManager();
+		try {
+			for (final List<Integer> chunk : Lists.partition(new ArrayList<Integer>(missing), IN_LIST_SIZE)) {
+				final List<Integer> found = em.createQuery(EXISTING_IDS_JPQL, Integer.class)
+				    .setParameter("ids", new ArrayList<Integer>(chunk))
+				    .getResultList();
+				missing.removeAll(found);
+			}
+		} finally {
+			em.close();
+		}
+		if (!missing.isEmpty()) {
+			throw new IllegalStateException("Reference values missing from TUBS: " + missing);
+		}
+	}
+
+	public SeaState findSeaStateByCode(final String code) {
+		SeaState value = seaStates.get(code);
+		if (null == value) {
+			value = repo.findSeaStateByCode(code);
+			if (null != value) { seaStates.putIfAbsent(code, value); }
+		}
+		return value;
+	}
+
+	public Condition findConditionByCode(final String code) {
+		Condition value = conditions.get(code);
+		if (null == value) {
+			value = repo.findConditionByCode(code);
+			if (null != value) { conditions.putIfAbsent(code, value); }
+		}
+		return value;
+	}
+
+	public Fate findFateByCode(final String code) {
+		Fate value = fates.get(code);
+		if (null == value) {
+			value = repo.findFateByCode(code);
+			if (null != value) { fates.putIfAbsent(code, value); }
+		}
+		return value;
+	}
+
+	public void clear() {
+		referenceValues.clear();
+		seaStates.clear();
+		conditions.clear();
+		fates.clear();
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+
+/**
+ * ResourceAccounting measures what each trip costs:  wall time, thread CPU time,
+ * bytes allocated by the thread and the number of SQL statements prepared on
+ * the observer and TUBS sides.  Every finished trip goes into the RunReport.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class ResourceAccounting {
+
+	@PersistenceUnit(unitName = "observer")
+	protected EntityManagerFactory observerEmf;
+
+	@PersistenceUnit(unitName = "tubs")
+	protected EntityManagerFactory tubsEmf;
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final RunReport report = new RunReport();
+	private Statistics sourceStats;
+	private Statistics targetStats;
+	private boolean cpuSupported;
+	private boolean allocationSupported;
+
+	@PostConstruct
+	public void init() {
+		sourceStats = statisticsFor(observerEmf);
+		targetStats = statisticsFor(tubsEmf);
+
+		cpuSupported = threads.isCurrentThreadCpuTimeSupported();
+		if (cpuSupported && !threads.isThreadCpuTimeEnabled()) {
+			threads.setThreadCpuTimeEnabled(true);
+		}
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			final com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean)threads;
+			allocationSupported = sunThreads.isThreadAllocatedMemorySupported();
+			if (allocationSupported && !sunThreads.isThreadAllocatedMemoryEnabled()) {
+				sunThreads.setThreadAllocatedMemoryEnabled(true);
+			}
+		}
+	}
+
+	private static Statistics statisticsFor(final EntityManagerFactory emf) {
+		if (!(emf instanceof HibernateEntityManagerFactory)) { return null; }
+		final Statistics stats = ((HibernateEntityManagerFactory)emf).getSessionFactory().getStatistics();
+		stats.setStatisticsEnabled(true);
+		return stats;
+	}
+
+	public RunReport getReport() {
+		return report;
+	}
+
+	/**
+	 * Starts measuring a trip on the current thread.  If the trip moves to another
+	 * thread part way through, call handOff() on the old thread before it goes.
+	 * @param sourceId
+	 * @return
+	 */
+	public TripMeter start(final String sourceId) {
+		return new TripMeter(sourceId);
+	}
+
+	long cpuNanos() {
+		return cpuSupported ? threads.getCurrentThreadCpuTime() : -1L;
+	}
+
+	long allocatedBytes() {
+		return allocationSupported ?
+		    ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId()) :
+		    -1L;
+	}
+
+	static long statements(final Statistics stats) {
+		return null == stats ? -1L : stats.getPrepareStatementCount();
+	}
+
+	public class TripMeter {
+		private final String sourceId;
+		private final long startNanos = System.nanoTime();
+		private final long startSource = statements(sourceStats);
+		private final long startTarget = statements(targetStats);
+		private final Map<ImportStage, Long> stageNanos = new EnumMap<ImportStage, Long>(ImportStage.class);
+		private ImportStage stage;
+		private long stageStart;
+		private long entities;
+		// CPU and allocation are per thread, so they're added up a thread at a time
+		private Thread thread;
+		private long segmentCpu;
+		private long segmentAllocated;
+		private long cpu;
+		private long allocated;
+
+		TripMeter(final String sourceId) {
+			this.sourceId = sourceId;
+			resume();
+		}
+
+		private void resume() {
+			thread = Thread.currentThread();
+			segmentCpu = cpuNanos();
+			segmentAllocated = allocatedBytes();
+		}
+
+		private void accumulate() {
+			if (Thread.currentThread() == thread) {
+				cpu += cpuNanos() - segmentCpu;
+				allocated += allocatedBytes() - segmentAllocated;
+			}
+			// A trip picked up on a new thread starts a fresh segment there
+			resume();
+		}
+
+		/**
+		 * Ends the current stage and stops charging this thread for the trip.
+		 * The next call to stage() or finish() may come from any thread.
+		 */
+		public void handOff() {
+			accumulate();
+			endStage(System.nanoTime());
+			thread = null;
+		}
+
+		/**
+		 * Ends the current stage (if any) and starts timing the next one.
+		 * @param next
+		 */
+		public void stage(final ImportStage next) {
+			accumulate();
+			final long now = System.nanoTime();
+			endStage(now);
+			stage = next;
+			stageStart = now;
+		}
+
+		/**
+		 * Records the size of the converted trip, so statement counts can be judged per entity.
+		 * @param count
+		 */
+		public void entities(final long count) {
+			this.entities = count;
+		}
+
+		private void endStage(final long now) {
+			if (null == stage) { return; }
+			final Long previous = stageNanos.get(stage);
+			stageNanos.put(stage, (null == previous ? 0L : previous.longValue()) + (now - stageStart));
+			stage = null;
+		}
+
+		/**
+		 * Stops the meter and records the trip in the run report.
+		 * @param status The ImportStatus status the trip ended with
+		 * @return
+		 */
+		public TripMetrics finish(final String status) {
+			accumulate();
+			final long now = System.nanoTime();
+			endStage(now);
+			final TripMetrics metrics = new TripMetrics(
+			    sourceId, status,
+			    now - startNanos,
+			    cpuSupported ? cpu : -1L,
+			    allocationSupported ? allocated : -1L,
+			    null == sourceStats ? -1L : statements(sourceStats) - startSource,
+			    null == targetStats ? -1L : statements(targetStats) - startTarget,
+			    entities,
+			    stageNanos);
+			report.add(metrics);
+			return metrics;
+		}
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RunEstimate projects how long a full run will take, and how much heap it
+ * needs, from a sample of its trips.
+ *
+ * The trips are split into strata of equal count by their estimated size (see
+ * TripSizeEstimator), and the sample is drawn at random from each stratum in
+ * proportion to its count, at least one trip per stratum.  The projected work
+ * is then the sum over strata of (trips in stratum x mean time of its sampled
+ * trips), which copes with the long tail of big trips far better than a plain
+ * mean would.
+ *
+ * The wall clock projection assumes the work spreads evenly over the workers,
+ * but never comes in under the slowest sampled trip.  The heap projection
+ * assumes each worker needs as much as the sample run did on top of the heap
+ * in use before it started.  Both are estimates for planning, nothing more.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class RunEstimate {
+
+	public static final int DEFAULT_STRATA = 4;
+
+	private final int population;
+	private final List<Stratum> strata;
+	private final int concurrency;
+	private long baselineHeapBytes;
+	private long peakHeapBytes;
+	private long sampleNanos;
+	private long startNanos;
+
+	private static class Stratum {
+		final int count;
+		final long minSize;
+		final long maxSize;
+		final List<Long> sample;
+		final List<TripMetrics> metrics = new ArrayList<TripMetrics>();
+
+		Stratum(final int count, final long minSize, final long maxSize, final List<Long> sample) {
+			this.count = count;
+			this.minSize = minSize;
+			this.maxSize = maxSize;
+			this.sample = sample;
+		}
+
+		long meanNanos(final ImportStage stage) {
+			if (metrics.isEmpty()) { return 0L; }
+			long total = 0L;
+			for (final TripMetrics m : metrics) {
+				total += null == stage ? m.getWallNanos() : m.getStageNanos(stage);
+			}
+			return total / metrics.size();
+		}
+	}
+
+	private RunEstimate(final int population, final List<Stratum> strata, final int concurrency) {
+		this.population = population;
+		this.strata = strata;
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	 * Picks the sample.
+	 * @param tripIds Every trip in the run
+	 * @param sizes Estimated size by trip ID; trips left out count as size 0
+	 * @param sampleSize Trips to sample in total
+	 * @param strataCount
+	 * @param concurrency Workers the full run will have
+	 * @param random
+	 */
+	public static RunEstimate sample(final List<Long> tripIds, final Map<Long, Long> sizes,
+	    final int sampleSize, final int strataCount, final int concurrency, final Random random) {
+		final List<Long> ordered = new ArrayList<Long>(tripIds);
+		Collections.sort(ordered, new Comparator<Long>() {
+			public int compare(final Long a, final Long b) {
+				return RunReport.compareLongs(sizeOf(sizes, a), sizeOf(sizes, b));
+			}
+		});
+		final int n = ordered.size();
+		final int buckets = Math.max(1, Math.min(strataCount, n));
+		final List<Stratum> strata = new ArrayList<Stratum>(buckets);
+		for (int b = 0; b < buckets; b++) {
+			final List<Long> members = ordered.subList(b * n / buckets, (b + 1) * n / buckets);
+			if (members.isEmpty()) { continue; }
+			// Proportional allocation, but every stratum gets looked at
+			final int wanted = Math.max(1, (int)Math.round((double)sampleSize * members.size() / Math.max(1, n)));
+			final List<Long> shuffled = new ArrayList<Long>(members);
+			Collections.shuffle(shuffled, random);
+			strata.add(new Stratum(
+			    members.size(),
+			    sizeOf(sizes, members.get(0)),
+			    sizeOf(sizes, members.get(members.size() - 1)),
+			    new ArrayList<Long>(shuffled.subList(0, Math.min(wanted, shuffled.size())))));
+		}
+		return new RunEstimate(n, strata, concurrency);
+	}
+
+	private static long sizeOf(final Map<Long, Long> sizes, final Long tripId) {
+		final Long size = sizes.get(tripId);
+		return null == size ? 0L : size.longValue();
+	}
+
+	/**
+	 * @return The sampled trip IDs, smallest stratum first
+	 */
+	public List<Long> getSample() {
+		final List<Long> sample = new ArrayList<Long>();
+		for (final Stratum stratum : strata) {
+			sample.addAll(stratum.sample);
+		}
+		return sample;
+	}
+
+	public void start() {
+		final Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		baselineHeapBytes = runtime.totalMemory() - runtime.freeMemory();
+		LoadTestReport.resetPeakHeap();
+		startNanos = System.nanoTime();
+	}
+
+	public void finish(final RunReport report) {
+		sampleNanos = System.nanoTime() - startNanos;
+		peakHeapBytes = LoadTestReport.peakHeapBytes();
+		final Map<String, TripMetrics> bySourceId = new HashMap<String, TripMetrics>();
+		for (final TripMetrics m : report.getTrips()) {
+			bySourceId.put(m.getSourceId(), m);
+		}
+		for (final Stratum stratum : strata) {
+			stratum.metrics.clear();
+			for (final Long tripId : stratum.sample) {
+				final TripMetrics m = bySourceId.get(Integer.toString(tripId.intValue()));
+				if (null != m && "S".equalsIgnoreCase(m.getStatus())) { stratum.metrics.add(m); }
+			}
+		}
+	}
+
+	/**
+	 * @param stage null for the whole trip
+	 * @return Projected total work for every trip in the run
+	 */
+	public long projectedWorkNanos(final ImportStage stage) {
+		// A stratum with no successful samples is assumed to be like the rest
+		long measuredNanos = 0L;
+		int measured = 0;
+		for (final Stratum stratum : strata) {
+			measuredNanos += stratum.metrics.size() * stratum.meanNanos(stage);
+			measured += stratum.metrics.size();
+		}
+		final long fallback = 0 == measured ? 0L : measuredNanos / measured;
+		long total = 0L;
+		for (final Stratum stratum : strata) {
+			total += stratum.count * (stratum.metrics.isEmpty() ? fallback : stratum.meanNanos(stage));
+		}
+		return total;
+	}
+
+	public long projectedWallNanos() {
+		long slowest = 0L;
+		for (final Stratum stratum : strata) {
+			for (final TripMetrics m : stratum.metrics) {
+				slowest = Math.max(slowest, m.getWallNanos());
+			}
+		}
+		return Math.max(projectedWorkNanos(null) / concurrency, slowest);
+	}
+
+	public long projectedPeakHeapBytes() {
+		return baselineHeapBytes + concurrency * Math.max(0L, peakHeapBytes - baselineHeapBytes);
+	}
+
+	@Override
+	public String toString() {
+		int measured = 0;
+		for (final Stratum stratum : strata) {
+			measured += stratum.metrics.size();
+		}
+		final StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Estimate: %d trips, %d sampled (%d succeeded) in %.1fs%n",
+		    population, getSample().size(), measured, sampleNanos / 1.0e9));
+		for (final Stratum stratum : strata) {
+			sb.append(String.format("  size %d-%d: %d trips, %d sampled, mean %dms%n",
+			    stratum.minSize, stratum.maxSize, stratum.count, stratum.metrics.size(),
+			    TimeUnit.NANOSECONDS.toMillis(stratum.meanNanos(null))));
+		}
+		for (final ImportStage stage : ImportStage.values()) {
+			final long nanos = projectedWorkNanos(stage);
+			if (nanos > 0L) {
+				sb.append(String.format("  %-12s %s%n", stage.name().toLowerCase(), hours(nanos)));
+			}
+		}
+		sb.append(String.format("Projected: %s of work, %s wall clock with %d worker(s), peak heap ~%dMB%n",
+		    hours(projectedWorkNanos(null)), hours(projectedWallNanos()), concurrency,
+		    projectedPeakHeapBytes() / (1024L * 1024L)));
+		return sb.toString();
+	}
+
+	private static String hours(final long nanos) {
+		final long minutes = TimeUnit.NANOSECONDS.toMinutes(nanos);
+		return String.format("%dh%02dm", minutes / 60L, minutes % 60L);
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RunReport collects TripMetrics for every trip a run touched and summarizes
+ * them, calling out the most expensive trips by time, memory and SQL.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class RunReport {
+
+	private static final int TOP_N = 10;
+
+	private final List<TripMetrics> trips = new ArrayList<TripMetrics>();
+
+	public synchronized void add(final TripMetrics metrics) {
+		trips.add(metrics);
+	}
+
+	public synchronized List<TripMetrics> getTrips() {
+		return Collections.unmodifiableList(new ArrayList<TripMetrics>(trips));
+	}
+
+	public synchronized void clear() {
+		trips.clear();
+	}
+
+	@Override
+	public String toString() {
+		final List<TripMetrics> all = getTrips();
+		long wall = 0, cpu = 0, allocated = 0, source = 0, target = 0;
+		for (final TripMetrics m : all) {
+			wall += m.getWallNanos();
+			cpu += Math.max(0L, m.getCpuNanos());
+			allocated += Math.max(0L, m.getAllocatedBytes());
+			source += Math.max(0L, m.getSourceStatements());
+			target += Math.max(0L, m.getTargetStatements());
+		}
+
+		final StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Run report: %d trips, wall=%ds cpu=%ds alloc=%dMB sourceSql=%d targetSql=%d%n",
+		    all.size(),
+		    TimeUnit.NANOSECONDS.toSeconds(wall),
+		    TimeUnit.NANOSECONDS.toSeconds(cpu),
+		    allocated / (1024L * 1024L),
+		    source,
+		    target));
+		appendTop(sb, "wall time", all, new Comparator<TripMetrics>() {
+			public int compare(final TripMetrics a, final TripMetrics b) {
+				return compareLongs(b.getWallNanos(), a.getWallNanos());
+			}
+		});
+		appendTop(sb, "allocated bytes", all, new Comparator<TripMetrics>() {
+			public int compare(final TripMetrics a, final TripMetrics b) {
+				return compareLongs(b.getAllocatedBytes(), a.getAllocatedBytes());
+			}
+		});
+		appendTop(sb, "SQL statements", all, new Comparator<TripMetrics>() {
+			public int compare(final TripMetrics a, final TripMetrics b) {
+				return compareLongs(
+				    b.getSourceStatements() + b.getTargetStatements(),
+				    a.getSourceStatements() + a.getTargetStatements());
+			}
+		});
+		return sb.toString();
+	}
+
+	private static void appendTop(
+	    final StringBuilder sb, final String title, final List<TripMetrics> all, final Comparator<TripMetrics> order) {
+		final List<TripMetrics> sorted = new ArrayList<TripMetrics>(all);
+		Collections.sort(sorted, order);
+		sb.append(String.format("Top trips by %s:%n", title));
+		for (final TripMetrics m : sorted.subList(0, Math.min(TOP_N, sorted.size()))) {
+			sb.append("  ").append(m).append(String.format("%n"));
+		}
+	}
+
+	static int compareLongs(final long a, final long b) {
+		return a < b ? -1 : a > b ? 1 : 0;
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Resource;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import javax.sql.DataSource;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spc.ofp.tubs.domain.ImportStatus;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.collect.Lists;
+
+/**
+ * RunRollback removes everything an import run (or a range of source trips)
+ * put in TUBS, and resets their ImportStatus so that they are imported again
+ * on the next run.
+ *
+ * Removing trips one at a time through JPA cascades loads every row of every
+ * graph first.  Here each level of the graph goes in one set-based DELETE per
+ * batch of trips instead, children first, as listed in sql/rollback_trips.sql.
+ * Each batch is one JDBC transaction, which also resets the batch's
+ * ImportStatus rows and puts their import_lease rows (if there is a lease
+ * table) back to pending, so that distributed runs pick the trips up again.
+ * A batch is either rolled back completely or not at all, so a failed
+ * rollback can simply be rerun.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class RunRollback {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RunRollback.class);
+
+	private static final String DELETE_SCRIPT = "/sql/rollback_trips.sql";
+
+	/** ImportStatus for trips that were imported and then rolled back */
+	public static final String ROLLED_BACK = "R";
+
+	private static final String IMPORTED_JPQL =
+	    "SELECT s.sourceId, s.tripId, s.comments FROM ImportStatus s " +
+	    "WHERE s.sourceName = :sourceName AND s.status = 'S' AND s.tripId IS NOT NULL";
+
+	// Narrows the rows down;  the run ID is then matched exactly, see findImported()
+	private static final String RUN_FILTER = " AND s.comments LIKE :runNote";
+
+	private static final String LEASE_CHECK_SQL = "SELECT COUNT(*) FROM import_lease WHERE 1 = 0";
+
+	// Stay well under the SQL Server limit of 2100 parameters
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	@PersistenceUnit(unitName = "tubs")
+	protected EntityManagerFactory tubsEmf;
+
+	@Resource(name = "TubsMappings")
+	protected TubsMappings mappings;
+
+	private NamedParameterJdbcTemplate jdbc;
+	private TransactionTemplate transactions;
+	private List<String> deleteStatements;
+	private List<String> resetStatements;
+
+	@Resource(name = "tubs.DataSource")
+	public void setDataSource(final DataSource dataSource) {
+		this.jdbc = new NamedParameterJdbcTemplate(dataSource);
+		this.transactions = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+	}
+
+	/**
+	 * @param sourceName
+	 * @param runId As written to the ImportStatus comments by CopyFromObserver
+	 * @return TUBS trip IDs imported by that run
+	 */
+	public List<Long> findByRun(final String sourceName, final String runId) {
+		return findImported(sourceName, runId, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param sourceName
+	 * @return TUBS trip IDs of every trip imported from the source
+	 */
+	public List<Long> findBySource(final String sourceName) {
+		return findImported(sourceName, null, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param sourceName
+	 * @param from First source trip ID, inclusive
+	 * @param to Last source trip ID, inclusive
+	 * @return TUBS trip IDs imported from source trips in the range
+	 */
+	public List<Long> findBySourceRange(final String sourceName, final long from, final long to) {
+		return findImported(sourceName, null, from, to);
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Long> findImported(final String sourceName, final String runId, final long from, final long to) {
+		final List<Object[]> rows;
+		final EntityManager em = tubsEmf.createEntityManager();
+		try {
+			final javax.persistence.Query query = em.createQuery(IMPORTED_JPQL + (null == runId ? "" : RUN_FILTER));
+			query.setParameter("sourceName", sourceName);
+			if (null != runId) {
+				query.setParameter("runNote", "%" + ImportStatusNotes.RUN_ID + ": " + runId + "%");
+			}
+			rows = query.getResultList();
+		} finally {
+			em.close();
+		}
+		// Source IDs are strings, so the range is applied here rather than in JPQL
+		final List<Long> tripIds = new ArrayList<Long>(rows.size());
+		for (final Object[] row : rows) {
+			// LIKE also matches runs whose IDs start with this one
+			if (null != runId && !runId.equals(runOf((String)row[2]))) { continue; }
+			final Long sourceId = parseId((String)row[0]);
+			if (null != sourceId && sourceId.longValue() >= from && sourceId.longValue() <= to) {
+				tripIds.add(((Number)row[1]).longValue());
+			}
+		}
+		Collections.sort(tripIds);
+		return tripIds;
+	}
+
+	private static String runOf(final String comments) {
+		final ImportStatus status = new ImportStatus();
+		status.setComments(comments);
+		return ImportStatusNotes.get(status, ImportStatusNotes.RUN_ID);
+	}
+
+	private static Long parseId(final String id) {
+		try {
+			return null == id ? null : Long.valueOf(id.trim());
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Deletes the trips and resets their ImportStatus, batchSize trips at a time.
+	 * @param sourceName
+	 * @param tripIds TUBS trip IDs
+	 * @param batchSize
+	 * @return The number of trips rolled back
+	 */
+	public int rollback(final String sourceName, final List<Long> tripIds, final int batchSize) throws IOException {
+		// ImportStatus has to be reset first:  the lease reset finds its rows by trip ID
+		final List<String> statements = new ArrayList<String>(getResetStatements());
+		statements.addAll(getDeleteStatements());
+		int done = 0;
+		for (final List<Long> batch : Lists.partition(tripIds, Math.max(1, batchSize))) {
+			final MapSqlParameterSource params = new MapSqlParameterSource("tripIds", new ArrayList<Long>(batch))
+			    .addValue("sourceName", sourceName);
+			transactions.execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(final TransactionStatus status) {
+					for (final String sql : statements) {
+						jdbc.update(sql, params);
+					}
+				}
+			});
+			done += batch.size();
+			LOGGER.info(String.format("Rolled back %d of %d trips", done, tripIds.size()));
+		}
+		return done;
+	}
+
+	/**
+	 * @return The import_lease reset (if there is a lease table) and then the
+	 * ImportStatus reset, with the ImportStatus names taken from its mapping
+	 */
+	private synchronized List<String> getResetStatements() {
+		if (null == resetStatements) {
+			final String table = mappings.getTable(ImportStatus.class);
+			final String sourceId = mappings.getColumn(ImportStatus.class, "sourceId");
+			final String sourceName = mappings.getColumn(ImportStatus.class, "sourceName");
+			final String status = mappings.getColumn(ImportStatus.class, "status");
+			final String tripId = mappings.getColumn(ImportStatus.class, "tripId");
+			final String imported = String.format("%s = :sourceName AND %s = 'S' AND %s IN (:tripIds)",
+			    sourceName, status, tripId);
+			final List<String> statements = new ArrayList<String>();
+			if (hasLeaseTable()) {
+				statements.add(String.format(
+				    "UPDATE import_lease SET state = 'P', owner = NULL, lease_expires = NULL, attempts = 0 " +
+				    "WHERE source_name = :sourceName AND state = 'D' AND source_id IN (SELECT %s FROM %s WHERE %s)",
+				    sourceId, table, imported));
+			}
+			statements.add(String.format("UPDATE %s SET %s = '%s', %s = NULL WHERE %s",
+			    table, status, ROLLED_BACK, tripId, imported));
+			resetStatements = Collections.unmodifiableList(statements);
+		}
+		return resetStatements;
+	}
+
+	private boolean hasLeaseTable() {
+		try {
+			jdbc.getJdbcOperations().queryForInt(LEASE_CHECK_SQL);
+			return true;
+		} catch (DataAccessException ex) {
+			LOGGER.debug("No import_lease table, leases won't be reset");
+			return false;
+		}
+	}
+
+	private synchronized List<String> getDeleteStatements() throws IOException {
+		if (null == deleteStatements) {
+			final InputStream in = RunRollback.class.getResourceAsStream(DELETE_SCRIPT);
+			if (null == in) {
+				throw new IOException("Missing " + DELETE_SCRIPT);
+			}
+			try {
+				final List<String> statements = parseScript(IOUtils.readLines(in, "UTF-8"));
+				mappings.checkTables(DELETE_SCRIPT, statements);
+				deleteStatements = statements;
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+		}
+		return deleteStatements;
+	}
+
+	/**
+	 * @param lines
+	 * @return The statements, without comments or the trailing semicolons
+	 */
+	static List<String> parseScript(final List<String> lines) {
+		final List<String> statements = new ArrayList<String>();
+		final StringBuilder current = new StringBuilder();
+		for (final String line : lines) {
+			final String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("--")) { continue; }
+			if (current.length() > 0) { current.append(' '); }
+			if (trimmed.endsWith(";")) {
+				current.append(trimmed.substring(0, trimmed.length() - 1));
+				statements.add(current.toString());
+				current.setLength(0);
+			} else {
+				current.append(trimmed);
+			}
+		}
+		if (current.length() > 0) { statements.add(current.toString()); }
+		return Collections.unmodifiableList(statements);
+	}
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.spc.ofp.observer.domain.FishTransfer;
+import org.spc.ofp.observer.domain.Gen3;
+import org.spc.ofp.observer.domain.Gen6Detail;
+import org.spc.ofp.observer.domain.Gen6Header;
+import org.spc.ofp.observer.domain.ITrip;
+import org.spc.ofp.observer.domain.VesselSighting;
+import org.spc.ofp.observer.domain.purseseine.DayLog;
+import org.spc.ofp.observer.domain.purseseine.FishingDay;
+import org.spc.ofp.observer.domain.purseseine.LengthFrequencyDetail;
+import org.spc.ofp.observer.domain.purseseine.LengthFrequencyHeader;
+import org.spc.ofp.observer.domain.purseseine.PurseSeineTrip;
+import org.spc.ofp.observer.domain.purseseine.SetCatch;
+
+/**
+ * SourceTripHasher computes a content hash over an observer trip graph.
+ *
+ * Only fields that TubsTripProcessor copies are included, so a change to an
+ * unmapped column doesn't trigger a re-import.  Child collections are hashed
+ * without regard to order.  If the mappings in TubsTripProcessor change, bump
+ * VERSION so that every trip is seen as changed.
+ *
+ * The hash can be computed from a loaded graph or, for purse seine trips,
+ * straight from the database with hash(EntityManager, long).  That runs a
+ * fixed number of narrow projection queries per trip instead of loading the
+ * graph, so checking unchanged trips stays cheap.  Both give the same hash:
+ * each query selects the parent ID, its own ID and then the same columns in
+ * the same order as the matching hashXxx method, so keep them in step.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class SourceTripHasher {
+
+	public static final String VERSION = "1";
+
+	private static final String TRIP_JPQL =
+	    "SELECT t.gearType, t.programId, t.observerId, t.tripNumber, t.departureDate, dp.id, " +
+	    "t.returnDate, rp.id, b.id " +
+	    "FROM PurseSeineTrip t LEFT JOIN t.departurePort dp LEFT JOIN t.returnPort rp LEFT JOIN t.boat b " +
+	    "WHERE t.id = :tripId";
+
+	private static final String SIGHTINGS_JPQL =
+	    "SELECT t.id, vs.id, vs.date, vs.time, vs.latitude, vs.longitude, vs.ez_id, " +
+	    "vs.bearing, vs.distance, vs.dist_unit, " +
+	    "vs.s_callsign, vs.s_name, vs.s_flag, vs.comment, vs.photo_no " +
+	    "FROM PurseSeineTrip t JOIN t.vesselSightings vs WHERE t.id = :tripId";
+
+	private static final String TRANSFERS_JPQL =
+	    "SELECT t.id, x.id, x.date, x.time, x.latitude, x.longitude, " +
+	    "x.r_name, x.r_flag, x.r_callsign, " +
+	    "x.skj_c, x.yft_c, x.bet_c, x.mix_c, x.comment " +
+	    "FROM PurseSeineTrip t JOIN t.fishTransfers x WHERE t.id = :tripId";
+
+	private static final String GEN3_JPQL =
+	    "SELECT t.id, g.id, g.q1, g.q2, g.q3, g.q4, g.q5, " +
+	    "g.q6, g.q7, g.q8, g.q9, g.q10, " +
+	    "g.q11, g.q12, g.q13, g.q14, g.q15, " +
+	    "g.q16, g.q17, g.q18, g.q19, g.q20, " +
+	    "g.date1, g.comment1, g.date2, g.comment2, g.date3, g.comment3 " +
+	    "FROM PurseSeineTrip t JOIN t.gen3Report g WHERE t.id = :tripId";
+
+	private static final String GEN6_JPQL =
+	    "SELECT t.id, r.id, r.date, r.time, r.latitude, r.longitude, " +
+	    "r.ez_id, r.ircs, r.vesselname, r.seacond, " +
+	    "r.winddir, r.windspeed, r.comments " +
+	    "FROM PurseSeineTrip t JOIN t.pollutionReports r WHERE t.id = :tripId";
+
+	private static final String GEN6_DETAILS_JPQL =
+	    "SELECT r.id, x.id, x.material_i, x.poll_type, x.quantity " +
+	    "FROM PurseSeineTrip t JOIN t.pollutionReports r JOIN r.details x WHERE t.id = :tripId";
+
+	private static final String DAYS_JPQL =
+	    "SELECT t.id, d.id, d.daydate, d.daytime, d.utc_date, d.utc_time, " +
+	    "d.fadnofsh, d.fad_fsh, d.lognofsh, d.log_fsh, d.sch_fsh " +
+	    "FROM PurseSeineTrip t JOIN t.fishingDays d WHERE t.id = :tripId";
+
+	private static final String ACTIVITIES_JPQL =
+	    "SELECT d.id, a.id, a.s_act_id, a.det_id, a.sch_id, " +
+	    "a.actdate, a.acttime, a.utc_adate, a.utc_atime, " +
+	    "a.beacon, a.comment, a.ez_id, a.fish_days, " +
+	    "a.lat_long, a.lon_long, a.sea_id, a.winddir, a.wind_kts, " +
+	    "a.setno, a.ld_onboard, a.ld_ves_onb, a.ld_tonnage, a.ld_ves_ton, " +
+	    "a.ld_newonbo, a.ld_ves_new, a.tuna_catch, a.ld_brails, a.ld_brails2, " +
+	    "a.oneset, a.tot_catch, a.ps3_commen, " +
+	    "a.perc_skj, a.perc_bet, a.perc_yft, a.b_sp_id, a.b_nbspecie, " +
+	    "a.wnch_on, a.ring_up, a.sbrail, a.ebrail " +
+	    "FROM PurseSeineTrip t JOIN t.fishingDays d JOIN d.activities a WHERE t.id = :tripId";
+
+	private static final String HEADERS_JPQL =
+	    "SELECT a.id, h.id, h.nbformused, h.protocol, h.prot_comme, h.fish_brl, h.whichbrail, " +
+	    "h.brail_full, h.brail_78, h.brail_34, h.brail_23, " +
+	    "h.brail_12, h.brail_13, h.brail_14, h.brail_18, " +
+	    "h.tbrail, h.sum_brails, h.page_no " +
+	    "FROM PurseSeineTrip t JOIN t.fishingDays d JOIN d.activities a JOIN a.headers h WHERE t.id = :tripId";
+
+	private static final String LF_DETAILS_JPQL =
+	    "SELECT h.id, x.id, x.sample_no, x.sp_id, x.len " +
+	    "FROM PurseSeineTrip t JOIN t.fishingDays d JOIN d.activities a JOIN a.headers h JOIN h.details x " +
+	    "WHERE t.id = :tripId";
+
+	private static final String SET_CATCH_JPQL =
+	    "SELECT a.id, sc.id, sc.sp_id, sc.cond_id, sc.fate_id, sc.comments, sc.largefish, " +
+	    "sc.vesslog, sc.sp_n, sc.sp_c, sc.sp_c_ves, " +
+	    "sc.sp_w_est, sc.sp_w_h, sc.sp_w_l, " +
+	    "sc.sp_c_est, sc.sp_c_id, sc.sp_c_spcom, sc.sp_n_est, sc.sp_w_id " +
+	    "FROM PurseSeineTrip t JOIN t.fishingDays d JOIN d.activities a JOIN a.setCatchList sc " +
+	    "WHERE t.id = :tripId";
+
+	private SourceTripHasher() {}
+
+	public static String hash(final ITrip trip) {
+		if (null == trip) { return null; }
+		final ContentDigest digest = new ContentDigest().addAll(
+		    VERSION,
+		    trip.getGearType(),
+		    trip.getProgramId(),
+		    trip.getObserverId(),
+		    trip.getTripNumber(),
+		    trip.getDepartureDate(),
+		    null == trip.getDeparturePort() ? null : trip.getDeparturePort().getId(),
+		    trip.getReturnDate(),
+		    null == trip.getReturnPort() ? null : trip.getReturnPort().getId(),
+		    null == trip.getBoat() ? null : trip.getBoat().getId());
+		digest.add(hashSightings(trip.getVesselSightings()));
+		digest.add(hashTransfers(trip.getFishTransfers()));
+		digest.add(hashGen3(trip.getGen3Report()));
+		digest.add(hashGen6(trip.getPollutionReports()));
+		if (trip instanceof PurseSeineTrip) {
+			digest.add(hashDays(((PurseSeineTrip)trip).getFishingDays()));
+		}
+		return digest.toHex();
+	}
+
+	/**
+	 * Hashes a purse seine trip without loading its graph.
+	 * @param em An observer EntityManager
+	 * @param tripId
+	 * @return The same hash as hash(ITrip) would give for the loaded trip, or
+	 * null if there's no purse seine trip with that ID
+	 */
+	public static String hash(final EntityManager em, final long tripId) {
+		final List<Object[]> trips = rows(em, TRIP_JPQL, tripId);
+		if (trips.isEmpty()) { return null; }
+		final ContentDigest digest = new ContentDigest().add(VERSION).addAll(trips.get(0));
+		digest.add(all(hashRows(rows(em, SIGHTINGS_JPQL, tripId), null, null)));
+		digest.add(all(hashRows(rows(em, TRANSFERS_JPQL, tripId), null, null)));
+		final Map<Object, List<String>> gen3 = hashRows(rows(em, GEN3_JPQL, tripId), null, null);
+		digest.add(gen3.isEmpty() ? null : gen3.values().iterator().next().get(0));
+		digest.add(all(hashRows(rows(em, GEN6_JPQL, tripId),
+		    hashRows(rows(em, GEN6_DETAILS_JPQL, tripId), null, null), null)));
+		final Map<Object, List<String>> activities = hashRows(rows(em, ACTIVITIES_JPQL, tripId),
+		    hashRows(rows(em, HEADERS_JPQL, tripId), hashRows(rows(em, LF_DETAILS_JPQL, tripId), null, null), null),
+		    hashRows(rows(em, SET_CATCH_JPQL, tripId), null, null));
+		digest.add(all(hashRows(rows(em, DAYS_JPQL, tripId), activities, null)));
+		return digest.toHex();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Object[]> rows(final EntityManager em, final String jpql, final long tripId) {
+		return em.createQuery(jpql).setParameter("tripId", Long.valueOf(tripId)).getResultList();
+	}
+
+	/**
+	 * Hashes projection rows laid out as parent ID, own ID, columns.  Each hash
+	 * covers the columns followed by the combined hashes of the row's children,
+	 * looked up by its own ID.
+	 * @return Row hashes by parent ID
+	 */
+	private static Map<Object, List<String>> hashRows(final List<Object[]> rows,
+	        final Map<Object, List<String>> children, final Map<Object, List<String>> moreChildren) {
+		final Map<Object, List<String>> hashes = new HashMap<Object, List<String>>();
+		for (final Object[] row : rows) {
+			final ContentDigest digest = new ContentDigest();
+			for (int i = 2; i < row.length; i++) {
+				digest.add(row[i]);
+			}
+			if (null != children) { digest.add(unordered(children, row[1])); }
+			if (null != moreChildren) { digest.add(unordered(moreChildren, row[1])); }
+			List<String> siblings = hashes.get(row[0]);
+			if (null == siblings) {
+				siblings = new ArrayList<String>();
+				hashes.put(row[0], siblings);
+			}
+			siblings.add(digest.toHex());
+		}
+		return hashes;
+	}
+
+	private static String unordered(final Map<Object, List<String>> hashes, final Object parentId) {
+		final List<String> siblings = hashes.get(parentId);
+		return ContentDigest.unordered(null == siblings ? new ArrayList<String>() : siblings);
+	}
+
+	// Every query is for one trip, so the top level has at most one parent
+	private static String all(final Map<Object, List<String>> hashes) {
+		final List<String> merged = new ArrayList<String>();
+		for (final List<String> siblings : hashes.values()) {
+			merged.addAll(siblings);
+		}
+		return ContentDigest.unordered(merged);
+	}
+
+	static String hashDays(final Collection<FishingDay> days) {
+		final List<String> hashes = new ArrayList<String>();
+		if (null != days) {
+			for (final FishingDay day : days) {
+				if (null == day) { continue; }
+				hashes.add(new ContentDigest().addAll(
+				    day.getDaydate(),
+				    day.getDaytime(),
+				    day.getUtc_date(),
+				    day.getUtc_time(),
+				    day.getFadnofsh(),
+				    day.getFad_fsh(),
+				    day.getLognofsh(),
+				    day.getLog_fsh(),
+				    day.getSch_fsh(),
+				    hashActivities(day.getActivities())).toHex());
+			}
+		}
+		return ContentDigest.unordered(hashes);
+	}
+
+	static String hashActivities(final Collection<DayLog> activities) {
+		final List<String> hashes = new ArrayList<String>();
+		if (null != activities) {
+			for (final DayLog dl : activities) {
+				if (null == dl) { continue; }
+				hashes.add(new ContentDigest().addAll(
+				    dl.getS_act_id(), dl.getDet_id(), dl.getSch_id(),
+				    dl.getActdate(), dl.getActtime(), dl.getUtc_adate(), dl.getUtc_atime(),
+				    dl.getBeacon(), dl.getComment(), dl.getEz_id(), dl.getFish_days(),
+				    dl.getLat_long(), dl.getLon_long(), dl.getSea_id(), dl.getWinddir(), dl.getWind_kts(),
+				    dl.getSetno(), dl.getLd_onboard(), dl.getLd_ves_onb(), dl.getLd_tonnage(), dl.getLd_ves_ton(),
+				    dl.getLd_newonbo(), dl.getLd_ves_new(), dl.getTuna_catch(), dl.getLd_brails(), dl.getLd_brails2(),
+				    dl.getOneset(), dl.getTot_catch(), dl.getPs3_commen(),
+				    dl.getPerc_skj(), dl.getPerc_bet(), dl.getPerc_yft(), dl.getB_sp_id(), dl.getB_nbspecie(),
+				    dl.getWnch_on(), dl.getRing_up(), dl.getSbrail(), dl.getEbrail(),
+				    hashLengthFrequencies(dl.getHeaders()),
+				    hashSetCatch(dl.getSetCatchList())).toHex());
+			}
+		}
+		return ContentDigest.unordered(hashes);
+	}
+
+	static String hashLengthFrequencies(final Collection<LengthFrequencyHeader> headers) {
+		final List<String> hashes = new ArrayList<String>();
+		if (null != headers) {
+			for (final LengthFrequencyHeader lfh : headers) {
+				if (null == lfh) { continue; }
+				final List<String> details = new ArrayList<String>();
+				if (null != lfh.getDetails()) {
+					for (final LengthFrequencyDetail detail : lfh.getDetails()) {
+						if (null == detail) { continue; }
+						details.add(new ContentDigest().addAll(
+						    detail.getSample_no(), detail.getSp_id(), detail.getLen()).toHex());
+					}
+				}
+				hashes.add(new ContentDigest().addAll(
+				    lfh.getNbformused(), lfh.getProtocol(), lfh.getProt_comme(), lfh.getFish_brl(), lfh.getWhichbrail(),
+				    lfh.getBrail_full(), lfh.getBrail_78(), lfh.getBrail_34(), lfh.getBrail_23(),
+				    lfh.getBrail_12(), lfh.getBrail_13(), lfh.getBrail_14(), lfh.getBrail_18(),
+				    lfh.getTbrail(), lfh.getSum_brails(), lfh.getPage_no(),
+				    ContentDigest.unordered(details)).toHex());
+			}
+		}
+		return ContentDigest.unordered(hashes);
+	}
+
+	static String hashSetCatch(final Collection<SetCatch> catchList) {
+		final List<String> hashes = new ArrayList<String>();
+		if (null != catchList) {
+			for (final SetCatch sc : catchList) {
+				if (null == sc) { continue; }
+				hashes.add(new ContentDigest().addAll(
+				    sc.getSp_id(), sc.getCond_id(), sc.getFate_id(), sc.getComments(), sc.getLargefish(),
+				    sc.getVesslog(), sc.getSp_n(), sc.getSp_c(), sc.getSp_c_ves(),
+				    sc.getSp_w_est(), sc.getSp_w_h(), sc.getSp_w_l(),
+				    sc.getSp_c_est(), sc.getSp_c_id(), sc.getSp_c_spcom(), sc.getSp_n_est(), sc.getSp_w_id()).toHex());
+			}
+		}
+		return ContentDigest.unordered(hashes);
+	}
+
+	static String hashSightings(final Collection<VesselSighting> sightings) {
+		final List<String> hashes = new ArrayList<String>();
+		if (null != sightings) {
+			for (final VesselSighting vs : sightings) {
+				if (null == vs) { continue; }
+				hashes.add(new ContentDigest().addAll(
+				    vs.getDate(), vs.getTime(), vs.getLatitude(), vs.getLongitude(), vs.getEz_id(),
+				    vs.getBearing(), vs.getDistance(), vs.getDist_unit(),
+				    vs.getS_callsign(), vs.getS_name(), vs.getS_flag(), vs.getComment(), vs.getPhoto_no()).toHex());
+			}
+		}
+		return ContentDigest.unordered(hashes);
+	}
+
+	static String hashTransfers(final Collection<FishTransfer> transfers) {
+		final List<String> hashes = new ArrayList<String>();
+		if (null != transfers) {
+			for (final FishTransfer xfer : transfers) {
+				if (null == xfer) { continue; }
+				hashes.add(new ContentDigest().addAll(
+				    xfer.getDate(), xfer.getTime(), xfer.getLatitude(), xfer.getLongitude(),
+				    xfer.getR_name(), xfer.getR_flag(), xfer.getR_callsign(),
+				    xfer.getSkj_c(), xfer.getYft_c(), xfer.getBet_c(), xfer.getMix_c(), xfer.getComment()).toHex());
+			}
+		}
+		return ContentDigest.unordered(hashes);
+	}
+
+	static String hashGen3(final Gen3 gen3) {
+		if (null == gen3) { return null; }
+		return new ContentDigest().addAll(
+		    gen3.getQ1(), gen3.getQ2(), gen3.getQ3(), gen3.getQ4(), gen3.getQ5(),
+		    gen3.getQ6(), gen3.getQ7(), gen3.getQ8(), gen3.getQ9(), gen3.getQ10(),
+		    gen3.getQ11(), gen3.getQ12(), gen3.getQ13(), gen3.getQ14(), gen3.getQ15(),
+		    gen3.getQ16(), gen3.getQ17(), gen3.getQ18(), gen3.getQ19(), gen3.getQ20(),
+		    gen3.getDate1(), gen3.getComment1(),
+		    gen3.getDate2(), gen3.getComment2(),
+		    gen3.getDate3(), gen3.getComment3()).toHex();
+	}
+
+	static String hashGen6(final Collection<Gen6Header> reports) {
+		final List<String> hashes = new ArrayList<String>();
+		if (null != reports) {
+			for (final Gen6Header report : reports) {
+				if (null == report) { continue; }
+				final List<String> details = new ArrayList<String>();
+				if (null != report.getDetails()) {
+					for (final Gen6Detail detail : report.getDetails()) {
+						if (null == detail) { continue; }
+						details.add(new ContentDigest().addAll(
+						    detail.getMaterial_i(), detail.getPoll_type(), detail.getQuantity()).toHex());
+					}
+				}
+				hashes.add(new ContentDigest().addAll(
+				    report.getDate(), report.getTime(), report.getLatitude(), report.getLongitude(),
+				    report.getEz_id(), report.getIrcs(), report.getVesselname(), report.getSeacond(),
+				    report.getWinddir(), report.getWindspeed(), report.getComments(),
+				    ContentDigest.unordered(details)).toHex());
+			}
+		}
+		return ContentDigest.unordered(hashes);
+	}
+}
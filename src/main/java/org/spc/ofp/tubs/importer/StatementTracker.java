@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+
+/**
+ * StatementTracker keeps track of the JDBC statements each thread is running,
+ * so that TripWatchdog can cancel them when a trip overruns its budget.  Our
+ * repositories (and Hibernate) never hand out their statements, so every
+ * DataSource in the context is wrapped in a proxy that notes each statement
+ * while it executes.
+ *
+ * Add it to the context before refresh() with addBeanFactoryPostProcessor();
+ * it registers itself to wrap the DataSources as they are created.  Without
+ * it nothing is wrapped, which is why it is only installed when a stage budget
+ * is set.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class StatementTracker implements BeanFactoryPostProcessor, BeanPostProcessor {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StatementTracker.class);
+
+	private final ConcurrentMap<Thread, Set<Statement>> running = new ConcurrentHashMap<Thread, Set<Statement>>();
+
+	public void postProcessBeanFactory(final ConfigurableListableBeanFactory beanFactory) throws BeansException {
+		beanFactory.addBeanPostProcessor(this);
+	}
+
+	public Object postProcessBeforeInitialization(final Object bean, final String beanName) throws BeansException {
+		return bean;
+	}
+
+	public Object postProcessAfterInitialization(final Object bean, final String beanName) throws BeansException {
+		if (bean instanceof DataSource) {
+			LOGGER.debug(String.format("Tracking statements on DataSource %s", beanName));
+			return wrap((DataSource)bean, DataSource.class);
+		}
+		return bean;
+	}
+
+	/**
+	 * Cancels whatever statements thread is running right now.
+	 * @param thread
+	 * @return The number of statements cancelled
+	 */
+	public int cancel(final Thread thread) {
+		final Set<Statement> statements = running.get(thread);
+		if (null == statements) { return 0; }
+		int cancelled = 0;
+		for (final Statement statement : statements) {
+			try {
+				statement.cancel();
+				cancelled++;
+			} catch (SQLException ex) {
+				LOGGER.warn(String.format("Unable to cancel statement on %s: %s", thread.getName(), ex.getMessage()));
+			}
+		}
+		return cancelled;
+	}
+
+	private Set<Statement> runningOnCurrentThread() {
+		final Thread thread = Thread.currentThread();
+		Set<Statement> statements = running.get(thread);
+		if (null == statements) {
+			final Set<Statement> created = Collections.newSetFromMap(new ConcurrentHashMap<Statement, Boolean>());
+			statements = running.putIfAbsent(thread, created);
+			if (null == statements) { statements = created; }
+		}
+		return statements;
+	}
+
+	private Object wrap(final Object target, final Class<?> type) {
+		return Proxy.newProxyInstance(
+		    StatementTracker.class.getClassLoader(),
+		    new Class<?>[] { type },
+		    new Tracking(target));
+	}
+
+	/**
+	 * Wraps connections coming out of a DataSource, statements coming out of
+	 * a connection, and notes each statement while it executes.
+	 */
+	private class Tracking implements InvocationHandler {
+		private final Object target;
+
+		Tracking(final Object target) {
+			this.target = target;
+		}
+
+		public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+			// Proxies are only ever equal to themselves, as Hibernate expects of connections
+			if ("equals".equals(method.getName()) && null != args && 1 == args.length) {
+				return proxy == args[0];
+			}
+			if ("hashCode".equals(method.getName()) && null == args) {
+				return System.identityHashCode(proxy);
+			}
+			final Class<?> returnType = method.getReturnType();
+			if (target instanceof Statement && method.getName().startsWith("execute")) {
+				final Set<Statement> statements = runningOnCurrentThread();
+				statements.add((Statement)target);
+				try {
+					return call(method, args);
+				} finally {
+					statements.remove(target);
+				}
+			}
+			final Object result = call(method, args);
+			if (null != result && returnType.isInterface() &&
+			    (Connection.class.equals(returnType) || Statement.class.isAssignableFrom(returnType))) {
+				return wrap(result, returnType);
+			}
+			return result;
+		}
+
+		private Object call(final Method method, final Object[] args) throws Throwable {
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException ex) {
+				throw ex.getCause();
+			}
+		}
+	}
+}
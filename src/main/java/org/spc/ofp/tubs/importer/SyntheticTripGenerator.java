@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.spc.ofp.observer.domain.FieldStaff;
+import org.spc.ofp.observer.domain.FishTransfer;
+import org.spc.ofp.observer.domain.Gen6Detail;
+import org.spc.ofp.observer.domain.Gen6Header;
+import org.spc.ofp.observer.domain.Port;
+import org.spc.ofp.observer.domain.Vessel;
+import org.spc.ofp.observer.domain.VesselSighting;
+import org.spc.ofp.observer.domain.purseseine.DayLog;
+import org.spc.ofp.observer.domain.purseseine.FishingDay;
+import org.spc.ofp.observer.domain.purseseine.LengthFrequencyDetail;
+import org.spc.ofp.observer.domain.purseseine.LengthFrequencyHeader;
+import org.spc.ofp.observer.domain.purseseine.PurseSeineTrip;
+import org.spc.ofp.observer.domain.purseseine.SetCatch;
+
+/**
+ * SyntheticTripGenerator builds observer purse seine trips of a given shape for
+ * load testing and the tests.  The trips are only built here;  EmbeddedFixtures
+ * saves them in the embedded observer database so they can be imported.
+ *
+ * All trips of a generator share one made-up observer, vessel and port, which
+ * the first import creates in TUBS.  Every trip also has a couple of vessel
+ * sightings, a fish transfer and a GEN-6 pollution report.  Sea state,
+ * condition and fate codes cycle through the ones below, which EmbeddedFixtures
+ * seeds in TUBS;  a trip of three sets or more uses all of them.  Everything
+ * else is made up, deterministically for a given seed.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class SyntheticTripGenerator {
+
+	// DataCleaner maps these FoxPro codes onto TUBS reference values
+	private static final int SET_ACTIVITY = 1;
+	private static final int DETECTION = 1;
+	private static final int ASSOCIATION = 1;
+	private static final String[] SPECIES = { "SKJ", "YFT", "BET" };
+	static final String[] SEA_STATES = { "A", "B", "C" };
+	static final String[] CONDITIONS = { "A1", "A2", "D1" };
+	static final String[] FATES = { "RWW", "DFR", "DOR" };
+	private static final int SIGHTINGS_PER_TRIP = 2;
+	private static final int POLLUTION_DETAILS = 2;
+	private static final String EEZ = "PG";
+	private static final String ENTERED_BY = "LOADTEST";
+	private static final String GEAR_TYPE = "S";
+	private static final String PROGRAM = "LOADTEST";
+
+	private final Random random;
+	private final FieldStaff observer;
+	private final Vessel vessel;
+	private final Port port;
+	private int daysPerTrip = 30;
+	private int setsPerDay = 1;
+	private int samplesPerSet = 100;
+	private int catchPerSet = 5;
+
+	public SyntheticTripGenerator(final long seed) {
+		this.random = new Random(seed);
+		observer = new FieldStaff();
+		observer.setStaffCode("LDT");
+		observer.setFirstName("Load");
+		observer.setLastName("Test");
+		vessel = new Vessel();
+		vessel.setName("LOAD TEST");
+		vessel.setGearType(GEAR_TYPE);
+		port = new Port();
+		port.setId("LDTPT");
+		port.setName("Load Test");
+	}
+
+	public static SyntheticTripGenerator fromOptions(final ImporterOptions options) {
+		final SyntheticTripGenerator generator = new SyntheticTripGenerator(options.getInt("seed", 1));
+		generator.daysPerTrip = options.getInt("days", generator.daysPerTrip);
+		generator.setsPerDay = options.getInt("sets", generator.setsPerDay);
+		generator.samplesPerSet = options.getInt("samples", generator.samplesPerSet);
+		generator.catchPerSet = options.getInt("catch", generator.catchPerSet);
+		return generator;
+	}
+
+	public void setDaysPerTrip(final int value) {
+		this.daysPerTrip = value;
+	}
+
+	/**
+	 * @param sequence Makes the trip number unique within a run
+	 * @return A new trip
+	 */
+	public PurseSeineTrip generate(final int sequence) {
+		final PurseSeineTrip trip = new PurseSeineTrip();
+		trip.setGearType(GEAR_TYPE);
+		trip.setProgramId(PROGRAM);
+		trip.setObserverId(observer.getStaffCode());
+		trip.setObserver(observer);
+		trip.setBoat(vessel);
+		trip.setDeparturePort(port);
+		trip.setReturnPort(port);
+		trip.setTripNumber(String.format("LT%06d", sequence));
+
+		final Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(2000, Calendar.JANUARY, 1);
+		cal.add(Calendar.DAY_OF_YEAR, random.nextInt(3650));
+		trip.setDepartureDate(cal.getTime());
+
+		final List<FishingDay> days = new ArrayList<FishingDay>(daysPerTrip);
+		int setNumber = 0;
+		for (int d = 0; d < daysPerTrip; d++) {
+			final Date date = cal.getTime();
+			final FishingDay day = new FishingDay();
+			day.setDaydate(date);
+			day.setDaytime("0600");
+			day.setUtc_date(date);
+			day.setUtc_time("1800");
+			day.setSch_fsh(Integer.valueOf(random.nextInt(3)));
+			final List<DayLog> activities = new ArrayList<DayLog>(setsPerDay);
+			for (int s = 0; s < setsPerDay; s++) {
+				activities.add(generateSet(date, ++setNumber));
+			}
+			day.setActivities(activities);
+			days.add(day);
+			cal.add(Calendar.DAY_OF_YEAR, 1);
+		}
+		trip.setFishingDays(days);
+		trip.setReturnDate(cal.getTime());
+		trip.setVesselSightings(generateSightings(trip.getDepartureDate()));
+		trip.setFishTransfers(generateTransfers(trip.getDepartureDate()));
+		trip.setPollutionReports(generatePollutionReports(trip.getDepartureDate()));
+		return trip;
+	}
+
+	private List<VesselSighting> generateSightings(final Date date) {
+		final List<VesselSighting> sightings = new ArrayList<VesselSighting>(SIGHTINGS_PER_TRIP);
+		for (int i = 0; i < SIGHTINGS_PER_TRIP; i++) {
+			final VesselSighting vs = new VesselSighting();
+			vs.setDate(date);
+			vs.setTime(time());
+			vs.setLatitude(latitude());
+			vs.setLongitude(longitude());
+			vs.setEz_id(EEZ);
+			vs.setBearing(Integer.valueOf(random.nextInt(360)));
+			vs.setDistance(tons(10));
+			vs.setDist_unit("NM");
+			vs.setS_callsign(String.format("LDT%03d", random.nextInt(1000)));
+			vs.setS_name("SIGHTED " + (i + 1));
+			vs.setS_flag("PG");
+			sightings.add(vs);
+		}
+		return sightings;
+	}
+
+	private List<FishTransfer> generateTransfers(final Date date) {
+		final FishTransfer xfer = new FishTransfer();
+		xfer.setDate(date);
+		xfer.setTime(time());
+		xfer.setLatitude(latitude());
+		xfer.setLongitude(longitude());
+		xfer.setR_name("CARRIER");
+		xfer.setR_flag("PG");
+		xfer.setR_callsign(String.format("LDC%03d", random.nextInt(1000)));
+		xfer.setSkj_c(tons(100));
+		xfer.setYft_c(tons(50));
+		xfer.setBet_c(tons(10));
+		xfer.setMix_c(tons(5));
+		final List<FishTransfer> transfers = new ArrayList<FishTransfer>(1);
+		transfers.add(xfer);
+		return transfers;
+	}
+
+	private List<Gen6Header> generatePollutionReports(final Date date) {
+		final Gen6Header report = new Gen6Header();
+		report.setDate(date);
+		report.setTime(time());
+		report.setLatitude(latitude());
+		report.setLongitude(longitude());
+		report.setEz_id(EEZ);
+		report.setSeacond(SEA_STATES[0]);
+		report.setWinddir(Integer.valueOf(random.nextInt(360)));
+		report.setWindspeed(Integer.valueOf(random.nextInt(25)));
+		final List<Gen6Detail> details = new ArrayList<Gen6Detail>(POLLUTION_DETAILS);
+		for (int i = 0; i < POLLUTION_DETAILS; i++) {
+			final Gen6Detail detail = new Gen6Detail();
+			detail.setPoll_type(Integer.toString(i + 1));
+			detail.setMaterial_i("PLASTIC");
+			detail.setQuantity(Integer.toString(1 + random.nextInt(10)));
+			details.add(detail);
+		}
+		report.setDetails(details);
+		final List<Gen6Header> reports = new ArrayList<Gen6Header>(1);
+		reports.add(report);
+		return reports;
+	}
+
+	private DayLog generateSet(final Date date, final int setNumber) {
+		final DayLog dl = new DayLog();
+		dl.setS_act_id(Integer.valueOf(SET_ACTIVITY));
+		dl.setDet_id(Integer.valueOf(DETECTION));
+		dl.setSch_id(Integer.valueOf(ASSOCIATION));
+		dl.setActdate(date);
+		dl.setActtime(time());
+		dl.setUtc_adate(date);
+		dl.setUtc_atime(dl.getActtime());
+		dl.setLat_long(latitude());
+		dl.setLon_long(longitude());
+		dl.setSea_id(SEA_STATES[setNumber % SEA_STATES.length]);
+		dl.setWinddir(Integer.valueOf(random.nextInt(360)));
+		dl.setWind_kts(Integer.valueOf(random.nextInt(25)));
+		dl.setFish_days(Double.valueOf(1.0));
+		dl.setSetno(Integer.valueOf(setNumber));
+		final int skj = random.nextInt(101);
+		final int yft = random.nextInt(101 - skj);
+		dl.setPerc_skj(Integer.valueOf(skj));
+		dl.setPerc_yft(Integer.valueOf(yft));
+		dl.setPerc_bet(Integer.valueOf(100 - skj - yft));
+		dl.setTot_catch(tons(80));
+		dl.setLd_tonnage(tons(80));
+		dl.setEnteredby(ENTERED_BY);
+		dl.setInserttime(date);
+
+		final List<SetCatch> catchList = new ArrayList<SetCatch>(catchPerSet);
+		for (int c = 0; c < catchPerSet; c++) {
+			final SetCatch sc = new SetCatch();
+			sc.setSp_id(SPECIES[c % SPECIES.length]);
+			sc.setCond_id(CONDITIONS[(setNumber + c) % CONDITIONS.length]);
+			sc.setFate_id(FATES[(setNumber + c) % FATES.length]);
+			sc.setSp_c(tons(30));
+			sc.setSp_n(Integer.valueOf(random.nextInt(500)));
+			catchList.add(sc);
+		}
+		dl.setSetCatchList(catchList);
+
+		final List<LengthFrequencyHeader> headers = new ArrayList<LengthFrequencyHeader>(1);
+		if (samplesPerSet > 0) {
+			final LengthFrequencyHeader header = new LengthFrequencyHeader();
+			header.setPage_no(Integer.valueOf(1));
+			header.setEnteredby(ENTERED_BY);
+			header.setInserttime(date);
+			final List<LengthFrequencyDetail> details = new ArrayList<LengthFrequencyDetail>(samplesPerSet);
+			for (int i = 0; i < samplesPerSet; i++) {
+				final LengthFrequencyDetail detail = new LengthFrequencyDetail();
+				detail.setSample_no(Integer.valueOf(i + 1));
+				detail.setSp_id(SPECIES[random.nextInt(SPECIES.length)]);
+				detail.setLen(Integer.valueOf(30 + random.nextInt(150)));
+				details.add(detail);
+			}
+			header.setDetails(details);
+			headers.add(header);
+		}
+		dl.setHeaders(headers);
+		return dl;
+	}
+
+	private String time() {
+		return String.format("%02d%02d", 6 + random.nextInt(12), random.nextInt(60));
+	}
+
+	private String latitude() {
+		return String.format("%02d%02d.%03dS", random.nextInt(20), random.nextInt(60), random.nextInt(1000));
+	}
+
+	private String longitude() {
+		return String.format("%03d%02d.%03dE", 140 + random.nextInt(40), random.nextInt(60), random.nextInt(1000));
+	}
+
+	private BigDecimal tons(final int max) {
+		return BigDecimal.valueOf(random.nextInt(max * 100), 2);
+	}
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.spc.ofp.tubs.domain.FishTransfer;
+import org.spc.ofp.tubs.domain.PollutionReportDetails;
+import org.spc.ofp.tubs.domain.PollutionReportHeader;
+import org.spc.ofp.tubs.domain.Trip;
+import org.spc.ofp.tubs.domain.VesselSighting;
+import org.spc.ofp.tubs.domain.common.ReferenceId;
+import org.spc.ofp.tubs.domain.purseseine.Activity;
+import org.spc.ofp.tubs.domain.purseseine.Day;
+import org.spc.ofp.tubs.domain.purseseine.FishingSet;
+import org.spc.ofp.tubs.domain.purseseine.LengthSample;
+import org.spc.ofp.tubs.domain.purseseine.LengthSamplingHeader;
+import org.spc.ofp.tubs.domain.purseseine.PurseSeineTrip;
+import org.spc.ofp.tubs.domain.purseseine.SetCatch;
+
+/**
+ * TripFingerprint is a canonical summary of a TUBS trip graph:  an entity count
+ * and a content hash for each section of the trip.
+ *
+ * Hashes are taken over the TUBS shape of the data, so the source side is
+ * fingerprinted after it has been through TubsTripProcessor and the target
+ * side is fingerprinted as loaded from the database.  Collections are hashed
+ * without regard to order.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TripFingerprint {
+
+	public enum Section {
+		DAYS,
+		ACTIVITIES,
+		SETS,
+		LENGTH_SAMPLES,
+		SET_CATCH,
+		SIGHTINGS,
+		TRANSFERS,
+		GEN6
+	}
+
+	private final Map<Section, List<String>> entityHashes = new EnumMap<Section, List<String>>(Section.class);
+	private final Map<Section, Integer> counts = new EnumMap<Section, Integer>(Section.class);
+	private final Map<Section, String> hashes = new EnumMap<Section, String>(Section.class);
+
+	private TripFingerprint() {
+		for (final Section section : Section.values()) {
+			entityHashes.put(section, new ArrayList<String>());
+		}
+	}
+
+	public static TripFingerprint of(final Trip trip) {
+		final TripFingerprint fp = new TripFingerprint();
+		if (null != trip) {
+			fp.addSightings(trip.getVesselSightings());
+			fp.addTransfers(trip.getFishTransfers());
+			fp.addPollutionReports(trip.getPollutionReports());
+			if (trip instanceof PurseSeineTrip) {
+				fp.addDays(((PurseSeineTrip)trip).getDays());
+			}
+		}
+		fp.seal();
+		return fp;
+	}
+
+	public int getCount(final Section section) {
+		return counts.get(section);
+	}
+
+	public String getHash(final Section section) {
+		return hashes.get(section);
+	}
+
+	/**
+	 * @param other
+	 * @return The sections where either the entity count or the content hash differs.
+	 */
+	public Set<Section> differences(final TripFingerprint other) {
+		final Set<Section> diffs = EnumSet.noneOf(Section.class);
+		for (final Section section : Section.values()) {
+			if (getCount(section) != other.getCount(section) ||
+			    !getHash(section).equals(other.getHash(section))) {
+				diffs.add(section);
+			}
+		}
+		return diffs;
+	}
+
+	private void seal() {
+		for (final Section section : Section.values()) {
+			final List<String> sectionHashes = entityHashes.get(section);
+			counts.put(section, sectionHashes.size());
+			hashes.put(section, ContentDigest.unordered(sectionHashes));
+		}
+		entityHashes.clear();
+	}
+
+	private void add(final Section section, final ContentDigest digest) {
+		entityHashes.get(section).add(digest.toHex());
+	}
+
+	private static Object idOf(final ReferenceId ref) {
+		return null == ref ? null : ref.getId();
+	}
+
+	private void addDays(final Collection<Day> days) {
+		if (null == days) { return; }
+		for (final Day day : days) {
+			if (null == day) { continue; }
+			add(Section.DAYS, new ContentDigest().addAll(
+			    day.getStartOfDay(),
+			    day.getUtcStartOfDay(),
+			    day.getAnchoredObjectsWithSchool(),
+			    day.getAnchoredObjectsWithoutSchool(),
+			    day.getFloatingObjectsWithSchool(),
+			    day.getFloatingObjectsWithoutSchool(),
+			    day.getFreeSchoolCount()));
+			addActivities(day.getActivities());
+		}
+	}
+
+	private void addActivities(final Collection<Activity> activities) {
+		if (null == activities) { return; }
+		for (final Activity activity : activities) {
+			if (null == activity) { continue; }
+			add(Section.ACTIVITIES, new ContentDigest().addAll(
+			    activity.getLocalTime(),
+			    activity.getUtcTime(),
+			    idOf(activity.getActivityType()),
+			    idOf(activity.getDetectionMethod()),
+			    idOf(activity.getAssociationType()),
+			    activity.getEezCode(),
+			    activity.getLatitude(),
+			    activity.getLongitude(),
+			    activity.getFishingDays(),
+			    activity.getBeacon(),
+			    activity.getWindDirection(),
+			    activity.getWindSpeed(),
+			    activity.getComments()));
+			if (null != activity.getFishingSet()) {
+				addSet(activity.getFishingSet());
+			}
+		}
+	}
+
+	private void addSet(final FishingSet fset) {
+		add(Section.SETS, new ContentDigest().addAll(
+		    fset.getSetNumber(),
+		    fset.getStartTime(),
+		    fset.getWeightOnBoard(),
+		    fset.getWeightOnBoardFromLog(),
+		    fset.getObservedSetRetainedTonnage(),
+		    fset.getSetRetainedTonnageFromLog(),
+		    fset.getObservedNewOnboard(),
+		    fset.getNewOnboardFromLog(),
+		    fset.getTonsOfTunaObserved(),
+		    fset.getTotalCatch(),
+		    fset.getSkipjackPercentage(),
+		    fset.getBigeyePercentage(),
+		    fset.getYellowfinPercentage(),
+		    fset.getLargeSpecies(),
+		    fset.getLargeSpeciesCount(),
+		    fset.getWinchOn(),
+		    fset.getRingUp(),
+		    fset.getStartOfBrail(),
+		    fset.getEndOfBrail(),
+		    fset.getComments()));
+
+		if (null != fset.getLengthSamples()) {
+			for (final LengthSamplingHeader header : fset.getLengthSamples()) {
+				if (null == header || null == header.getSamples()) { continue; }
+				for (final LengthSample sample : header.getSamples()) {
+					if (null == sample) { continue; }
+					add(Section.LENGTH_SAMPLES, new ContentDigest().addAll(
+					    fset.getSetNumber(),
+					    header.getFormId(),
+					    sample.getSampleNumber(),
+					    sample.getSpeciesCode(),
+					    sample.getLength()));
+				}
+			}
+		}
+
+		if (null != fset.getCatchList()) {
+			for (final SetCatch sc : fset.getCatchList()) {
+				if (null == sc) { continue; }
+				add(Section.SET_CATCH, new ContentDigest().addAll(
+				    fset.getSetNumber(),
+				    sc.getSpeciesCode(),
+				    sc.getObserverCount(),
+				    sc.getObserverWeight(),
+				    sc.getVesselWeight(),
+				    sc.getCountFromLog(),
+				    sc.getSpeciesWeightEstimate(),
+				    sc.getSpeciesWeightHigh(),
+				    sc.getSpeciesWeightLow(),
+				    sc.getContainsLargeFish(),
+				    sc.getComments()));
+			}
+		}
+	}
+
+	private void addSightings(final Collection<VesselSighting> sightings) {
+		if (null == sightings) { return; }
+		for (final VesselSighting vs : sightings) {
+			if (null == vs) { continue; }
+			add(Section.SIGHTINGS, new ContentDigest().addAll(
+			    vs.getSightingDate(),
+			    vs.getLatitude(),
+			    vs.getLongitude(),
+			    vs.getEezCode(),
+			    vs.getBearing(),
+			    vs.getDistance(),
+			    vs.getDistanceUnit(),
+			    vs.getIrcs(),
+			    vs.getVesselName(),
+			    vs.getRegisteredCountryCode(),
+			    vs.getPhotoNumber(),
+			    vs.getComments()));
+		}
+	}
+
+	private void addTransfers(final Collection<FishTransfer> transfers) {
+		if (null == transfers) { return; }
+		for (final FishTransfer xfer : transfers) {
+			if (null == xfer) { continue; }
+			add(Section.TRANSFERS, new ContentDigest().addAll(
+			    xfer.getTimestamp(),
+			    xfer.getLatitude(),
+			    xfer.getLongitude(),
+			    xfer.getVesselName(),
+			    xfer.getIrcs(),
+			    xfer.getRegisteredCountryCode(),
+			    xfer.getSkipjackTransferred(),
+			    xfer.getYellowfinTransferred(),
+			    xfer.getBigeyeTransferred(),
+			    xfer.getMiscTransferred(),
+			    xfer.getComments()));
+		}
+	}
+
+	private void addPollutionReports(final Collection<PollutionReportHeader> reports) {
+		if (null == reports) { return; }
+		for (final PollutionReportHeader report : reports) {
+			if (null == report) { continue; }
+			final ContentDigest digest = new ContentDigest().addAll(
+			    report.getTimestamp(),
+			    report.getLatitude(),
+			    report.getLongitude(),
+			    report.getEezCode(),
+			    report.getIrcs(),
+			    report.getVesselName(),
+			    report.getWindDirection(),
+			    report.getWindSpeed(),
+			    report.getComments());
+			// Details don't have an identity of their own, so they're folded into the header
+			final List<String> details = new ArrayList<String>();
+			if (null != report.getDetails()) {
+				for (final PollutionReportDetails detail : report.getDetails()) {
+					if (null == detail) { continue; }
+					details.add(new ContentDigest().addAll(
+					    detail.getDescription(),
+					    detail.getMaterial(),
+					    detail.getPollutionType(),
+					    detail.getQuantity()).toHex());
+				}
+			}
+			digest.add(ContentDigest.unordered(details));
+			add(Section.GEN6, digest);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * TripIdFile reads a list of source trip IDs from a local file, for runs that
+ * target specific trips instead of the driving query.  The file is memory
+ * mapped and read as it's iterated, so a list of millions of IDs never takes
+ * more heap than the ID being handed out.
+ *
+ * Two formats are understood:
+ *   TEXT        IDs as decimal digits, separated by anything else (newlines,
+ *               commas, spaces).  Lines starting with # are comments.
+ *   BINARY      Packed 8 byte longs, big endian (as DataOutputStream writes them)
+ *   BINARY_LE   Packed 8 byte longs, little endian (as numpy's tofile() writes them)
+ *
+ * Each iterator() starts from the top of the file.  Files must be under 2GB,
+ * which is some 250 million binary IDs.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TripIdFile implements Iterable<String> {
+
+	public enum Format { TEXT, BINARY, BINARY_LE }
+
+	private final File file;
+	private final Format format;
+	private final MappedByteBuffer buffer;
+
+	public TripIdFile(final File file, final Format format) throws IOException {
+		this.file = file;
+		this.format = format;
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(String.format("%s is too big to map (%d bytes)", file, channel.size()));
+			}
+			if (Format.TEXT != format && 0 != channel.size() % 8) {
+				throw new IOException(String.format("%s is not a whole number of 8 byte IDs", file));
+			}
+			// The mapping stays valid after the channel is closed
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @param file
+	 * @param format "text", "binary" or "binary-le"; if null, files ending in .bin are BINARY and the rest TEXT
+	 */
+	public static TripIdFile open(final File file, final String format) throws IOException {
+		final Format f = null == format ?
+		    (file.getName().toLowerCase().endsWith(".bin") ? Format.BINARY : Format.TEXT) :
+		    Format.valueOf(format.trim().toUpperCase().replace('-', '_'));
+		return new TripIdFile(file, f);
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return The number of IDs in a binary file; for text files, -1 (it isn't known without a pass)
+	 */
+	public long size() {
+		return Format.TEXT == format ? -1L : buffer.capacity() / 8;
+	}
+
+	public Iterator<String> iterator() {
+		final ByteBuffer view = buffer.duplicate();
+		if (Format.TEXT == format) {
+			return new TextIterator(view);
+		}
+		view.order(Format.BINARY_LE == format ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		return new BinaryIterator(view);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s (%s)", file, format.name().toLowerCase());
+	}
+
+	private static class BinaryIterator implements Iterator<String> {
+		private final ByteBuffer view;
+
+		BinaryIterator(final ByteBuffer view) {
+			this.view = view;
+		}
+
+		public boolean hasNext() {
+			return view.remaining() >= 8;
+		}
+
+		public String next() {
+			if (!hasNext()) { throw new NoSuchElementException(); }
+			return Long.toString(view.getLong());
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static class TextIterator implements Iterator<String> {
+		private final ByteBuffer view;
+		private String next;
+
+		TextIterator(final ByteBuffer view) {
+			this.view = view;
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+			boolean lineStart = true;
+			while (view.hasRemaining()) {
+				final byte b = view.get();
+				if (lineStart && '#' == b) {
+					// Skip the rest of the comment line
+					while (view.hasRemaining() && '\n' != view.get()) { } // NOPMD
+					continue;
+				}
+				lineStart = '\n' == b;
+				if (b >= '0' && b <= '9') {
+					long value = b - '0';
+					while (view.hasRemaining()) {
+						final byte d = view.get(view.position());
+						if (d < '0' || d > '9') { break; }
+						value = value * 10L + (d - '0');
+						view.get();
+					}
+					next = Long.toString(value);
+					return;
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			return null != next;
+		}
+
+		public String next() {
+			if (null == next) { throw new NoSuchElementException(); }
+			final String id = next;
+			advance();
+			return id;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
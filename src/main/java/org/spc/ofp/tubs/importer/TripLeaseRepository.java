@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Resource;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * TripLeaseRepository is a database backed work queue that lets several importer
+ * instances share one backfill.  See sql/import_lease.sql for the table.
+ *
+ * Claims are optimistic:  candidate rows are read, then each is taken with an
+ * UPDATE that only succeeds if the row is still free.  Lease times come from the
+ * database clock so that instances on different machines agree on expiry.
+ *
+ * Every claim counts as an attempt.  A trip whose leases keep running out (the
+ * instance importing it crashed or hung each time) is abandoned once it has used
+ * up its attempts, so it can't take down instance after instance.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TripLeaseRepository {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TripLeaseRepository.class);
+
+	private static final String FREE =
+	    "(state = 'P' OR (state = 'L' AND lease_expires < CURRENT_TIMESTAMP))";
+
+	private static final String ABANDON_SQL =
+	    "UPDATE import_lease SET state = 'X', owner = NULL, lease_expires = NULL " +
+	    "WHERE source_name = ? AND attempts >= ? AND " + FREE;
+
+	private static final String ABANDONED_SQL =
+	    "SELECT source_id FROM import_lease WHERE source_name = ? AND state = 'X'";
+
+	private static final String INSERT_SQL =
+	    "INSERT INTO import_lease (source_name, source_id, state, attempts) " +
+	    "SELECT ?, ?, 'P', 0 WHERE NOT EXISTS " +
+	    "(SELECT 1 FROM import_lease WHERE source_name = ? AND source_id = ?)";
+
+	private static final String CANDIDATES_SQL =
+	    "SELECT source_id FROM import_lease WHERE source_name = ? AND " + FREE;
+
+	private static final String CLAIM_SQL =
+	    "UPDATE import_lease SET state = 'L', owner = ?, " +
+	    "lease_expires = DATEADD(ms, ?, CURRENT_TIMESTAMP), attempts = attempts + 1 " +
+	    "WHERE source_name = ? AND source_id = ? AND " + FREE;
+
+	private static final String RENEW_SQL =
+	    "UPDATE import_lease SET lease_expires = DATEADD(ms, ?, CURRENT_TIMESTAMP) " +
+	    "WHERE source_name = ? AND source_id = ? AND owner = ? AND state = 'L'";
+
+	private static final String COMPLETE_SQL =
+	    "UPDATE import_lease SET state = 'D', lease_expires = NULL " +
+	    "WHERE source_name = ? AND source_id = ? AND owner = ?";
+
+	private static final String RELEASE_SQL =
+	    "UPDATE import_lease SET state = 'P', owner = NULL, lease_expires = NULL " +
+	    "WHERE source_name = ? AND source_id = ? AND owner = ? AND state = 'L'";
+
+	private static final String REMAINING_SQL =
+	    "SELECT COUNT(*) FROM import_lease WHERE source_name = ? AND state IN ('P', 'L')";
+
+	private JdbcTemplate jdbc;
+	private SimpleJdbcTemplate batchJdbc;
+
+	@Resource(name = "tubs.DataSource")
+	public void setDataSource(final DataSource dataSource) {
+		this.jdbc = new JdbcTemplate(dataSource);
+		this.batchJdbc = new SimpleJdbcTemplate(jdbc);
+	}
+
+	/**
+	 * Adds any trip IDs that aren't queued yet.  Safe to call from every instance.
+	 * @param sourceName
+	 * @param tripIds
+	 */
+	public void seed(final String sourceName, final List<Long> tripIds) {
+		final List<Object[]> rows = new ArrayList<Object[]>(tripIds.size());
+		for (final Long tripId : tripIds) {
+			final String id = Integer.toString(tripId.intValue());
+			rows.add(new Object[] { sourceName, id, sourceName, id });
+		}
+		try {
+			batchJdbc.batchUpdate(INSERT_SQL, rows);
+		} catch (DataIntegrityViolationException ex) {
+			// Another instance seeded some of the same rows in between; go row by row
+			LOGGER.debug("Concurrent seed detected, retrying one row at a time");
+			for (final Object[] row : rows) {
+				try {
+					jdbc.update(INSERT_SQL, row);
+				} catch (DataIntegrityViolationException ignoreMe) { } // NOPMD
+			}
+		}
+	}
+
+	/**
+	 * Claims up to batchSize free trips (never leased, or whose lease has expired).
+	 * Free trips that have already been claimed maxAttempts times are abandoned instead.
+	 * @return The source IDs this owner now holds a lease on
+	 */
+	public List<String> claim(final String sourceName, final String owner, final int batchSize, final long leaseMillis,
+	        final int maxAttempts) {
+		Preconditions.checkArgument(batchSize > 0, "Batch size must be positive");
+		Preconditions.checkArgument(maxAttempts > 0, "Max attempts must be positive");
+		final int abandoned = jdbc.update(ABANDON_SQL, sourceName, maxAttempts);
+		if (abandoned > 0) {
+			LOGGER.warn(String.format("Abandoned %d trip(s) after %d attempts each", abandoned, maxAttempts));
+		}
+		final JdbcTemplate candidatesQuery = new JdbcTemplate(jdbc.getDataSource());
+		// Read a few more than we need since other instances are racing for the same rows
+		candidatesQuery.setMaxRows(batchSize * 4);
+		final List<String> candidates = candidatesQuery.queryForList(CANDIDATES_SQL, String.class, sourceName);
+		// Spread the instances out over the candidates to cut down on lost races
+		Collections.shuffle(candidates);
+
+		final List<String> claimed = new ArrayList<String>(batchSize);
+		for (final String sourceId : candidates) {
+			if (claimed.size() >= batchSize) { break; }
+			if (1 == jdbc.update(CLAIM_SQL, owner, leaseMillis, sourceName, sourceId)) {
+				claimed.add(sourceId);
+			}
+		}
+		return claimed;
+	}
+
+	/**
+	 * Extends the leases held by owner.
+	 * @return The source IDs whose lease could not be renewed (taken over by another instance)
+	 */
+	public List<String> renew(final String sourceName, final String owner, final Collection<String> sourceIds, final long leaseMillis) {
+		final List<String> held = new ArrayList<String>(sourceIds);
+		final List<Object[]> rows = new ArrayList<Object[]>(held.size());
+		for (final String sourceId : held) {
+			rows.add(new Object[] { leaseMillis, sourceName, sourceId, owner });
+		}
+		final int[] counts = batchJdbc.batchUpdate(RENEW_SQL, rows);
+		final List<String> lost = new ArrayList<String>();
+		for (int i = 0; i < counts.length; i++) {
+			// Some drivers only report SUCCESS_NO_INFO (-2) for batches
+			if (0 == counts[i]) { lost.add(held.get(i)); }
+		}
+		return lost;
+	}
+
+	public void complete(final String sourceName, final String owner, final String sourceId) {
+		jdbc.update(COMPLETE_SQL, sourceName, sourceId, owner);
+	}
+
+	public void release(final String sourceName, final String owner, final Collection<String> sourceIds) {
+		for (final String sourceId : sourceIds) {
+			jdbc.update(RELEASE_SQL, sourceName, sourceId, owner);
+		}
+	}
+
+	/**
+	 * @return The source IDs that were given up on after too many attempts
+	 */
+	public List<String> findAbandoned(final String sourceName) {
+		return jdbc.queryForList(ABANDONED_SQL, String.class, sourceName);
+	}
+
+	/**
+	 * @return The number of trips that are not done or abandoned yet, including those leased by other instances
+	 */
+	public int countRemaining(final String sourceName) {
+		return jdbc.queryForInt(REMAINING_SQL, sourceName);
+	}
+}
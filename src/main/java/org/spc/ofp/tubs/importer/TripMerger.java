@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.beans.PropertyDescriptor;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Resource;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceUnit;
+
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spc.ofp.tubs.domain.FishTransfer;
+import org.spc.ofp.tubs.domain.PollutionReportDetails;
+import org.spc.ofp.tubs.domain.PollutionReportHeader;
+import org.spc.ofp.tubs.domain.Trip;
+import org.spc.ofp.tubs.domain.TripReportHeader;
+import org.spc.ofp.tubs.domain.VesselSighting;
+import org.spc.ofp.tubs.domain.purseseine.Activity;
+import org.spc.ofp.tubs.domain.purseseine.Brail;
+import org.spc.ofp.tubs.domain.purseseine.Day;
+import org.spc.ofp.tubs.domain.purseseine.FishingSet;
+import org.spc.ofp.tubs.domain.purseseine.LengthSample;
+import org.spc.ofp.tubs.domain.purseseine.LengthSamplingHeader;
+import org.spc.ofp.tubs.domain.purseseine.PurseSeineTrip;
+import org.spc.ofp.tubs.domain.purseseine.SetCatch;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.BeanWrapperImpl;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+
+/**
+ * TripMerger applies a freshly converted trip to the TUBS trip it replaces,
+ * in place, so that only the rows that changed are written.
+ *
+ * Purse seine days, activities, sets, set catch, length samples and brails are
+ * matched on natural keys (day date, activity time, species, sample number,
+ * ...);  rows with the same key pair up in order, so activities are matched on
+ * their time and their sequence among activities at that time.  An activity
+ * whose type was corrected is therefore updated, not deleted and re-inserted
+ * with its set and everything under it.  Matched rows get the new column values, which Hibernate's dirty
+ * checking turns into updates only where something actually differs.  Rows only
+ * in the new trip are inserted and rows only in the old one are deleted.
+ * Sightings, transfers and GEN-6 are small and have no good natural key, so they
+ * are replaced wholesale, and only if their TripFingerprint section changed.
+ *
+ * Audit entries on matched rows are left as they were.  Statements are sent in
+ * JDBC batches, which Hibernate only configures per session factory:  main()
+ * sets hibernate.jdbc.batch_size on the tubs unit (see TubsBatchSettings), and
+ * the first merge warns if the unit ended up without batching.
+ * Given a TripSummary, the trip's summary rows are replaced in the same
+ * transaction;  without one, a trip that has a summary gets it recomputed from
+ * the incoming trip.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TripMerger {
+
+	@PersistenceUnit(unitName = "tubs")
+	protected EntityManagerFactory tubsEmf;
+
+	@Resource(name = "TripSummaryWriter")
+	protected TripSummaryWriter tripSummaryWriter;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TripMerger.class);
+
+	// Children owned by the trip graph; never copied as plain properties
+	private static final Set<Class<?>> OWNED = ImmutableSet.<Class<?>>of(
+	    Trip.class, TripReportHeader.class, Day.class, Activity.class, FishingSet.class,
+	    LengthSamplingHeader.class, LengthSample.class, Brail.class, SetCatch.class,
+	    VesselSighting.class, FishTransfer.class, PollutionReportHeader.class, PollutionReportDetails.class);
+
+	private static final Set<String> SKIPPED_PROPERTIES = ImmutableSet.of("class", "id", "auditEntry");
+
+	private static final String REFERENCE_PACKAGE = "org.spc.ofp.tubs.domain.common";
+
+	private boolean batchSizeChecked;
+
+	/**
+	 * What a merge did.  Inserts and deletes count the topmost row of each
+	 * subtree;  the rows below it go with it.
+	 */
+	public static class Changes {
+		private int inserted;
+		private int updated;
+		private int deleted;
+
+		public int getInserted() { return inserted; }
+		public int getUpdated() { return updated; }
+		public int getDeleted() { return deleted; }
+
+		@Override
+		public String toString() {
+			return String.format("inserted=%d updated=%d deleted=%d", inserted, updated, deleted);
+		}
+	}
+
+	/**
+	 * @param tripId The TUBS trip to update
+	 * @param incoming A new, unsaved trip from TubsTripProcessor
+	 * @return What changed, or null if the TUBS trip no longer exists
+	 */
+	public Changes merge(final long tripId, final PurseSeineTrip incoming) {
+		return merge(tripId, incoming, null);
+	}
+
+	/**
+	 * @param tripId The TUBS trip to update
+	 * @param incoming A new, unsaved trip from TubsTripProcessor
+	 * @param summary The incoming trip's summary, or null if summaries aren't kept
+	 * @return What changed, or null if the TUBS trip no longer exists
+	 */
+	public Changes merge(final long tripId, final PurseSeineTrip incoming, final TripSummary summary) {
+		checkBatchSize();
+		final EntityManager em = tubsEmf.createEntityManager();
+		final EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			final PurseSeineTrip existing = em.find(PurseSeineTrip.class, tripId);
+			if (null == existing) {
+				tx.rollback();
+				return null;
+			}
+			final Merge merge = new Merge(em);
+			merge.copy(existing, incoming);
+			if (null != existing.getTripReport() && null != incoming.getTripReport()) {
+				merge.copy(existing.getTripReport(), incoming.getTripReport());
+			}
+			final Set<TripFingerprint.Section> changed =
+			    TripFingerprint.of(existing).differences(TripFingerprint.of(incoming));
+			if (changed.contains(TripFingerprint.Section.SIGHTINGS)) {
+				merge.replace(existing, existing.getVesselSightings(), incoming.getVesselSightings());
+			}
+			if (changed.contains(TripFingerprint.Section.TRANSFERS)) {
+				merge.replace(existing, existing.getFishTransfers(), incoming.getFishTransfers());
+			}
+			if (changed.contains(TripFingerprint.Section.GEN6)) {
+				merge.replace(existing, existing.getPollutionReports(), incoming.getPollutionReports());
+			}
+			merge.days(existing, incoming);
+			if (null != summary) {
+				tripSummaryWriter.write(em, tripId, summary);
+			} else if (tripSummaryWriter.isSummarized(em, tripId)) {
+				tripSummaryWriter.write(em, tripId, TripSummary.of(incoming));
+			}
+			tx.commit();
+			LOGGER.debug(String.format("Merged into TUBS trip %d: %s", tripId, merge.changes));
+			return merge.changes;
+		} finally {
+			if (tx.isActive()) { tx.rollback(); }
+			em.close();
+		}
+	}
+
+	private synchronized void checkBatchSize() {
+		if (batchSizeChecked) { return; }
+		final SessionFactoryImplementor sessionFactory =
+		    (SessionFactoryImplementor)((HibernateEntityManagerFactory)tubsEmf).getSessionFactory();
+		final int batchSize = sessionFactory.getSettings().getJdbcBatchSize();
+		if (batchSize < 2) {
+			LOGGER.warn("The tubs unit has no hibernate.jdbc.batch_size, merges will send one statement at a time");
+		} else {
+			LOGGER.debug(String.format("Merging with a JDBC batch size of %d", batchSize));
+		}
+		batchSizeChecked = true;
+	}
+
+	private static final Function<Day, Object> DAY_KEY = new Function<Day, Object>() {
+		public Object apply(final Day day) {
+			return time(day.getStartOfDay());
+		}
+	};
+
+	// Not the type, which is corrected often enough;  see list() for the sequence
+	private static final Function<Activity, Object> ACTIVITY_KEY = new Function<Activity, Object>() {
+		public Object apply(final Activity activity) {
+			return time(activity.getLocalTime());
+		}
+	};
+
+	private static final Function<SetCatch, Object> CATCH_KEY = new Function<SetCatch, Object>() {
+		public Object apply(final SetCatch sc) {
+			return Arrays.asList(sc.getSpeciesCode(), entityId(sc.getCondition()), entityId(sc.getFate()));
+		}
+	};
+
+	private static final Function<LengthSamplingHeader, Object> HEADER_KEY = new Function<LengthSamplingHeader, Object>() {
+		public Object apply(final LengthSamplingHeader header) {
+			return Arrays.asList(header.getFormId(), entityId(header.getProtocolType()), header.getBrailStartTime());
+		}
+	};
+
+	private static final Function<LengthSample, Object> SAMPLE_KEY = new Function<LengthSample, Object>() {
+		public Object apply(final LengthSample sample) {
+			return Arrays.asList(sample.getSampleNumber(), sample.getSpeciesCode());
+		}
+	};
+
+	private static final Function<Brail, Object> BRAIL_KEY = new Function<Brail, Object>() {
+		public Object apply(final Brail brail) {
+			return brail.getBrailNumber();
+		}
+	};
+
+	/**
+	 * Walks one pair of trip graphs.  Not thread safe; one per merge.
+	 */
+	private static class Merge {
+		private final EntityManager em;
+		private final Changes changes = new Changes();
+
+		Merge(final EntityManager em) {
+			this.em = em;
+		}
+
+		void days(final PurseSeineTrip existing, final PurseSeineTrip incoming) {
+			list(existing, existing.getDays(), incoming.getDays(), DAY_KEY, new Children<Day>() {
+				public void merge(final Day to, final Day from) {
+					activities(to, from);
+				}
+			});
+		}
+
+		void activities(final Day existing, final Day incoming) {
+			list(existing, existing.getActivities(), incoming.getActivities(), ACTIVITY_KEY, new Children<Activity>() {
+				public void merge(final Activity to, final Activity from) {
+					set(to, from);
+				}
+			});
+		}
+
+		void set(final Activity existing, final Activity incoming) {
+			final FishingSet to = existing.getFishingSet();
+			final FishingSet from = incoming.getFishingSet();
+			if (null == to && null == from) { return; }
+			if (null == to) {
+				attach(from, existing);
+				existing.setFishingSet(from);
+				changes.inserted++;
+			} else if (null == from) {
+				existing.setFishingSet(null);
+				em.remove(to);
+				changes.deleted++;
+			} else {
+				copy(to, from);
+				list(to, to.getCatchList(), from.getCatchList(), CATCH_KEY, null);
+				list(to, to.getLengthSamples(), from.getLengthSamples(), HEADER_KEY, new Children<LengthSamplingHeader>() {
+					public void merge(final LengthSamplingHeader toHeader, final LengthSamplingHeader fromHeader) {
+						list(toHeader, toHeader.getSamples(), fromHeader.getSamples(), SAMPLE_KEY, null);
+						list(toHeader, toHeader.getBrails(), fromHeader.getBrails(), BRAIL_KEY, null);
+					}
+				});
+			}
+		}
+
+		/**
+		 * Matches existing and incoming rows by key, in order, so duplicate keys
+		 * pair up first to first.
+		 */
+		<T> void list(
+		    final Object parent, final List<T> existing, final List<T> incoming,
+		    final Function<T, Object> key, final Children<T> children) {
+			final ListMultimap<Object, T> byKey = LinkedListMultimap.create();
+			for (final T row : existing) {
+				if (null != row) { byKey.put(key.apply(row), row); }
+			}
+			final List<T> additions = new ArrayList<T>();
+			for (final T row : null == incoming ? Collections.<T>emptyList() : incoming) {
+				if (null == row) { continue; }
+				final List<T> candidates = byKey.get(key.apply(row));
+				if (candidates.isEmpty()) {
+					additions.add(row);
+					continue;
+				}
+				final T match = candidates.remove(0);
+				copy(match, row);
+				if (null != children) { children.merge(match, row); }
+			}
+			for (final T leftover : new ArrayList<T>(byKey.values())) {
+				existing.remove(leftover);
+				em.remove(leftover);
+				changes.deleted++;
+			}
+			for (final T row : additions) {
+				attach(row, parent);
+				existing.add(row);
+				changes.inserted++;
+			}
+		}
+
+		<T> void replace(final Object parent, final Collection<T> existing, final Collection<T> incoming) {
+			for (final T row : existing) {
+				em.remove(row);
+				changes.deleted++;
+			}
+			existing.clear();
+			if (null == incoming) { return; }
+			for (final T row : incoming) {
+				attach(row, parent);
+				existing.add(row);
+				changes.inserted++;
+			}
+		}
+
+		/**
+		 * Copies the column values (and references to code tables, vessels etc.)
+		 * from one row to another, leaving the ID, audit entry and children alone.
+		 */
+		void copy(final Object to, final Object from) {
+			final BeanWrapper target = new BeanWrapperImpl(to);
+			final BeanWrapper source = new BeanWrapperImpl(from);
+			boolean dirty = false;
+			for (final PropertyDescriptor pd : target.getPropertyDescriptors()) {
+				final String name = pd.getName();
+				if (SKIPPED_PROPERTIES.contains(name) || !isValue(pd.getPropertyType())) { continue; }
+				if (!target.isWritableProperty(name) || !source.isReadableProperty(name)) { continue; }
+				final Object value = source.getPropertyValue(name);
+				if (sameValue(target.getPropertyValue(name), value)) { continue; }
+				target.setPropertyValue(name, value);
+				dirty = true;
+			}
+			if (dirty) { changes.updated++; }
+		}
+	}
+
+	private interface Children<T> {
+		void merge(T existing, T incoming);
+	}
+
+	/**
+	 * Points a new child at its (managed) parent, whatever the back reference is called.
+	 */
+	static void attach(final Object child, final Object parent) {
+		final BeanWrapper bw = new BeanWrapperImpl(child);
+		for (final PropertyDescriptor pd : bw.getPropertyDescriptors()) {
+			final Class<?> type = pd.getPropertyType();
+			if (null != pd.getWriteMethod() && null != type && !Object.class.equals(type) && type.isInstance(parent)) {
+				bw.setPropertyValue(pd.getName(), parent);
+			}
+		}
+	}
+
+	private static boolean isValue(final Class<?> type) {
+		if (null == type || Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type)) {
+			return false;
+		}
+		for (final Class<?> owned : OWNED) {
+			if (owned.isAssignableFrom(type) || type.isAssignableFrom(owned)) { return false; }
+		}
+		return true;
+	}
+
+	static boolean sameValue(final Object a, final Object b) {
+		if (a == b) { return true; }
+		if (null == a || null == b) { return false; }
+		// Loaded dates are java.sql.Timestamps, which never equal a java.util.Date
+		if (a instanceof Date && b instanceof Date) {
+			return ((Date)a).getTime() == ((Date)b).getTime();
+		}
+		if (a instanceof BigDecimal && b instanceof BigDecimal) {
+			return 0 == ((BigDecimal)a).compareTo((BigDecimal)b);
+		}
+		if (isReference(a) && isReference(b)) {
+			final Object id = entityId(a);
+			return null != id && id.equals(entityId(b));
+		}
+		return a.equals(b);
+	}
+
+	private static boolean isReference(final Object value) {
+		return value.getClass().getName().startsWith(REFERENCE_PACKAGE);
+	}
+
+	static Object entityId(final Object entity) {
+		if (null == entity) { return null; }
+		final BeanWrapper bw = new BeanWrapperImpl(entity);
+		return bw.isReadableProperty("id") ? bw.getPropertyValue("id") : null;
+	}
+
+	static Long time(final Date date) {
+		return null == date ? null : Long.valueOf(date.getTime());
+	}
+}
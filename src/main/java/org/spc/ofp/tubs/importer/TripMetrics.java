@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TripMetrics is what one trip cost to import.  Instances are immutable.
+ *
+ * CPU time and allocated bytes only cover the threads that ran the trip's
+ * stages, so work handed to the mapping pool isn't included.  Statement counts
+ * come from the (global) Hibernate statistics and are exact only when one trip
+ * is in flight at a time.  A value of -1 means the JVM can't measure it.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TripMetrics {
+
+	private final String sourceId;
+	private final String status;
+	private final long wallNanos;
+	private final long cpuNanos;
+	private final long allocatedBytes;
+	private final long sourceStatements;
+	private final long targetStatements;
+	private final long entities;
+	private final Map<ImportStage, Long> stageNanos;
+
+	TripMetrics(
+	    final String sourceId, final String status,
+	    final long wallNanos, final long cpuNanos, final long allocatedBytes,
+	    final long sourceStatements, final long targetStatements, final long entities,
+	    final Map<ImportStage, Long> stageNanos) {
+		this.sourceId = sourceId;
+		this.status = status;
+		this.wallNanos = wallNanos;
+		this.cpuNanos = cpuNanos;
+		this.allocatedBytes = allocatedBytes;
+		this.sourceStatements = sourceStatements;
+		this.targetStatements = targetStatements;
+		this.entities = entities;
+		this.stageNanos = Collections.unmodifiableMap(new EnumMap<ImportStage, Long>(stageNanos));
+	}
+
+	public String getSourceId() { return sourceId; }
+	public String getStatus() { return status; }
+	public long getWallNanos() { return wallNanos; }
+	public long getCpuNanos() { return cpuNanos; }
+	public long getAllocatedBytes() { return allocatedBytes; }
+	public long getSourceStatements() { return sourceStatements; }
+	public long getTargetStatements() { return targetStatements; }
+	/** @return Rows in the converted trip graph (see EntityCounts), or 0 if it never got that far */
+	public long getEntities() { return entities; }
+
+	public long getStageNanos(final ImportStage stage) {
+		final Long nanos = stageNanos.get(stage);
+		return null == nanos ? 0L : nanos.longValue();
+	}
+
+	/**
+	 * @return A one line summary, suitable for the ImportStatus comments
+	 */
+	public String summary() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(String.format("wall=%dms cpu=%dms alloc=%dKB sourceSql=%d targetSql=%d entities=%d",
+		    TimeUnit.NANOSECONDS.toMillis(wallNanos),
+		    cpuNanos < 0 ? -1L : TimeUnit.NANOSECONDS.toMillis(cpuNanos),
+		    allocatedBytes < 0 ? -1L : allocatedBytes / 1024L,
+		    sourceStatements,
+		    targetStatements,
+		    entities));
+		for (final Map.Entry<ImportStage, Long> entry : stageNanos.entrySet()) {
+			sb.append(String.format(" %s=%dms",
+			    entry.getKey().name().toLowerCase(), TimeUnit.NANOSECONDS.toMillis(entry.getValue())));
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s [%s] %s", sourceId, status, summary());
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spc.ofp.tubs.domain.Trip;
+
+import com.google.common.base.Strings;
+
+/**
+ * TripOverlapIndex finds trips whose dates overlap a trip by the same vessel
+ * or the same observer, which is how the same trip shows up in the source
+ * under two trip IDs.  It is built once per run from the trips in TUBS and
+ * kept up to date as trips are saved, so checking a trip costs no queries.
+ *
+ * Trips overlap if each departs before the other returns;  a return and a
+ * departure on the same day don't count.  Dates carry times, so they are cut
+ * down to the local calendar day before they're indexed or compared.  Trips
+ * without both dates aren't indexed or checked.
+ *
+ * Each vessel and observer has its trips sorted by departure, with the latest
+ * return so far alongside, which lets a search stop as soon as no earlier trip
+ * can reach the new one.  There are only ever a few hundred trips per key, so
+ * this does as well as a balanced interval tree for a fraction of the code.
+ *
+ * claim() checks a trip and holds its place in one step, so that two workers
+ * can't both import overlapping trips.  The claim is then either confirmed
+ * with the saved TUBS trip ID or released.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TripOverlapIndex {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TripOverlapIndex.class);
+
+	private static final String TRIPS_JPQL =
+	    "SELECT t.id, v.id, t.staffCode, t.departureDate, t.returnDate FROM Trip t LEFT JOIN t.vessel v";
+
+	/**
+	 * What to do with a trip that overlaps another.
+	 */
+	public enum Action {
+		/** Import it anyway, noting the overlap in its ImportStatus */
+		FLAG,
+		/** Don't import it */
+		SKIP
+	}
+
+	@PersistenceUnit(unitName = "tubs")
+	protected EntityManagerFactory tubsEmf;
+
+	/**
+	 * One indexed trip, its dates as day numbers (see dayOf).  tripId is null
+	 * until a claim is confirmed.
+	 */
+	public static class Entry {
+		private final String sourceId;
+		private final Long vesselId;
+		private final String staffCode;
+		private final long departure;
+		private final long returned;
+		private Long tripId;
+
+		Entry(final String sourceId, final Long tripId, final Long vesselId, final String staffCode,
+		    final long departure, final long returned) {
+			this.sourceId = sourceId;
+			this.tripId = tripId;
+			this.vesselId = vesselId;
+			this.staffCode = staffCode;
+			this.departure = departure;
+			this.returned = returned;
+		}
+
+		@Override
+		public String toString() {
+			return null == tripId ? "source trip " + sourceId : "TUBS trip " + tripId;
+		}
+	}
+
+	/**
+	 * The result of claim():  what the trip overlaps, and its entry if it was indexed.
+	 */
+	public static class Claim {
+		private final List<String> overlaps;
+		private final Entry entry;
+
+		Claim(final List<String> overlaps, final Entry entry) {
+			this.overlaps = overlaps;
+			this.entry = entry;
+		}
+
+		public List<String> getOverlaps() { return overlaps; }
+		public Entry getEntry() { return entry; }
+	}
+
+	/**
+	 * The trips of one vessel or observer, sorted by departure.  maxReturn[i]
+	 * is the latest return of trips 0..i.
+	 */
+	private static class Intervals {
+		private final List<Entry> trips = new ArrayList<Entry>();
+		private long[] maxReturn = new long[8];
+
+		void add(final Entry entry) {
+			int i = trips.size();
+			while (i > 0 && trips.get(i - 1).departure > entry.departure) { i--; }
+			trips.add(i, entry);
+			if (maxReturn.length < trips.size()) {
+				final long[] grown = new long[maxReturn.length * 2];
+				System.arraycopy(maxReturn, 0, grown, 0, maxReturn.length);
+				maxReturn = grown;
+			}
+			rebuild(i);
+		}
+
+		void remove(final Entry entry) {
+			final int i = trips.indexOf(entry);
+			if (i < 0) { return; }
+			trips.remove(i);
+			rebuild(i);
+		}
+
+		private void rebuild(final int from) {
+			for (int i = from; i < trips.size(); i++) {
+				final long returned = trips.get(i).returned;
+				maxReturn[i] = 0 == i ? returned : Math.max(maxReturn[i - 1], returned);
+			}
+		}
+
+		void overlapping(final long departure, final long returned, final Long ignoreTripId,
+		    final String key, final List<String> found) {
+			// Last trip that departs before this one returns
+			int lo = 0;
+			int hi = trips.size() - 1;
+			int last = -1;
+			while (lo <= hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (trips.get(mid).departure < returned) {
+					last = mid;
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			for (int i = last; i >= 0 && maxReturn[i] > departure; i--) {
+				final Entry other = trips.get(i);
+				if (other.returned > departure && (null == ignoreTripId || !ignoreTripId.equals(other.tripId))) {
+					found.add(String.format("%s (%s)", other, key));
+				}
+			}
+		}
+	}
+
+	private final Map<Long, Intervals> byVessel = new HashMap<Long, Intervals>();
+	private final Map<String, Intervals> byObserver = new HashMap<String, Intervals>();
+	private final Map<Long, Entry> byTripId = new HashMap<Long, Entry>();
+
+	/**
+	 * Indexes every trip in TUBS, in one query.
+	 * @return The number of trips indexed
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized int preload() {
+		final List<Object[]> rows;
+		final EntityManager em = tubsEmf.createEntityManager();
+		try {
+			rows = em.createQuery(TRIPS_JPQL).getResultList();
+		} finally {
+			em.close();
+		}
+		byVessel.clear();
+		byObserver.clear();
+		byTripId.clear();
+		for (final Object[] row : rows) {
+			final Entry entry = entry(null, ((Number)row[0]).longValue(),
+			    null == row[1] ? null : ((Number)row[1]).longValue(),
+			    (String)row[2], (Date)row[3], (Date)row[4]);
+			if (null != entry) { add(entry); }
+		}
+		LOGGER.info(String.format("Indexed %d of %d TUBS trips for overlaps (%d vessels, %d observers)",
+		    byTripId.size(), rows.size(), byVessel.size(), byObserver.size()));
+		return byTripId.size();
+	}
+
+	private static Entry entry(final String sourceId, final Long tripId, final Long vesselId, final String staffCode,
+	    final Date departure, final Date returned) {
+		if (null == departure || null == returned) { return null; }
+		final String observer = Strings.isNullOrEmpty(staffCode) ? null : staffCode.trim().toUpperCase();
+		if (null == vesselId && null == observer) { return null; }
+		return new Entry(sourceId, tripId, vesselId, observer, dayOf(departure), dayOf(returned));
+	}
+
+	/**
+	 * @param date
+	 * @return Days since the epoch of the local calendar day date falls on
+	 */
+	static long dayOf(final Date date) {
+		final long millis = date.getTime();
+		final long local = millis + TimeZone.getDefault().getOffset(millis);
+		// Floor, so that days before 1970 don't round towards zero
+		final long day = TimeUnit.DAYS.toMillis(1);
+		return local >= 0 ? local / day : (local - day + 1) / day;
+	}
+
+	/**
+	 * Checks trip against the index and, unless it's to be skipped, adds it.
+	 * @param sourceId
+	 * @param trip A converted, unsaved trip
+	 * @param ignoreTripId The TUBS trip this one replaces, if any
+	 * @param action
+	 * @return The overlaps found, and the entry to confirm or release (null if the trip wasn't indexed)
+	 */
+	public synchronized Claim claim(final String sourceId, final Trip trip, final Long ignoreTripId, final Action action) {
+		final Entry entry = entry(sourceId, null,
+		    null == trip.getVessel() ? null : trip.getVessel().getId(),
+		    trip.getStaffCode(), trip.getDepartureDate(), trip.getReturnDate());
+		if (null == entry) { return new Claim(Collections.<String>emptyList(), null); }
+		final List<String> overlaps = new ArrayList<String>();
+		if (null != entry.vesselId && byVessel.containsKey(entry.vesselId)) {
+			byVessel.get(entry.vesselId).overlapping(
+			    entry.departure, entry.returned, ignoreTripId, "vessel " + entry.vesselId, overlaps);
+		}
+		if (null != entry.staffCode && byObserver.containsKey(entry.staffCode)) {
+			byObserver.get(entry.staffCode).overlapping(
+			    entry.departure, entry.returned, ignoreTripId, "observer " + entry.staffCode, overlaps);
+		}
+		if (!overlaps.isEmpty() && Action.SKIP == action) {
+			return new Claim(overlaps, null);
+		}
+		add(entry);
+		return new Claim(overlaps, entry);
+	}
+
+	/**
+	 * Records the TUBS trip ID of a claimed trip that has been saved.
+	 * @param entry
+	 * @param tripId
+	 * @param replacedTripId The TUBS trip it replaced, if any, which leaves the index
+	 */
+	public synchronized void confirm(final Entry entry, final long tripId, final Long replacedTripId) {
+		if (null != replacedTripId) {
+			final Entry replaced = byTripId.get(replacedTripId);
+			if (null != replaced && replaced != entry) { remove(replaced); }
+		}
+		entry.tripId = tripId;
+		byTripId.put(tripId, entry);
+	}
+
+	/**
+	 * Drops the claim of a trip that wasn't saved.
+	 * @param entry
+	 */
+	public synchronized void release(final Entry entry) {
+		remove(entry);
+	}
+
+	private void add(final Entry entry) {
+		if (null != entry.vesselId) {
+			intervals(byVessel, entry.vesselId).add(entry);
+		}
+		if (null != entry.staffCode) {
+			intervals(byObserver, entry.staffCode).add(entry);
+		}
+		if (null != entry.tripId) {
+			byTripId.put(entry.tripId, entry);
+		}
+	}
+
+	private void remove(final Entry entry) {
+		if (null != entry.vesselId && byVessel.containsKey(entry.vesselId)) {
+			byVessel.get(entry.vesselId).remove(entry);
+		}
+		if (null != entry.staffCode && byObserver.containsKey(entry.staffCode)) {
+			byObserver.get(entry.staffCode).remove(entry);
+		}
+		if (null != entry.tripId && entry == byTripId.get(entry.tripId)) {
+			byTripId.remove(entry.tripId);
+		}
+	}
+
+	private static <K> Intervals intervals(final Map<K, Intervals> map, final K key) {
+		Intervals intervals = map.get(key);
+		if (null == intervals) {
+			intervals = new Intervals();
+			map.put(key, intervals);
+		}
+		return intervals;
+	}
+}
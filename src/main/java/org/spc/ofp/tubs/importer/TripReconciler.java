@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Resource;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spc.ofp.observer.domain.ITrip;
+import org.spc.ofp.tubs.domain.ImportStatus;
+import org.spc.ofp.tubs.domain.Trip;
+import org.spc.ofp.tubs.domain.common.CommonRepository;
+import org.spc.ofp.tubs.domain.purseseine.PurseSeineTrip;
+import org.spc.ofp.tubs.importer.TripFingerprint.Section;
+import org.springframework.batch.item.ItemProcessor;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * TripReconciler confirms that imported TUBS trips still match their observer source.
+ *
+ * Each side is reduced to a TripFingerprint and only the fingerprints are compared.
+ * The source side goes through TubsTripProcessor so that both fingerprints
+ * describe the same shape of data;  the processor must be in lookup-only mode
+ * (see TubsTripProcessor.setLookupOnly), or reconciling would create the
+ * observers, ports and vessels it's missing.  The target side is read with a
+ * fixed set of fetch joins, one per collection, instead of walking the lazy
+ * graph.  Trips are split into partitions and each partition is handled by its
+ * own worker thread.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TripReconciler {
+
+	@Resource(name = "ObserverTripProcessor")
+	protected ItemProcessor<String, ITrip> observerTripProcessor;
+
+	@Resource(name = "TubsTripProcessor")
+	protected ItemProcessor<ITrip, Trip> tubsTripProcessor;
+
+	@Autowired
+	protected CommonRepository repo;
+
+	@PersistenceUnit(unitName = "tubs")
+	protected EntityManagerFactory tubsEmf;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TripReconciler.class);
+
+	private static final int DEFAULT_PARTITION_SIZE = 50;
+
+	private static final String TRIP_JPQL =
+	    "SELECT DISTINCT t FROM Trip t LEFT JOIN FETCH t.vesselSightings WHERE t.id = :tripId";
+
+	// Each query fills one level of collections in the persistence context;  they're
+	// separate because Hibernate can't fetch more than one bag at a time
+	private static final String[] FETCH_JPQL = {
+		"SELECT DISTINCT t FROM Trip t LEFT JOIN FETCH t.fishTransfers WHERE t.id = :tripId",
+		"SELECT DISTINCT r FROM Trip t JOIN t.pollutionReports r LEFT JOIN FETCH r.details WHERE t.id = :tripId",
+	};
+
+	private static final String[] PURSE_SEINE_FETCH_JPQL = {
+		"SELECT DISTINCT t FROM PurseSeineTrip t LEFT JOIN FETCH t.days WHERE t.id = :tripId",
+		"SELECT DISTINCT d FROM PurseSeineTrip t JOIN t.days d " +
+		    "LEFT JOIN FETCH d.activities a LEFT JOIN FETCH a.fishingSet WHERE t.id = :tripId",
+		"SELECT DISTINCT s FROM PurseSeineTrip t JOIN t.days d JOIN d.activities a JOIN a.fishingSet s " +
+		    "LEFT JOIN FETCH s.catchList WHERE t.id = :tripId",
+		"SELECT DISTINCT s FROM PurseSeineTrip t JOIN t.days d JOIN d.activities a JOIN a.fishingSet s " +
+		    "LEFT JOIN FETCH s.lengthSamples WHERE t.id = :tripId",
+		"SELECT DISTINCT h FROM PurseSeineTrip t JOIN t.days d JOIN d.activities a JOIN a.fishingSet s " +
+		    "JOIN s.lengthSamples h LEFT JOIN FETCH h.samples WHERE t.id = :tripId",
+	};
+
+	private String sourceName;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int partitionSize = DEFAULT_PARTITION_SIZE;
+
+	public void setSourceName(final String value) {
+		this.sourceName = value;
+	}
+
+	public void setThreads(final int value) {
+		Preconditions.checkArgument(value > 0, "Thread count must be positive");
+		this.threads = value;
+	}
+
+	public void setPartitionSize(final int value) {
+		Preconditions.checkArgument(value > 0, "Partition size must be positive");
+		this.partitionSize = value;
+	}
+
+	public ReconciliationReport reconcile(final List<Long> tripIds) throws InterruptedException {
+		Preconditions.checkNotNull(tripIds, "Trip Id list is null");
+		Preconditions.checkState(null != sourceName, "Source name has not been set");
+
+		final ReconciliationReport report = new ReconciliationReport();
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<Void>> partitions = new ArrayList<Future<Void>>();
+			for (final List<Long> partition : Lists.partition(tripIds, partitionSize)) {
+				partitions.add(pool.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						for (final Long tripId : partition) {
+							reconcile(Long.toString(tripId), report);
+						}
+						return null;
+					}
+				}));
+			}
+			for (final Future<Void> partition : partitions) {
+				try {
+					partition.get();
+				} catch (ExecutionException ex) {
+					// reconcile(String, ReconciliationReport) records its own failures
+					LOGGER.error("Reconciliation partition failed", ex.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return report;
+	}
+
+	protected void reconcile(final String sourceId, final ReconciliationReport report) {
+		ImportStatus status = null;
+		try {
+			status = repo.findImportStatus(sourceId, sourceName);
+		} catch (Exception ignoreMe) { } // NOPMD
+
+		if (null == status || !"S".equalsIgnoreCase(status.getStatus()) || null == status.getTripId()) {
+			report.notImported();
+			return;
+		}
+
+		final Long tripId = status.getTripId();
+		try {
+			final TripFingerprint source = TripFingerprint.of(tubsTripProcessor.process(observerTripProcessor.process(sourceId)));
+			final TripFingerprint target = fingerprintTarget(tripId);
+			final Set<Section> diffs = source.differences(target);
+			if (diffs.isEmpty()) {
+				report.matched();
+			} else {
+				report.mismatch(sourceId, tripId, diffs, source, target);
+			}
+		} catch (Exception ex) {
+			LOGGER.warn(String.format("Unable to reconcile sourceId={%s}", sourceId), ex);
+			report.failed(sourceId, tripId, ex.getMessage());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	protected TripFingerprint fingerprintTarget(final long tripId) {
+		// Private EntityManager, so that every query below fills in the same trip graph
+		final EntityManager em = tubsEmf.createEntityManager();
+		try {
+			final List<Trip> trips = em.createQuery(TRIP_JPQL).setParameter("tripId", tripId).getResultList();
+			if (trips.isEmpty()) {
+				throw new IllegalStateException(String.format("TUBS trip %d no longer exists", tripId));
+			}
+			final Trip trip = trips.get(0);
+			fetch(em, FETCH_JPQL, tripId);
+			if (trip instanceof PurseSeineTrip) {
+				fetch(em, PURSE_SEINE_FETCH_JPQL, tripId);
+			}
+			return TripFingerprint.of(trip);
+		} finally {
+			em.close();
+		}
+	}
+
+	private static void fetch(final EntityManager em, final String[] queries, final long tripId) {
+		for (final String jpql : queries) {
+			em.createQuery(jpql).setParameter("tripId", tripId).getResultList();
+		}
+	}
+}
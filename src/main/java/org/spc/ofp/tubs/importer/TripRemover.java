@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spc.ofp.tubs.domain.Trip;
+
+/**
+ * TripRemover deletes a previously imported TUBS trip, relying on the
+ * domain cascades to take the rest of the graph with it.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TripRemover {
+
+	@PersistenceUnit(unitName = "tubs")
+	protected EntityManagerFactory tubsEmf;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TripRemover.class);
+
+	/**
+	 * @param tripId
+	 * @return true if the trip existed and was removed
+	 */
+	public boolean remove(final long tripId) {
+		final EntityManager em = tubsEmf.createEntityManager();
+		final EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			final boolean removed = remove(em, tripId);
+			tx.commit();
+			return removed;
+		} finally {
+			if (tx.isActive()) { tx.rollback(); }
+			em.close();
+		}
+	}
+
+	/**
+	 * Removes the trip in em's transaction.
+	 * @param em
+	 * @param tripId
+	 * @return true if the trip existed and was removed
+	 */
+	public boolean remove(final EntityManager em, final long tripId) {
+		final Trip trip = em.find(Trip.class, tripId);
+		if (null == trip) { return false; }
+		em.remove(trip);
+		LOGGER.debug(String.format("Removed TUBS trip %d", tripId));
+		return true;
+	}
+}
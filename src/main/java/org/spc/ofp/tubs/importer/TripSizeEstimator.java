@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+
+import com.google.common.collect.Lists;
+
+/**
+ * TripSizeEstimator guesses how much work each observer trip is, from row
+ * counts in the source, without loading any trip graphs.  It's used to start
+ * the biggest trips first so that a run doesn't end with one worker grinding
+ * through a giant trip while the others sit idle.
+ *
+ * The estimate is days + sets (fishing activities), counted in one grouped
+ * query per thousand trips.  Sets are where the catch and length samples hang,
+ * so this tracks the work a trip turns into closely enough for ordering,
+ * without joining down to the samples themselves.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TripSizeEstimator {
+
+	@PersistenceUnit(unitName = "observer")
+	protected EntityManagerFactory observerEmf;
+
+	// Activity 1 is fishing, as in TubsTripProcessor.asTubsActivity()
+	private static final String SIZE_JPQL =
+	    "SELECT t.id, COUNT(DISTINCT d), SUM(CASE WHEN a.s_act_id = 1 THEN 1 ELSE 0 END) " +
+	    "FROM PurseSeineTrip t JOIN t.fishingDays d LEFT JOIN d.activities a " +
+	    "WHERE t.id IN (:ids) GROUP BY t.id";
+
+	// Stay well under the SQL Server limit of 2100 parameters
+	private static final int IN_LIST_SIZE = 1000;
+
+	/**
+	 * @param tripIds
+	 * @return Estimated size by trip ID.  Trips with no fishing days are left out.
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Long, Long> estimate(final List<Long> tripIds) {
+		final Map<Long, Long> sizes = new HashMap<Long, Long>(tripIds.size() * 2);
+		final EntityManager em = observerEmf.createEntityManager();
+		try {
+			for (final List<Long> chunk : Lists.partition(tripIds, IN_LIST_SIZE)) {
+				final List<Object[]> rows = em.createQuery(SIZE_JPQL)
+				    .setParameter("ids", new ArrayList<Long>(chunk))
+				    .getResultList();
+				for (final Object[] row : rows) {
+					long size = 0L;
+					for (int i = 1; i < row.length; i++) {
+						size += null == row[i] ? 0L : ((Number)row[i]).longValue();
+					}
+					sizes.put(((Number)row[0]).longValue(), size);
+				}
+			}
+		} finally {
+			em.close();
+		}
+		return sizes;
+	}
+
+	/**
+	 * Reorders source trip IDs biggest first.  IDs that can't be estimated go last,
+	 * in their original order.
+	 * @param sourceIds
+	 * @return A new list
+	 */
+	public List<String> largestFirst(final List<String> sourceIds) {
+		final List<Long> tripIds = new ArrayList<Long>(sourceIds.size());
+		for (final String id : sourceIds) {
+			final Long tripId = parseId(id);
+			if (null != tripId) { tripIds.add(tripId); }
+		}
+		final Map<Long, Long> sizes = estimate(tripIds);
+		final List<String> ordered = new ArrayList<String>(sourceIds);
+		// Collections.sort is stable, so ties keep their processing order
+		Collections.sort(ordered, new Comparator<String>() {
+			public int compare(final String a, final String b) {
+				return RunReport.compareLongs(sizeOf(sizes, b), sizeOf(sizes, a));
+			}
+		});
+		return ordered;
+	}
+
+	private static long sizeOf(final Map<Long, Long> sizes, final String id) {
+		final Long tripId = parseId(id);
+		final Long size = null == tripId ? null : sizes.get(tripId);
+		return null == size ? -1L : size.longValue();
+	}
+
+	private static Long parseId(final String id) {
+		try {
+			return Long.valueOf(id.trim());
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+}
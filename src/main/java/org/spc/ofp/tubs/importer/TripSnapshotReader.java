@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+import org.spc.ofp.observer.domain.ITrip;
+
+/**
+ * TripSnapshotReader serves observer trip graphs out of a snapshot file written
+ * by TripSnapshotWriter.  The file is memory mapped, so repeated runs over the
+ * same snapshot are served from the OS page cache.
+ *
+ * Instances are safe to share between threads.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TripSnapshotReader implements Closeable {
+
+	private static final int TRAILER_SIZE = 8 + TripSnapshotWriter.MAGIC.length;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	// Whole file mapping, or null if the file is too big to map in one go
+	private final MappedByteBuffer mapped;
+	private final long[] tripIds;
+	private final long[] offsets;
+	private final int[] lengths;
+
+	public TripSnapshotReader(final File snapshot) throws IOException {
+		file = new RandomAccessFile(snapshot, "r");
+		channel = file.getChannel();
+		final long size = channel.size();
+		mapped = size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+
+		checkMagic(map(0, TripSnapshotWriter.MAGIC.length), snapshot);
+		final ByteBuffer trailer = map(size - TRAILER_SIZE, TRAILER_SIZE);
+		final long indexOffset = trailer.getLong();
+		checkMagic(trailer, snapshot);
+
+		final ByteBuffer index = map(indexOffset, size - TRAILER_SIZE - indexOffset);
+		final int count = index.getInt();
+		tripIds = new long[count];
+		offsets = new long[count];
+		lengths = new int[count];
+		for (int i = 0; i < count; i++) {
+			tripIds[i] = index.getLong();
+			offsets[i] = index.getLong();
+			lengths[i] = index.getInt();
+		}
+	}
+
+	/**
+	 * @return Every trip ID in the snapshot, in ascending order
+	 */
+	public List<Long> getTripIds() {
+		final List<Long> ids = new ArrayList<Long>(tripIds.length);
+		for (final long tripId : tripIds) {
+			ids.add(tripId);
+		}
+		return Collections.unmodifiableList(ids);
+	}
+
+	public boolean contains(final long tripId) {
+		return Arrays.binarySearch(tripIds, tripId) >= 0;
+	}
+
+	/**
+	 * @param tripId
+	 * @return The trip graph, or null if the snapshot doesn't contain tripId
+	 */
+	public ITrip read(final long tripId) throws IOException {
+		final int i = Arrays.binarySearch(tripIds, tripId);
+		if (i < 0) { return null; }
+		final byte[] record = new byte[lengths[i]];
+		map(offsets[i], lengths[i]).get(record);
+		final ObjectInputStream ois = new ObjectInputStream(
+		    new InflaterInputStream(new ByteArrayInputStream(record)));
+		try {
+			return (ITrip)ois.readObject();
+		} catch (ClassNotFoundException ex) {
+			throw new IOException("Snapshot was written by an incompatible observer domain: " + ex.getMessage());
+		} finally {
+			ois.close();
+		}
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private ByteBuffer map(final long offset, final long length) throws IOException {
+		if (null != mapped) {
+			// duplicate() so that concurrent readers don't share a position
+			final ByteBuffer view = mapped.duplicate();
+			view.position((int)offset);
+			view.limit((int)(offset + length));
+			return view.slice();
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+	}
+
+	private static void checkMagic(final ByteBuffer buffer, final File snapshot) throws IOException {
+		final byte[] magic = new byte[TripSnapshotWriter.MAGIC.length];
+		buffer.get(magic);
+		if (!Arrays.equals(magic, TripSnapshotWriter.MAGIC)) {
+			throw new IOException(snapshot + " is not a trip snapshot");
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.hibernate.collection.PersistentCollection;
+import org.hibernate.proxy.HibernateProxy;
+import org.spc.ofp.observer.domain.ITrip;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * TripSnapshotWriter dumps observer trip graphs into a local snapshot file
+ * that TripSnapshotReader can replay without touching the observer database.
+ *
+ * Layout (big endian):
+ * <pre>
+ *   "TUBSNAP1"
+ *   record*      int length, deflated serialized ITrip
+ *   index        int count, then count x (long tripId, long offset, int length) sorted by tripId
+ *   trailer      long indexOffset, "TUBSNAP1"
+ * </pre>
+ *
+ * Hibernate proxies and persistent collections are swapped for their plain
+ * contents on the way out, so the graph must be loaded while the source
+ * session is still usable.  The observer entities have to be Serializable.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TripSnapshotWriter implements Closeable {
+
+	static final byte[] MAGIC = { 'T', 'U', 'B', 'S', 'N', 'A', 'P', '1' };
+
+	private final DataOutputStream out;
+	private final Map<Long, long[]> index = new TreeMap<Long, long[]>();
+	private long position;
+
+	public TripSnapshotWriter(final File file) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		out.write(MAGIC);
+		position = MAGIC.length;
+	}
+
+	public void write(final long tripId, final ITrip trip) throws IOException {
+		Preconditions.checkNotNull(trip, "Trip is null");
+		Preconditions.checkArgument(!index.containsKey(tripId), "Trip %s is already in the snapshot", tripId);
+
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 16);
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			final ObjectOutputStream oos = new DetachingOutputStream(new DeflaterOutputStream(buffer, deflater));
+			oos.writeObject(trip);
+			oos.close();
+		} finally {
+			deflater.end();
+		}
+
+		final byte[] record = buffer.toByteArray();
+		out.writeInt(record.length);
+		out.write(record);
+		index.put(tripId, new long[] { position + 4, record.length });
+		position += 4 + record.length;
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	public void close() throws IOException {
+		final long indexOffset = position;
+		out.writeInt(index.size());
+		for (final Map.Entry<Long, long[]> entry : index.entrySet()) {
+			out.writeLong(entry.getKey());
+			out.writeLong(entry.getValue()[0]);
+			out.writeInt((int)entry.getValue()[1]);
+		}
+		out.writeLong(indexOffset);
+		out.write(MAGIC);
+		out.close();
+	}
+
+	/**
+	 * Replaces Hibernate proxies and collection wrappers with plain objects, which
+	 * would otherwise come back uninitialized (and sessionless) on the other side.
+	 */
+	static class DetachingOutputStream extends ObjectOutputStream {
+
+		DetachingOutputStream(final OutputStream out) throws IOException {
+			super(out);
+			enableReplaceObject(true);
+		}
+
+		@Override
+		protected Object replaceObject(final Object obj) throws IOException {
+			if (obj instanceof HibernateProxy) {
+				return ((HibernateProxy)obj).getHibernateLazyInitializer().getImplementation();
+			}
+			if (obj instanceof PersistentCollection) {
+				if (obj instanceof List) {
+					return new ArrayList<Object>((List<?>)obj);
+				}
+				if (obj instanceof Set) {
+					return new LinkedHashSet<Object>((Set<?>)obj);
+				}
+				if (obj instanceof Map) {
+					return new LinkedHashMap<Object, Object>((Map<?, ?>)obj);
+				}
+				if (obj instanceof Collection) {
+					return new ArrayList<Object>((Collection<?>)obj);
+				}
+			}
+			return obj;
+		}
+	}
+}
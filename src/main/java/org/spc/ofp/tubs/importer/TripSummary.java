@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.spc.ofp.tubs.domain.purseseine.Activity;
+import org.spc.ofp.tubs.domain.purseseine.Day;
+import org.spc.ofp.tubs.domain.purseseine.FishingSet;
+import org.spc.ofp.tubs.domain.purseseine.PurseSeineTrip;
+import org.spc.ofp.tubs.domain.purseseine.SetCatch;
+
+/**
+ * TripSummary holds the per-trip totals that reports would otherwise
+ * aggregate from the set and catch tables:  days, fishing days, sets and
+ * total catch for the trip, catch by species, and sets by association type.
+ * TripSummaryWriter stores them.
+ *
+ * Catch rows without a species code are left out of the species totals.
+ * Sets on activities without an association type are counted under null.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TripSummary {
+
+	/**
+	 * Totals for one species or association type.
+	 */
+	public static class Totals {
+		private int sets;
+		private BigDecimal weight = BigDecimal.ZERO;
+		private long count;
+
+		public int getSets() { return sets; }
+		public BigDecimal getWeight() { return weight; }
+		public long getCount() { return count; }
+	}
+
+	private int days;
+	private int sets;
+	private BigDecimal fishingDays = BigDecimal.ZERO;
+	private BigDecimal totalCatch = BigDecimal.ZERO;
+	private final Map<String, Totals> species = new TreeMap<String, Totals>();
+	private final Map<Integer, Totals> associations = new LinkedHashMap<Integer, Totals>();
+
+	private TripSummary() {}
+
+	public static TripSummary of(final PurseSeineTrip trip) {
+		final TripSummary summary = new TripSummary();
+		if (null == trip || null == trip.getDays()) { return summary; }
+		for (final Day day : trip.getDays()) {
+			if (null == day) { continue; }
+			summary.days++;
+			if (null == day.getActivities()) { continue; }
+			for (final Activity activity : day.getActivities()) {
+				if (null == activity) { continue; }
+				summary.fishingDays = add(summary.fishingDays, activity.getFishingDays());
+				if (null != activity.getFishingSet()) {
+					summary.addSet(activity, activity.getFishingSet());
+				}
+			}
+		}
+		return summary;
+	}
+
+	private void addSet(final Activity activity, final FishingSet fset) {
+		sets++;
+		totalCatch = add(totalCatch, fset.getTotalCatch());
+		final Totals association = totals(associations,
+		    null == activity.getAssociationType() ? null : activity.getAssociationType().getId());
+		association.sets++;
+		association.weight = add(association.weight, fset.getTotalCatch());
+		if (null == fset.getCatchList()) { return; }
+		// A species can be on several catch rows of a set (by fate and condition)
+		final Set<String> inSet = new HashSet<String>();
+		for (final SetCatch sc : fset.getCatchList()) {
+			if (null == sc || null == sc.getSpeciesCode()) { continue; }
+			final String code = sc.getSpeciesCode().trim().toUpperCase();
+			final Totals catchTotals = totals(species, code);
+			if (inSet.add(code)) { catchTotals.sets++; }
+			catchTotals.weight = add(catchTotals.weight, sc.getSpeciesWeightEstimate());
+			if (null != sc.getObserverCount()) { catchTotals.count += sc.getObserverCount().intValue(); }
+		}
+	}
+
+	private static <K> Totals totals(final Map<K, Totals> map, final K key) {
+		Totals totals = map.get(key);
+		if (null == totals) {
+			totals = new Totals();
+			map.put(key, totals);
+		}
+		return totals;
+	}
+
+	private static BigDecimal add(final BigDecimal total, final BigDecimal value) {
+		return null == value ? total : total.add(value);
+	}
+
+	public int getDays() { return days; }
+	public int getSets() { return sets; }
+	public BigDecimal getFishingDays() { return fishingDays; }
+	public BigDecimal getTotalCatch() { return totalCatch; }
+
+	/**
+	 * @return Totals by species code; weight is the sum of the species weight estimates,
+	 *         count the sum of observer counts
+	 */
+	public Map<String, Totals> getSpecies() {
+		return Collections.unmodifiableMap(species);
+	}
+
+	/**
+	 * @return Totals by association type ReferenceId; weight is the sum of the sets' total catch
+	 */
+	public Map<Integer, Totals> getAssociations() {
+		return Collections.unmodifiableMap(associations);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("days=%d sets=%d catch=%s species=%d", days, sets, totalCatch.toPlainString(), species.size());
+	}
+}
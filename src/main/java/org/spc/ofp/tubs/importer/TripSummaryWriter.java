@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
+import javax.persistence.PersistenceUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spc.ofp.tubs.domain.purseseine.PurseSeineTrip;
+
+/**
+ * TripSummaryWriter keeps the per-trip summary tables (see sql/trip_summary.sql)
+ * in step with the trips, always in the same transaction as the trip itself:
+ * write() is called from within TripWriter's transaction for a new trip and
+ * from TripMerger's for a merged one.  The summary tables cascade deletes from
+ * obsv.trips, so trips that are removed (replaced, timed out or rolled back)
+ * take their summaries with them.
+ *
+ * A trip that has a summary keeps it up to date when it's merged, replaced or
+ * remapped, whether or not the run was asked to keep summaries (see
+ * isSummarized()).
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TripSummaryWriter {
+
+	@PersistenceUnit(unitName = "tubs")
+	protected EntityManagerFactory tubsEmf;
+
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TripSummaryWriter.class);
+
+	private static final String[] TABLES = {
+		"ps.trip_species_catch", "ps.trip_association_sets", "ps.trip_summary"
+	};
+
+	private static final String TABLE_CHECK_SQL = "SELECT COUNT(*) FROM ps.trip_summary WHERE 1 = 0";
+
+	private static final String SUMMARIZED_SQL = "SELECT COUNT(*) FROM ps.trip_summary WHERE trip_id = ?";
+
+	private static final String INSERT_TRIP_SQL =
+	    "INSERT INTO ps.trip_summary (trip_id, day_count, fishing_days, set_count, total_catch, summarized_date) " +
+	    "VALUES (?, ?, ?, ?, ?, CURRENT_TIMESTAMP)";
+
+	private static final String INSERT_SPECIES_SQL =
+	    "INSERT INTO ps.trip_species_catch (trip_id, species_code, set_count, weight_estimate, observer_count) " +
+	    "VALUES (?, ?, ?, ?, ?)";
+
+	private static final String INSERT_ASSOCIATION_SQL =
+	    "INSERT INTO ps.trip_association_sets (trip_id, association_type_id, set_count, total_catch) " +
+	    "VALUES (?, ?, ?, ?)";
+
+	// Hibernate can't bind an untyped null, so sets without an association type get their own statement
+	private static final String INSERT_UNASSOCIATED_SQL =
+	    "INSERT INTO ps.trip_association_sets (trip_id, association_type_id, set_count, total_catch) " +
+	    "VALUES (?, NULL, ?, ?)";
+
+	private Boolean installed;
+
+	/**
+	 * @return true if the summary tables exist in TUBS
+	 */
+	public synchronized boolean isInstalled() {
+		if (null == installed) {
+			final EntityManager em = tubsEmf.createEntityManager();
+			try {
+				em.createNativeQuery(TABLE_CHECK_SQL).getSingleResult();
+				installed = Boolean.TRUE;
+			} catch (PersistenceException ex) {
+				LOGGER.debug("No trip summary tables, summaries won't be kept");
+				installed = Boolean.FALSE;
+			} finally {
+				em.close();
+			}
+		}
+		return installed.booleanValue();
+	}
+
+	/**
+	 * @param em
+	 * @param tripId
+	 * @return true if the trip has a summary, which must then be kept up to date
+	 */
+	public boolean isSummarized(final EntityManager em, final long tripId) {
+		if (!isInstalled()) { return false; }
+		final Number count = (Number)em.createNativeQuery(SUMMARIZED_SQL)
+		    .setParameter(1, tripId)
+		    .getSingleResult();
+		return count.intValue() > 0;
+	}
+
+	/**
+	 * Replaces the summary of a trip, in em's transaction.
+	 * @param em
+	 * @param tripId
+	 * @param summary
+	 */
+	public void write(final EntityManager em, final long tripId, final TripSummary summary) {
+		for (final String table : TABLES) {
+			em.createNativeQuery("DELETE FROM " + table + " WHERE trip_id = ?")
+			    .setParameter(1, tripId)
+			    .executeUpdate();
+		}
+		em.createNativeQuery(INSERT_TRIP_SQL)
+		    .setParameter(1, tripId)
+		    .setParameter(2, summary.getDays())
+		    .setParameter(3, summary.getFishingDays())
+		    .setParameter(4, summary.getSets())
+		    .setParameter(5, summary.getTotalCatch())
+		    .executeUpdate();
+		for (final Map.Entry<String, TripSummary.Totals> entry : summary.getSpecies().entrySet()) {
+			em.createNativeQuery(INSERT_SPECIES_SQL)
+			    .setParameter(1, tripId)
+			    .setParameter(2, entry.getKey())
+			    .setParameter(3, entry.getValue().getSets())
+			    .setParameter(4, entry.getValue().getWeight())
+			    .setParameter(5, entry.getValue().getCount())
+			    .executeUpdate();
+		}
+		for (final Map.Entry<Integer, TripSummary.Totals> entry : summary.getAssociations().entrySet()) {
+			if (null == entry.getKey()) {
+				em.createNativeQuery(INSERT_UNASSOCIATED_SQL)
+				    .setParameter(1, tripId)
+				    .setParameter(2, entry.getValue().getSets())
+				    .setParameter(3, entry.getValue().getWeight())
+				    .executeUpdate();
+				continue;
+			}
+			em.createNativeQuery(INSERT_ASSOCIATION_SQL)
+			    .setParameter(1, tripId)
+			    .setParameter(2, entry.getKey())
+			    .setParameter(3, entry.getValue().getSets())
+			    .setParameter(4, entry.getValue().getWeight())
+			    .executeUpdate();
+		}
+		LOGGER.debug(String.format("Summarized TUBS trip %d: %s", tripId, summary));
+	}
+
+	/**
+	 * Recomputes a summary from the trip as it is in TUBS, for trips imported
+	 * before the summaries were kept.
+	 * @param tripId
+	 * @return false if there is no such purse seine trip
+	 */
+	public boolean rebuild(final long tripId) {
+		final EntityManager em = tubsEmf.createEntityManager();
+		final EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			final PurseSeineTrip trip = em.find(PurseSeineTrip.class, tripId);
+			if (null == trip) {
+				tx.rollback();
+				return false;
+			}
+			write(em, tripId, TripSummary.of(trip));
+			tx.commit();
+			return true;
+		} finally {
+			if (tx.isActive()) { tx.rollback(); }
+			em.close();
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validation;
+import javax.validation.Validator;
+
+import org.spc.ofp.tubs.domain.FishTransfer;
+import org.spc.ofp.tubs.domain.PollutionReportHeader;
+import org.spc.ofp.tubs.domain.Trip;
+import org.spc.ofp.tubs.domain.VesselSighting;
+import org.spc.ofp.tubs.domain.purseseine.Activity;
+import org.spc.ofp.tubs.domain.purseseine.Day;
+import org.spc.ofp.tubs.domain.purseseine.FishingSet;
+import org.spc.ofp.tubs.domain.purseseine.PurseSeineTrip;
+
+/**
+ * TripValidator checks a converted TUBS trip before it is saved, so that bad
+ * source values are reported in full instead of as whatever constraint the
+ * database trips over first.
+ *
+ * Two sets of rules apply:  any Bean Validation constraints on the domain
+ * classes, and the importer's own rules, which TUBS expects but the domain
+ * doesn't (yet) declare.  Dates must be after Dec 31, 1980 and species
+ * percentages must be between 0 and 100.
+ *
+ * The Validator is built once; it is thread safe, as is this class.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TripValidator {
+
+	private static final Date EARLIEST_DATE = new GregorianCalendar(1981, Calendar.JANUARY, 1).getTime();
+
+	private final Validator validator = Validation.buildDefaultValidatorFactory().getValidator();
+
+	/**
+	 * One reason a trip was rejected.
+	 */
+	public static class Violation {
+		private final String path;
+		private final String message;
+		private final Object value;
+
+		public Violation(final String path, final String message, final Object value) {
+			this.path = path;
+			this.message = message;
+			this.value = value;
+		}
+
+		public String getPath() { return path; }
+		public String getMessage() { return message; }
+		public Object getValue() { return value; }
+
+		@Override
+		public String toString() {
+			return String.format("%s: %s (was %s)", path, message, value);
+		}
+	}
+
+	/**
+	 * @param trip
+	 * @return Everything wrong with the trip; empty if it can be saved
+	 */
+	public List<Violation> validate(final Trip trip) {
+		if (null == trip) { return Collections.emptyList(); }
+		final List<Violation> violations = new ArrayList<Violation>();
+		for (final ConstraintViolation<Trip> cv : validator.validate(trip)) {
+			violations.add(new Violation(cv.getPropertyPath().toString(), cv.getMessage(), cv.getInvalidValue()));
+		}
+
+		checkDate(violations, "departureDate", trip.getDepartureDate());
+		checkDate(violations, "returnDate", trip.getReturnDate());
+		if (null != trip.getVesselSightings()) {
+			int i = 0;
+			for (final VesselSighting vs : trip.getVesselSightings()) {
+				if (null != vs) { checkDate(violations, path("vesselSightings", i, "sightingDate"), vs.getSightingDate()); }
+				i++;
+			}
+		}
+		if (null != trip.getFishTransfers()) {
+			int i = 0;
+			for (final FishTransfer xfer : trip.getFishTransfers()) {
+				if (null != xfer) { checkDate(violations, path("fishTransfers", i, "timestamp"), xfer.getTimestamp()); }
+				i++;
+			}
+		}
+		if (null != trip.getPollutionReports()) {
+			int i = 0;
+			for (final PollutionReportHeader report : trip.getPollutionReports()) {
+				if (null != report) { checkDate(violations, path("pollutionReports", i, "timestamp"), report.getTimestamp()); }
+				i++;
+			}
+		}
+		if (trip instanceof PurseSeineTrip && null != ((PurseSeineTrip)trip).getDays()) {
+			int d = 0;
+			for (final Day day : ((PurseSeineTrip)trip).getDays()) {
+				if (null != day) { checkDay(violations, path("days", d, null), day); }
+				d++;
+			}
+		}
+		return violations;
+	}
+
+	private void checkDay(final List<Violation> violations, final String prefix, final Day day) {
+		checkDate(violations, prefix + ".startOfDay", day.getStartOfDay());
+		checkDate(violations, prefix + ".utcStartOfDay", day.getUtcStartOfDay());
+		if (null == day.getActivities()) { return; }
+		int a = 0;
+		for (final Activity activity : day.getActivities()) {
+			if (null == activity) { a++; continue; }
+			final String ap = prefix + path(".activities", a++, null);
+			checkDate(violations, ap + ".localTime", activity.getLocalTime());
+			checkDate(violations, ap + ".utcTime", activity.getUtcTime());
+			final FishingSet fset = activity.getFishingSet();
+			if (null == fset) { continue; }
+			final String sp = ap + ".fishingSet";
+			checkDate(violations, sp + ".startTime", fset.getStartTime());
+			checkDate(violations, sp + ".skiffOff", fset.getSkiffOff());
+			checkDate(violations, sp + ".winchOn", fset.getWinchOn());
+			checkDate(violations, sp + ".ringUp", fset.getRingUp());
+			checkDate(violations, sp + ".startOfBrail", fset.getStartOfBrail());
+			checkDate(violations, sp + ".endOfBrail", fset.getEndOfBrail());
+			checkPercentage(violations, sp + ".skipjackPercentage", fset.getSkipjackPercentage());
+			checkPercentage(violations, sp + ".bigeyePercentage", fset.getBigeyePercentage());
+			checkPercentage(violations, sp + ".yellowfinPercentage", fset.getYellowfinPercentage());
+		}
+	}
+
+	private static String path(final String collection, final int index, final String property) {
+		return String.format("%s[%d]%s", collection, index, null == property ? "" : "." + property);
+	}
+
+	private static void checkDate(final List<Violation> violations, final String path, final Date value) {
+		if (null != value && value.before(EARLIEST_DATE)) {
+			violations.add(new Violation(path, "must be after Dec 31, 1980", value));
+		}
+	}
+
+	private static void checkPercentage(final List<Violation> violations, final String path, final Integer value) {
+		if (null != value && (value.intValue() < 0 || value.intValue() > 100)) {
+			violations.add(new Violation(path, "must be between 0 and 100", value));
+		}
+	}
+}
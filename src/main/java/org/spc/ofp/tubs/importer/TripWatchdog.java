@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * TripWatchdog keeps one slow trip from stalling a whole run.  Each stage of
+ * a trip can be given a time budget; when a stage runs over, the thread
+ * working on the trip is interrupted and any statements it has running are
+ * cancelled (see StatementTracker).  The stage then fails, its transaction is
+ * rolled back, and the importer records the trip as timed out and moves on.
+ *
+ * Stages that are busy in plain Java (TRANSFORM, mostly) don't notice the
+ * interrupt until they wait on something; the overrun is reported at the next
+ * stage boundary at the latest.
+ *
+ * With no budgets set, start() hands out watches that do nothing.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TripWatchdog {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TripWatchdog.class);
+
+	private static final String OPTION_PREFIX = "timeout-";
+
+	private Map<ImportStage, Long> budgets = Collections.emptyMap();
+	private StatementTracker statementTracker;
+	private ScheduledExecutorService timer;
+
+	/**
+	 * Reads --timeout-load=SECONDS, --timeout-save=SECONDS and so on, one per
+	 * ImportStage (EXISTS_CHECK is --timeout-exists-check).
+	 * @param options
+	 * @return Budgets in milliseconds, for the stages that have one
+	 */
+	public static Map<ImportStage, Long> budgetsFromOptions(final ImporterOptions options) {
+		final Map<ImportStage, Long> budgets = new EnumMap<ImportStage, Long>(ImportStage.class);
+		for (final ImportStage stage : ImportStage.values()) {
+			final int seconds = options.getInt(optionName(stage), 0);
+			if (seconds > 0) { budgets.put(stage, Long.valueOf(seconds * 1000L)); }
+		}
+		return budgets;
+	}
+
+	static String optionName(final ImportStage stage) {
+		return OPTION_PREFIX + stage.name().toLowerCase().replace('_', '-');
+	}
+
+	/**
+	 * @param stageBudgets Milliseconds by stage; stages left out are not watched
+	 * @param tracker Cancels the statements of an overrunning trip, may be null
+	 */
+	public synchronized void configure(final Map<ImportStage, Long> stageBudgets, final StatementTracker tracker) {
+		this.budgets = stageBudgets.isEmpty() ?
+		    Collections.<ImportStage, Long>emptyMap() :
+		    Collections.unmodifiableMap(new EnumMap<ImportStage, Long>(stageBudgets));
+		this.statementTracker = tracker;
+		if (null == timer && !budgets.isEmpty()) {
+			timer = Executors.newSingleThreadScheduledExecutor(
+			    new ThreadFactoryBuilder().setNameFormat("trip-watchdog-%d").setDaemon(true).build());
+		}
+	}
+
+	public synchronized boolean isEnabled() {
+		return !budgets.isEmpty();
+	}
+
+	/**
+	 * @param tripId
+	 * @return A watch on the current thread's work on this trip; close it when
+	 * the thread is done with the trip
+	 */
+	public synchronized Watch start(final String tripId) {
+		return new Watch(tripId, Thread.currentThread(), budgets, statementTracker, timer);
+	}
+
+	/**
+	 * One thread's work on one trip.
+	 */
+	public static class Watch {
+		private final String tripId;
+		private final Thread thread;
+		private final Map<ImportStage, Long> budgets;
+		private final StatementTracker statementTracker;
+		private final ScheduledExecutorService timer;
+		private ScheduledFuture<?> alarm;
+		private ImportStage current;
+		private ImportStage overrun;
+
+		Watch(final String tripId, final Thread thread, final Map<ImportStage, Long> budgets,
+		    final StatementTracker statementTracker, final ScheduledExecutorService timer) {
+			this.tripId = tripId;
+			this.thread = thread;
+			this.budgets = budgets;
+			this.statementTracker = statementTracker;
+			this.timer = timer;
+		}
+
+		/**
+		 * Ends the current stage and starts the clock on the next one.
+		 * @throws IllegalStateException if the stage just ended ran over its budget
+		 */
+		public synchronized void stage(final ImportStage next) {
+			disarm();
+			if (null != overrun) {
+				throw new IllegalStateException(String.format("Trip %s timed out in stage %s", tripId, overrun));
+			}
+			current = next;
+			final Long budget = budgets.get(next);
+			if (null == budget || null == timer) { return; }
+			alarm = timer.schedule(new Runnable() {
+				public void run() {
+					expire(next);
+				}
+			}, budget.longValue(), TimeUnit.MILLISECONDS);
+		}
+
+		private void disarm() {
+			if (null != alarm) {
+				alarm.cancel(false);
+				alarm = null;
+			}
+		}
+
+		private synchronized void expire(final ImportStage stage) {
+			// Too late, the stage finished while the alarm was going off
+			if (null == alarm || stage != current || null != overrun) { return; }
+			overrun = stage;
+			alarm = null;
+			thread.interrupt();
+			final int cancelled = null == statementTracker ? 0 : statementTracker.cancel(thread);
+			LOGGER.warn(String.format("Trip %s ran over its %d ms budget for %s on %s, cancelled %d statement(s)",
+			    tripId, getBudget(stage), stage, thread.getName(), cancelled));
+		}
+
+		/**
+		 * @return The stage that ran over, or null if none has (yet)
+		 */
+		public synchronized ImportStage getOverrun() {
+			return overrun;
+		}
+
+		public long getBudget(final ImportStage stage) {
+			final Long budget = budgets.get(stage);
+			return null == budget ? 0L : budget.longValue();
+		}
+
+		/**
+		 * Stops the clock.  Call on the watched thread; if the watchdog fired, the
+		 * thread's interrupt is cleared so that it can carry on with other work.
+		 */
+		public synchronized void close() {
+			disarm();
+			if (null != overrun && Thread.currentThread() == thread) {
+				Thread.interrupted();
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import javax.annotation.Resource;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import javax.sql.DataSource;
+
+import org.spc.ofp.tubs.domain.purseseine.PurseSeineTrip;
+import org.spc.ofp.tubs.domain.purseseine.TripRepository;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.vendor.HibernateJpaDialect;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * TripWriter saves a converted trip through the TUBS TripRepository and, in
+ * the same transaction, writes its bulk length samples and summary and removes
+ * the copy of the trip it replaces.  Either all of it happens or none of it
+ * does, so a re-import never leaves two copies of a trip or none at all, and a
+ * trip is never left without its samples.
+ *
+ * The transaction is a Spring JPA transaction on the tubs unit, which the
+ * repository joins.  Its JDBC connection is exposed as well, so the sample
+ * inserts (JdbcTemplate on tubs.DataSource) run on the same connection.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TripWriter {
+
+	@PersistenceUnit(unitName = "tubs")
+	protected EntityManagerFactory tubsEmf;
+
+	@Resource(name = "purseseine.TripRepository")
+	protected TripRepository targetTripRepository;
+
+	@Resource(name = "TripRemover")
+	protected TripRemover tripRemover;
+
+	@Resource(name = "TripSummaryWriter")
+	protected TripSummaryWriter tripSummaryWriter;
+
+	@Resource(name = "LengthSampleWriter")
+	protected LengthSampleWriter lengthSampleWriter;
+
+	@Resource(name = "tubs.DataSource")
+	protected DataSource tubsDataSource;
+
+	private TransactionTemplate transactions;
+
+	/**
+	 * @param trip
+	 * @param summary The trip's summary, or null if summaries aren't kept
+	 * @param samples The trip's bulk length samples, or null
+	 * @param replacedTripId The TUBS trip this one replaces, or null
+	 */
+	public void save(final PurseSeineTrip trip, final TripSummary summary, final LengthSampleBuffer samples,
+	    final Long replacedTripId) {
+		getTransactions().execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(final TransactionStatus status) {
+				targetTripRepository.save(trip);
+				final EntityManager em = EntityManagerFactoryUtils.getTransactionalEntityManager(tubsEmf);
+				final boolean replaces = null != replacedTripId && !replacedTripId.equals(trip.getId());
+				// A trip replacing a summarized one is summarized too
+				final TripSummary tripSummary = null != summary ? summary :
+				    replaces && tripSummaryWriter.isSummarized(em, replacedTripId) ? TripSummary.of(trip) : null;
+				// The trip and its sample headers have to be there (and have their IDs) first
+				em.flush();
+				lengthSampleWriter.write(samples);
+				if (null != tripSummary) {
+					tripSummaryWriter.write(em, trip.getId(), tripSummary);
+				}
+				if (replaces) {
+					tripRemover.remove(em, replacedTripId);
+				}
+			}
+		});
+	}
+
+	private synchronized TransactionTemplate getTransactions() {
+		if (null == transactions) {
+			final JpaTransactionManager manager = new JpaTransactionManager(tubsEmf);
+			manager.setDataSource(tubsDataSource);
+			// Hands the JPA transaction's connection to JdbcTemplate
+			manager.setJpaDialect(new HibernateJpaDialect());
+			transactions = new TransactionTemplate(manager);
+		}
+		return transactions;
+	}
+}
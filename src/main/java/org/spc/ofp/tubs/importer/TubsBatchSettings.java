@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.orm.jpa.AbstractEntityManagerFactoryBean;
+
+/**
+ * TubsBatchSettings sets the Hibernate JDBC batching properties of the tubs
+ * persistence unit explicitly, rather than relying on whatever the domain
+ * library's configuration has.  Hibernate only reads them when the session
+ * factory is built, so they can't be set per EntityManager;  TripMerger relies
+ * on them to send its updates and deletes in batches.
+ *
+ * Add it to the context before refresh() with addBeanFactoryPostProcessor(),
+ * like StatementTracker.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TubsBatchSettings implements BeanFactoryPostProcessor, BeanPostProcessor {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TubsBatchSettings.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 50;
+
+	private static final String UNIT = "tubs";
+
+	private final int batchSize;
+
+	public TubsBatchSettings(final int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public void postProcessBeanFactory(final ConfigurableListableBeanFactory beanFactory) throws BeansException {
+		beanFactory.addBeanPostProcessor(this);
+	}
+
+	public Object postProcessBeforeInitialization(final Object bean, final String beanName) throws BeansException {
+		if (bean instanceof AbstractEntityManagerFactoryBean
+		    && UNIT.equals(((AbstractEntityManagerFactoryBean)bean).getPersistenceUnitName())) {
+			final Map<String, Object> properties = ((AbstractEntityManagerFactoryBean)bean).getJpaPropertyMap();
+			properties.put("hibernate.jdbc.batch_size", String.valueOf(batchSize));
+			// Groups the statements by table, so that a merge's batches aren't broken up
+			properties.put("hibernate.order_inserts", "true");
+			properties.put("hibernate.order_updates", "true");
+			properties.put("hibernate.jdbc.batch_versioned_data", "true");
+			LOGGER.debug(String.format("JDBC batch size of unit %s set to %d", UNIT, batchSize));
+		}
+		return bean;
+	}
+
+	public Object postProcessAfterInitialization(final Object bean, final String beanName) throws BeansException {
+		return bean;
+	}
+}
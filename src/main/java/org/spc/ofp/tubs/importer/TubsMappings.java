@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.collection.AbstractCollectionPersister;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * TubsMappings looks up the tables and columns that TUBS entities are mapped
+ * to, for the statements that bypass JPA, so that they follow the mappings
+ * instead of repeating them.  Statements that can't be built that way (the
+ * scripts under sql/) are checked with checkTables() before they're first run.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class TubsMappings {
+
+	@PersistenceUnit(unitName = "tubs")
+	protected EntityManagerFactory tubsEmf;
+
+	// Created by the importer's own scripts (see sql/), so not mapped
+	private static final Set<String> IMPORTER_TABLES = ImmutableSet.of(
+	    "import_lease", "code_remap_log", "ps.trip_summary", "ps.trip_species_catch", "ps.trip_association_sets");
+
+	private static final Pattern TABLE = Pattern.compile(
+	    "\\b(?:FROM|JOIN|INTO|UPDATE)\\s+([\\w.\\[\\]\"]+)", Pattern.CASE_INSENSITIVE);
+
+	private Set<String> mappedTables;
+
+	/**
+	 * @param entity
+	 * @return The table, with its schema if the mapping has one
+	 */
+	public String getTable(final Class<?> entity) {
+		return persister(entity).getTableName();
+	}
+
+	public String getIdColumn(final Class<?> entity) {
+		return single(entity, "id", persister(entity).getIdentifierColumnNames());
+	}
+
+	/**
+	 * @param entity
+	 * @param property A property mapped to one column;  for an association, its foreign key
+	 * @return The column
+	 */
+	public String getColumn(final Class<?> entity, final String property) {
+		return single(entity, property, persister(entity).getPropertyColumnNames(property));
+	}
+
+	/**
+	 * Checks that every table the statements read or write is either mapped or
+	 * one of the importer's own.
+	 * @param what Where the statements come from, for the message
+	 * @param statements
+	 * @throws IllegalStateException naming the tables that aren't
+	 */
+	public void checkTables(final String what, final Collection<String> statements) {
+		final Set<String> mapped = getMappedTables();
+		final Set<String> unknown = new TreeSet<String>();
+		for (final String sql : statements) {
+			final Matcher m = TABLE.matcher(sql);
+			while (m.find()) {
+				final String table = normalize(m.group(1));
+				if (!mapped.contains(table) && !IMPORTER_TABLES.contains(table)) {
+					unknown.add(table);
+				}
+			}
+		}
+		if (!unknown.isEmpty()) {
+			throw new IllegalStateException(String.format(
+			    "%s uses tables that aren't in the TUBS mappings: %s", what, unknown));
+		}
+	}
+
+	private synchronized Set<String> getMappedTables() {
+		if (null == mappedTables) {
+			final SessionFactory sessionFactory = ((HibernateEntityManagerFactory)tubsEmf).getSessionFactory();
+			final Set<String> tables = new HashSet<String>();
+			for (final Object metadata : sessionFactory.getAllClassMetadata().values()) {
+				if (!(metadata instanceof AbstractEntityPersister)) { continue; }
+				for (final Serializable table : ((AbstractEntityPersister)metadata).getQuerySpaces()) {
+					tables.add(normalize(table.toString()));
+				}
+			}
+			for (final Object metadata : sessionFactory.getAllCollectionMetadata().values()) {
+				if (metadata instanceof AbstractCollectionPersister) {
+					tables.add(normalize(((AbstractCollectionPersister)metadata).getTableName()));
+				}
+			}
+			mappedTables = tables;
+		}
+		return mappedTables;
+	}
+
+	private static String normalize(final String table) {
+		return table.replace("[", "").replace("]", "").replace("\"", "").toLowerCase();
+	}
+
+	private AbstractEntityPersister persister(final Class<?> entity) {
+		final ClassMetadata metadata =
+		    ((HibernateEntityManagerFactory)tubsEmf).getSessionFactory().getClassMetadata(entity);
+		if (!(metadata instanceof AbstractEntityPersister)) {
+			throw new IllegalStateException(entity.getName() + " is not a mapped TUBS entity");
+		}
+		return (AbstractEntityPersister)metadata;
+	}
+
+	private static String single(final Class<?> entity, final String property, final String[] columns) {
+		if (null == columns || 1 != columns.length) {
+			throw new IllegalStateException(String.format(
+			    "%s.%s is not mapped to a single column", entity.getSimpleName(), property));
+		}
+		return columns[0];
+	}
+}
@@ -26,7 +26,16 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import javax.annotation.Resource;
+
+import org.hibernate.Hibernate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spc.ofp.observer.domain.FieldStaff;
@@ -54,6 +63,9 @@ import org.spc.ofp.tubs.domain.purseseine.LengthSamplingHeader;
 import org.springframework.batch.item.ItemProcessor;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * @author Corey Cole <coreyc@spc.int>
  *
@@ -63,10 +75,115 @@ public class TubsTripProcessor implements ItemProcessor<ITrip, org.spc.ofp.tubs.
 	@Autowired
 	protected CommonRepository repo;
 	
+	@Resource(name = "ReferenceLookup")
+	protected ReferenceLookup lookup;
+	
+	@Resource(name = "EezIndex")
+	protected EezIndex eezIndex;
+	
 	private static final String ENTERED_BY = "TubsTripProcessor"; // TODO Add SVN string?
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(TubsTripProcessor.class);
 	
+	// Below this many days the hand-off to the pool costs more than it saves
+	private static final int DEFAULT_PARALLEL_DAY_THRESHOLD = 8;
+	
+	private ExecutorService mappingExecutor;
+	private int parallelDayThreshold = DEFAULT_PARALLEL_DAY_THRESHOLD;
+	private volatile boolean bulkLengthSamples;
+	private volatile boolean lookupOnly;
+	
+	// The buffer for the trip being mapped (set on mapping threads too), and the
+	// buffer for the trip this thread mapped last, waiting for takeLengthSamples()
+	private final ThreadLocal<LengthSampleBuffer> pendingSamples = new ThreadLocal<LengthSampleBuffer>();
+	private final ThreadLocal<LengthSampleBuffer> processedSamples = new ThreadLocal<LengthSampleBuffer>();
+	
+	/**
+	 * Maps fishing days and the independent trip sections (GEN-1, GEN-3, GEN-6)
+	 * on a pool of the given size.  Zero, the default, maps everything on the
+	 * calling thread.  Results are always reassembled in source order.
+	 * @param threads
+	 */
+	public synchronized void setMappingThreads(final int threads) {
+		if (null != mappingExecutor) {
+			mappingExecutor.shutdown();
+			mappingExecutor = null;
+		}
+		if (threads > 0) {
+			mappingExecutor = Executors.newFixedThreadPool(threads,
+			    new ThreadFactoryBuilder().setNameFormat("trip-mapper-%d").setDaemon(true).build());
+		}
+	}
+	
+	public void setParallelDayThreshold(final int value) {
+		this.parallelDayThreshold = value;
+	}
+	
+	/**
+	 * When set, length samples are not mapped to LengthSample entities.  They are
+	 * collected in a LengthSampleBuffer instead, which the caller must pick up with
+	 * takeLengthSamples() and hand to TripWriter, which writes them with the trip.
+	 * @param value
+	 */
+	public void setBulkLengthSamples(final boolean value) {
+		this.bulkLengthSamples = value;
+	}
+	
+	/**
+	 * When set, nothing is written to TUBS:  observers, ports and vessels that
+	 * aren't there yet are returned as new, unsaved entities instead of being
+	 * created.  For the modes that only convert trips to look at them.
+	 * @param value
+	 */
+	public void setLookupOnly(final boolean value) {
+		this.lookupOnly = value;
+	}
+	
+	/**
+	 * @return The length samples of the trip last processed on this thread, or null
+	 * if there are none (or bulk length samples are off).  Each buffer is only
+	 * handed out once.
+	 */
+	public LengthSampleBuffer takeLengthSamples() {
+		final LengthSampleBuffer samples = processedSamples.get();
+		processedSamples.remove();
+		return samples;
+	}
+	
+	/**
+	 * Runs task on the mapping pool, or right here if there is no pool.
+	 */
+	protected <T> Future<T> fork(final Callable<T> task) {
+		final ExecutorService executor = mappingExecutor;
+		if (null != executor) {
+			final LengthSampleBuffer samples = pendingSamples.get();
+			return executor.submit(null == samples ? task : new Callable<T>() {
+				public T call() throws Exception {
+					pendingSamples.set(samples);
+					try {
+						return task.call();
+					} finally {
+						pendingSamples.remove();
+					}
+				}
+			});
+		}
+		final FutureTask<T> future = new FutureTask<T>(task);
+		future.run();
+		return future;
+	}
+	
+	protected static <T> T join(final Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while mapping trip", ex);
+		} catch (ExecutionException ex) {
+			throw Throwables.propagate(ex.getCause());
+		}
+	}
+	
 	/**
 	 * combine merges a date and a time to create a single java.util.Date instance
 	 * that represents a date and time.  This utility is necessary due to source data
@@ -99,6 +216,34 @@ public class TubsTripProcessor implements ItemProcessor<ITrip, org.spc.ofp.tubs.
 	}
 	
 	public org.spc.ofp.tubs.domain.Trip process(final ITrip trip) throws Exception {
+		final ImporterEvents.Span span = ImporterEvents.begin(
+		    ImportStage.TRANSFORM, null == trip || null == trip.getId() ? null : trip.getId().toString());
+		try {
+			final org.spc.ofp.tubs.domain.Trip tubsTrip = transform(trip);
+			if (span.isRecording() && null != tubsTrip) {
+				span.gearType(trip.getGearType()).entities(EntityCounts.of(tubsTrip).total());
+			}
+			return tubsTrip;
+		} finally {
+			span.end();
+		}
+	}
+	
+	private org.spc.ofp.tubs.domain.Trip transform(final ITrip trip) throws Exception {
+		processedSamples.remove();
+		if (!bulkLengthSamples) { return convert(trip); }
+		final LengthSampleBuffer samples = new LengthSampleBuffer(ENTERED_BY, new Date());
+		pendingSamples.set(samples);
+		try {
+			final org.spc.ofp.tubs.domain.Trip tubsTrip = convert(trip);
+			if (null != tubsTrip && !samples.isEmpty()) { processedSamples.set(samples); }
+			return tubsTrip;
+		} finally {
+			pendingSamples.remove();
+		}
+	}
+	
+	protected org.spc.ofp.tubs.domain.Trip convert(final ITrip trip) throws Exception {
 		// TODO Is this what we want? 
 		if (null == trip) { 
 			LOGGER.info("Input object was null, skipping...");
@@ -118,6 +263,40 @@ public class TubsTripProcessor implements ItemProcessor<ITrip, org.spc.ofp.tubs.
 		LOGGER.debug("After checking for trip type, 'tubsTrip' is null? " + (null == tubsTrip));    
 		// Skip trips with unsupported gear types.
 		if (null == tubsTrip) { return null; }
+		
+		if (null != mappingExecutor) {
+			// Hibernate sessions aren't thread safe, so load the whole source graph
+			// here to make sure no worker ends up initializing a lazy collection.
+			initializeSourceGraph(trip);
+		}
+		
+		// These sections don't depend on each other (or on anything below), so
+		// they're mapped on the pool while this thread does the lookups that may
+		// write to TUBS.
+		final Future<List<org.spc.ofp.tubs.domain.VesselSighting>> sightings = fork(
+		    new Callable<List<org.spc.ofp.tubs.domain.VesselSighting>>() {
+		        public List<org.spc.ofp.tubs.domain.VesselSighting> call() {
+		            return asTubsSightings(trip.getVesselSightings());
+		        }
+		    });
+		final Future<List<org.spc.ofp.tubs.domain.FishTransfer>> transfers = fork(
+		    new Callable<List<org.spc.ofp.tubs.domain.FishTransfer>>() {
+		        public List<org.spc.ofp.tubs.domain.FishTransfer> call() {
+		            return asTubsTransfers(trip.getFishTransfers());
+		        }
+		    });
+		final Future<org.spc.ofp.tubs.domain.TripReportHeader> gen3 = fork(
+		    new Callable<org.spc.ofp.tubs.domain.TripReportHeader>() {
+		        public org.spc.ofp.tubs.domain.TripReportHeader call() {
+		            return asTubsGen3(trip.getGen3Report());
+		        }
+		    });
+		final Future<Collection<org.spc.ofp.tubs.domain.PollutionReportHeader>> gen6 = fork(
+		    new Callable<Collection<org.spc.ofp.tubs.domain.PollutionReportHeader>>() {
+		        public Collection<org.spc.ofp.tubs.domain.PollutionReportHeader> call() {
+		            return asTubsGen6(trip.getPollutionReports());
+		        }
+		    });
 
 		// Basic stuff
 		tubsTrip.setAuditEntry(getAuditEntry());
@@ -137,17 +316,17 @@ public class TubsTripProcessor implements ItemProcessor<ITrip, org.spc.ofp.tubs.
 		tubsTrip.setVessel(asTubsVessel(trip.getBoat()));
 		
 		// GEN-1
-		tubsTrip.setVesselSightings(asTubsSightings(trip.getVesselSightings()));
-		tubsTrip.setFishTransfers(asTubsTransfers(trip.getFishTransfers()));
+		tubsTrip.setVesselSightings(join(sightings));
+		tubsTrip.setFishTransfers(join(transfers));
 		
 		// GEN-2
 		
 		// GEN-3
-		tubsTrip.setTripReport(asTubsGen3(trip.getGen3Report()));
+		tubsTrip.setTripReport(join(gen3));
 		tubsTrip.getTripReport().setTrip(tubsTrip);
 		
 		// GEN-6
-		tubsTrip.setPollutionReports(asTubsGen6(trip.getPollutionReports()));
+		tubsTrip.setPollutionReports(join(gen6));
 				
 		// Fill object graph based on gear type
 		if (trip.isPurseSeineTrip()) {
@@ -195,8 +374,24 @@ public class TubsTripProcessor implements ItemProcessor<ITrip, org.spc.ofp.tubs.
 		}
 		
 		final List<Day> tubsDays = new ArrayList<Day>(observerDays.size());
+		if (null == mappingExecutor || observerDays.size() < parallelDayThreshold) {
+			for (final FishingDay fishingDay : observerDays) {
+				tubsDays.add(asTubsDay(fishingDay));			
+			}
+			return tubsDays;
+		}
+		
+		// Days are independent of each other; fork them all, then join in source order
+		final List<Future<Day>> futures = new ArrayList<Future<Day>>(observerDays.size());
 		for (final FishingDay fishingDay : observerDays) {
-			tubsDays.add(asTubsDay(fishingDay));			
+			futures.add(fork(new Callable<Day>() {
+				public Day call() {
+					return asTubsDay(fishingDay);
+				}
+			}));
+		}
+		for (final Future<Day> future : futures) {
+			tubsDays.add(join(future));
 		}
 		return tubsDays;
 	}
@@ -217,19 +412,19 @@ public class TubsTripProcessor implements ItemProcessor<ITrip, org.spc.ofp.tubs.
 		final Integer activityId = DataCleaner.getPurseSeineActivity(dl.getS_act_id());
 		if (null != activityId) {
 			activity.setActivityType(
-				repo.findReferenceValueById(activityId)
+				lookup.findReferenceValueById(activityId)
 			);
 		}
 		final Integer detectionId = DataCleaner.getPurseSeineDetection(dl.getDet_id());
 		if (null != detectionId) {
 			activity.setDetectionMethod(
-				repo.findReferenceValueById(detectionId)	
+				lookup.findReferenceValueById(detectionId)	
 			);
 		}
 		final Integer associationId = DataCleaner.getPurseSeineAssociation(dl.getSch_id());
 		if (null != associationId) {
 			activity.setAssociationType(
-				repo.findReferenceValueById(associationId)			
+				lookup.findReferenceValueById(associationId)			
 			);
 		}
 		activity.setLocalTime(combine(dl.getActdate(), dl.getActtime()));
@@ -237,7 +432,7 @@ public class TubsTripProcessor implements ItemProcessor<ITrip, org.spc.ofp.tubs.
 		
 		activity.setBeacon(dl.getBeacon());
 		activity.setComments(dl.getComment());
-		activity.setEezCode(dl.getEz_id());
+		activity.setEezCode(asEezCode(dl.getEz_id(), dl.getLat_long(), dl.getLon_long()));
 		BigDecimal fishingDays = null;
 		if (null != dl.getFish_days()) {
 			fishingDays = BigDecimal.valueOf(dl.getFish_days().doubleValue()).setScale(7);
@@ -328,10 +523,10 @@ public class TubsTripProcessor implements ItemProcessor<ITrip, org.spc.ofp.tubs.
 		tsc.setComments(sc.getComments());
 		
 		if (null != sc.getCond_id() && !sc.getCond_id().trim().isEmpty()) {			
-			tsc.setCondition(repo.findConditionByCode(sc.getCond_id().trim()));
+			tsc.setCondition(lookup.findConditionByCode(sc.getCond_id().trim()));
 		}
 		if (null != sc.getFate_id() && !sc.getFate_id().trim().isEmpty()) {
-			tsc.setFate(repo.findFateByCode(sc.getFate_id().trim()));
+			tsc.setFate(lookup.findFateByCode(sc.getFate_id().trim()));
 		}
 		
 		tsc.setContainsLargeFish(sc.getLargefish());
@@ -368,7 +563,7 @@ public class TubsTripProcessor implements ItemProcessor<ITrip, org.spc.ofp.tubs.
 			header.setFormId(lfh.getNbformused());
 			//final ReferenceId protocol = ;
 			header.setProtocolType(
-			    repo.findReferenceValueById(
+			    lookup.findReferenceValueById(
 			        DataCleaner.getSamplingProtocol(lfh.getProtocol())));
 			
 			// Ignore for now - CLC
@@ -398,7 +593,14 @@ public class TubsTripProcessor implements ItemProcessor<ITrip, org.spc.ofp.tubs.
 			brails.add(brail);			
 			header.setBrails(brails); // List of domain objects
 			
-			header.setSamples(asTubsLengthSamples(lfh.getDetails())); // List of domain objects
+			final LengthSampleBuffer samples = pendingSamples.get();
+			if (null == samples) {
+				header.setSamples(asTubsLengthSamples(lfh.getDetails())); // List of domain objects
+			} else {
+				// Written later by LengthSampleWriter, once the header has an ID
+				header.setSamples(new ArrayList<LengthSample>(0));
+				samples.add(header, lfh.getDetails());
+			}
 			
 			header.setAuditEntry(new AuditEntry(dl.getEnteredby(), dl.getInserttime()));
 			tubsHeaders.add(header);
@@ -498,7 +700,7 @@ public class TubsTripProcessor implements ItemProcessor<ITrip, org.spc.ofp.tubs.
 		    new org.spc.ofp.tubs.domain.PollutionReportHeader();
 		// Fill header
 		report.setComments(preport.getComments());
-		report.setEezCode(preport.getEz_id());
+		report.setEezCode(asEezCode(preport.getEz_id(), preport.getLatitude(), preport.getLongitude()));
 		report.setIrcs(preport.getIrcs());
 		report.setLatitude(preport.getLatitude());
 		report.setLongitude(preport.getLongitude());
@@ -568,7 +770,7 @@ public class TubsTripProcessor implements ItemProcessor<ITrip, org.spc.ofp.tubs.
 				tvs.setSightingDate(combine(sighting.getDate(), sighting.getTime()));
 				tvs.setLatitude(sighting.getLatitude());
 				tvs.setLongitude(sighting.getLongitude());
-				tvs.setEezCode(sighting.getEz_id());
+				tvs.setEezCode(asEezCode(sighting.getEz_id(), sighting.getLatitude(), sighting.getLongitude()));
 				// Relative location of sighted vessel
 				tvs.setBearing(sighting.getBearing());
 				tvs.setDistance(sighting.getDistance());
@@ -588,11 +790,43 @@ public class TubsTripProcessor implements ItemProcessor<ITrip, org.spc.ofp.tubs.
 	}
 	
 	/**
-	 * 
+	 * Initializes every lazy association of the source trip that the mapping reads.
+	 * @param trip
+	 */
+	private static void initializeSourceGraph(final ITrip trip) {
+		Hibernate.initialize(trip.getVesselSightings());
+		Hibernate.initialize(trip.getFishTransfers());
+		Hibernate.initialize(trip.getGen3Report());
+		if (null != trip.getPollutionReports()) {
+			for (final Gen6Header report : trip.getPollutionReports()) {
+				if (null != report) { Hibernate.initialize(report.getDetails()); }
+			}
+		}
+		if (!(trip instanceof org.spc.ofp.observer.domain.purseseine.PurseSeineTrip)) { return; }
+		final Collection<FishingDay> days = ((org.spc.ofp.observer.domain.purseseine.PurseSeineTrip)trip).getFishingDays();
+		if (null == days) { return; }
+		for (final FishingDay day : days) {
+			if (null == day || null == day.getActivities()) { continue; }
+			for (final DayLog dl : day.getActivities()) {
+				if (null == dl) { continue; }
+				Hibernate.initialize(dl.getSetCatchList());
+				if (null == dl.getHeaders()) { continue; }
+				for (final LengthFrequencyHeader lfh : dl.getHeaders()) {
+					if (null != lfh) { Hibernate.initialize(lfh.getDetails()); }
+				}
+			}
+		}
+	}
+	
+	/**
+	 * asTubsObserver, asTubsPort and asTubsVessel create the entity if it's missing
+	 * (unless lookupOnly is set, when it's returned unsaved).
+	 * They're synchronized so that two trips being prepared at once can't both
+	 * create the same one.
 	 * @param fs
 	 * @return
 	 */
-	protected org.spc.ofp.tubs.domain.common.Observer asTubsObserver(final FieldStaff fs) {
+	protected synchronized org.spc.ofp.tubs.domain.common.Observer asTubsObserver(final FieldStaff fs) {
 		// If the passed in FieldStaff entity is not null, check for an existing Observer with the same staff code
 		if (null == fs) { return null; }
 		assert repo != null : "CommonRepository not being instantiated";
@@ -605,12 +839,13 @@ public class TubsTripProcessor implements ItemProcessor<ITrip, org.spc.ofp.tubs.
 		to.setFirstName(fs.getFirstName());
 		to.setFamilyName(fs.getLastName());
 		to.setNationalityCountryCode(fs.getHomeCountry());
+		if (lookupOnly) { return to; }
 		return repo.saveObserver(to) ?
 		    repo.findByStaffCode(fs.getStaffCode()) : 
 		    null;
 	}
 	
-	protected org.spc.ofp.tubs.domain.common.Port asTubsPort(final Port p) {
+	protected synchronized org.spc.ofp.tubs.domain.common.Port asTubsPort(final Port p) {
 		if (null == p) { return null; }
 		org.spc.ofp.tubs.domain.common.Port tp = repo.findPortById(p.getId());
 		if (null != tp) { return tp; }
@@ -618,12 +853,13 @@ public class TubsTripProcessor implements ItemProcessor<ITrip, org.spc.ofp.tubs.
 		tp.setId(p.getId()); // TODO Don't _have_ to set this, and might not even _want_ to set this
 		tp.setName(p.getName());
 		tp.setCountryCode(p.getCountryCode());
+		if (lookupOnly) { return tp; }
 		return repo.savePort(tp) ?
 			repo.findPortById(p.getId()) :
 			null;
 	}
 	
-	protected org.spc.ofp.tubs.domain.common.Vessel asTubsVessel(final Vessel v) {
+	protected synchronized org.spc.ofp.tubs.domain.common.Vessel asTubsVessel(final Vessel v) {
 		if (null == v) { return null; }		
 		org.spc.ofp.tubs.domain.common.Vessel tv = 
 		    repo.findVesselById(v.getId());
@@ -644,15 +880,29 @@ public class TubsTripProcessor implements ItemProcessor<ITrip, org.spc.ofp.tubs.
 		tv.setGrossTonnage(v.getGrossTonnage());
 		tv.setAuditEntry(getAuditEntry());
 		tv.setVesselCurstId(101L);
+		if (lookupOnly) { return tv; }
 		return repo.saveVessel(tv) ?
 		    repo.findVesselById(v.getId()) :
 		    null;
 	}
 	
+	/**
+	 * Keeps the source EEZ code, or fills it in from the position if it's blank.
+	 * @param code
+	 * @param latitude
+	 * @param longitude
+	 * @return
+	 */
+	protected String asEezCode(final String code, final String latitude, final String longitude) {
+		if (null != code && !code.trim().isEmpty()) { return code; }
+		final String derived = eezIndex.find(latitude, longitude);
+		return null == derived ? code : derived;
+	}
+	
 	protected org.spc.ofp.tubs.domain.common.SeaState asTubsSeaState(final String seaState) {
 		// Protect JPA code from an invalid query
 		if (null == seaState || "".equalsIgnoreCase(seaState.trim())) { return null ; }
-		return repo.findSeaStateByCode(seaState);
+		return lookup.findSeaStateByCode(seaState);
 	}
 
 }
@@ -0,0 +1,16 @@
+-- Audit trail for CodeRemapper.  One row per corrected lookup entry per batch
+-- of trips, written in the same transaction as the UPDATE it describes.
+-- run_id is the importer's --run-id for the remap.
+CREATE TABLE code_remap_log (
+	remap_log_id  INT IDENTITY(1,1) NOT NULL,
+	run_id        VARCHAR(50)  NOT NULL,
+	lookup        VARCHAR(20)  NOT NULL,
+	old_id        INT          NOT NULL,
+	new_id        INT          NOT NULL,
+	rows_updated  INT          NOT NULL,
+	remapped_by   VARCHAR(50)  NOT NULL,
+	remapped_date DATETIME     NOT NULL,
+	CONSTRAINT pk_code_remap_log PRIMARY KEY (remap_log_id)
+);
+
+CREATE INDEX ix_code_remap_log_run ON code_remap_log (run_id);
@@ -0,0 +1,15 @@
+-- Work queue shared by importer instances running against the same TUBS database.
+-- One row per source trip.  state is P(ending), L(eased), D(one) or X (abandoned).
+-- A leased row whose lease_expires has passed is free for any instance to take over.
+-- attempts counts claims;  a free row that has run out of them is abandoned instead.
+CREATE TABLE import_lease (
+	source_name   VARCHAR(50)  NOT NULL,
+	source_id     VARCHAR(20)  NOT NULL,
+	state         CHAR(1)      NOT NULL DEFAULT 'P',
+	owner         VARCHAR(100) NULL,
+	lease_expires DATETIME     NULL,
+	attempts      INT          NOT NULL DEFAULT 0,
+	CONSTRAINT pk_import_lease PRIMARY KEY (source_name, source_id)
+);
+
+CREATE INDEX ix_import_lease_claim ON import_lease (source_name, state, lease_expires);
@@ -0,0 +1,62 @@
+-- Deletes whole TUBS trip graphs, children first, for the trip IDs in :tripIds.
+-- Used by RunRollback, which runs the statements in this order, in one transaction
+-- per batch of trips, after resetting the batch's ImportStatus and import_lease
+-- rows in that same transaction.  Statements end with a semicolon at the end of a line.
+-- Table and column names must follow the TUBS mappings; RunRollback checks the
+-- tables against them before the first batch.
+
+-- Purse seine: length samples, brails and sampling headers
+DELETE FROM ps.length_samples WHERE header_id IN (
+	SELECT h.header_id FROM ps.length_sampling_headers h
+	JOIN ps.sets s ON s.set_id = h.set_id
+	JOIN ps.activities a ON a.activity_id = s.activity_id
+	JOIN ps.days d ON d.day_id = a.day_id
+	WHERE d.trip_id IN (:tripIds));
+
+DELETE FROM ps.brails WHERE header_id IN (
+	SELECT h.header_id FROM ps.length_sampling_headers h
+	JOIN ps.sets s ON s.set_id = h.set_id
+	JOIN ps.activities a ON a.activity_id = s.activity_id
+	JOIN ps.days d ON d.day_id = a.day_id
+	WHERE d.trip_id IN (:tripIds));
+
+DELETE FROM ps.length_sampling_headers WHERE set_id IN (
+	SELECT s.set_id FROM ps.sets s
+	JOIN ps.activities a ON a.activity_id = s.activity_id
+	JOIN ps.days d ON d.day_id = a.day_id
+	WHERE d.trip_id IN (:tripIds));
+
+-- Purse seine: set catch, sets, activities and days
+DELETE FROM ps.set_catch WHERE set_id IN (
+	SELECT s.set_id FROM ps.sets s
+	JOIN ps.activities a ON a.activity_id = s.activity_id
+	JOIN ps.days d ON d.day_id = a.day_id
+	WHERE d.trip_id IN (:tripIds));
+
+DELETE FROM ps.sets WHERE activity_id IN (
+	SELECT a.activity_id FROM ps.activities a
+	JOIN ps.days d ON d.day_id = a.day_id
+	WHERE d.trip_id IN (:tripIds));
+
+DELETE FROM ps.activities WHERE day_id IN (
+	SELECT d.day_id FROM ps.days d WHERE d.trip_id IN (:tripIds));
+
+DELETE FROM ps.days WHERE trip_id IN (:tripIds);
+
+-- GEN-1, GEN-3 and GEN-6
+DELETE FROM obsv.vessel_sightings WHERE trip_id IN (:tripIds);
+
+DELETE FROM obsv.fish_transfers WHERE trip_id IN (:tripIds);
+
+DELETE FROM obsv.trip_report_details WHERE report_id IN (
+	SELECT r.report_id FROM obsv.trip_reports r WHERE r.trip_id IN (:tripIds));
+
+DELETE FROM obsv.trip_reports WHERE trip_id IN (:tripIds);
+
+DELETE FROM obsv.pollution_details WHERE pollution_report_id IN (
+	SELECT p.pollution_report_id FROM obsv.pollution_reports p WHERE p.trip_id IN (:tripIds));
+
+DELETE FROM obsv.pollution_reports WHERE trip_id IN (:tripIds);
+
+-- The trips themselves (trip summaries, if kept, cascade from here)
+DELETE FROM obsv.trips WHERE trip_id IN (:tripIds);
@@ -0,0 +1,40 @@
+-- Per-trip summaries, written by TripSummaryWriter in the same transaction as
+-- the trip (importer option --trip-summaries), so that reports don't have to
+-- aggregate ps.sets and ps.set_catch.  Deletes cascade from obsv.trips, which
+-- keeps them consistent when trips are replaced or rolled back.
+
+CREATE TABLE ps.trip_summary (
+	trip_id         INT            NOT NULL,
+	day_count       INT            NOT NULL,
+	fishing_days    DECIMAL(12,7)  NOT NULL,
+	set_count       INT            NOT NULL,
+	total_catch     DECIMAL(12,3)  NOT NULL,
+	summarized_date DATETIME       NOT NULL,
+	CONSTRAINT pk_trip_summary PRIMARY KEY (trip_id),
+	CONSTRAINT fk_trip_summary_trip FOREIGN KEY (trip_id)
+		REFERENCES obsv.trips (trip_id) ON DELETE CASCADE
+);
+
+-- weight_estimate sums the species weight estimates, observer_count the observer counts
+CREATE TABLE ps.trip_species_catch (
+	trip_id         INT            NOT NULL,
+	species_code    VARCHAR(3)     NOT NULL,
+	set_count       INT            NOT NULL,
+	weight_estimate DECIMAL(12,3)  NOT NULL,
+	observer_count  INT            NOT NULL,
+	CONSTRAINT pk_trip_species_catch PRIMARY KEY (trip_id, species_code),
+	CONSTRAINT fk_trip_species_catch_trip FOREIGN KEY (trip_id)
+		REFERENCES obsv.trips (trip_id) ON DELETE CASCADE
+);
+
+-- association_type_id is NULL for sets whose activity has no association type
+CREATE TABLE ps.trip_association_sets (
+	trip_id             INT            NOT NULL,
+	association_type_id INT            NULL,
+	set_count           INT            NOT NULL,
+	total_catch         DECIMAL(12,3)  NOT NULL,
+	CONSTRAINT fk_trip_association_sets_trip FOREIGN KEY (trip_id)
+		REFERENCES obsv.trips (trip_id) ON DELETE CASCADE
+);
+
+CREATE INDEX ix_trip_association_sets_trip ON ps.trip_association_sets (trip_id, association_type_id);
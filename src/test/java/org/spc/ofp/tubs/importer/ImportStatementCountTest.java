@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2011 Secretariat of the Pacific Community
+ *
+ * This file is part of TUBS.
+ *
+ * TUBS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TUBS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TUBS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.spc.ofp.tubs.importer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.spc.ofp.observer.domain.ITrip;
+import org.springframework.batch.item.ItemProcessor;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+
+/**
+ * Imports fixed synthetic trips from an embedded observer database into an
+ * embedded TUBS (see EmbeddedDatabases) and checks the statements Hibernate
+ * counts for each.  Trips that differ only in their number of days must run
+ * exactly the same queries, and their inserts and source statements must grow
+ * by exactly the same amount for each day added;  anything else is an N+1.
+ * Every trip must also stay within the default QueryBudget, the one real
+ * trips are held to.
+ *
+ * @author Corey Cole <coreyc@spc.int>
+ *
+ */
+public class ImportStatementCountTest {
+
+	private static final int SETS_PER_DAY = 2;
+	private static final int SAMPLES_PER_SET = 3;
+	private static final int CATCH_PER_SET = 2;
+
+	private static ClassPathXmlApplicationContext ctx;
+	private static CopyFromObserver copier;
+	private static EmbeddedFixtures fixtures;
+	private static RunReport report;
+	private static Statistics source;
+	private static Statistics target;
+	private static SyntheticTripGenerator generator;
+	private static int sequence;
+
+	/**
+	 * What Hibernate counted for one trip.
+	 */
+	private static class Counts {
+		final long sourceStatements;
+		final long sourceQueries;
+		final long targetQueries;
+		final long targetLoads;
+		final long targetInserts;
+
+		Counts() {
+			sourceStatements = source.getPrepareStatementCount();
+			sourceQueries = source.getQueryExecutionCount();
+			targetQueries = target.getQueryExecutionCount();
+			targetLoads = target.getEntityLoadCount();
+			targetInserts = target.getEntityInsertCount();
+		}
+	}
+
+	@BeforeClass
+	public static void setUp() {
+		ctx = new ClassPathXmlApplicationContext(CopyFromObserver.SPRING_CONFIGS, false);
+		ctx.addBeanFactoryPostProcessor(new EmbeddedDatabases());
+		ctx.refresh();
+		copier = ctx.getBean(CopyFromObserver.class);
+		fixtures = ctx.getBean("EmbeddedFixtures", EmbeddedFixtures.class);
+		report = ctx.getBean("ResourceAccounting", ResourceAccounting.class).getReport();
+		final ExistsFilterProcessor exists = ctx.getBean("ExistsFilterProcessor", ExistsFilterProcessor.class);
+		exists.setSourceName(CopyFromObserver.SOURCE_NAME);
+		exists.setReimportChanged(false);
+		source = statistics("observer");
+		target = statistics("tubs");
+		fixtures.seedReferenceValues();
+		generator = SyntheticTripGenerator.fromOptions(ImporterOptions.parse(new String[] {
+			"--sets=" + SETS_PER_DAY, "--samples=" + SAMPLES_PER_SET, "--catch=" + CATCH_PER_SET
+		}));
+		// Creates the observer, vessel and ports in TUBS and fills the lookup caches;
+		// three days are enough sets to use every sea state, condition and fate code
+		importTrip(3);
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		if (null != ctx) { ctx.close(); }
+	}
+
+	@Test
+	public void targetQueriesDontDependOnTripSize() {
+		final Counts one = importTrip(1);
+		final Counts two = importTrip(2);
+		final Counts four = importTrip(4);
+		assertEquals(one.targetQueries, two.targetQueries);
+		assertEquals(one.targetQueries, four.targetQueries);
+		assertEquals(one.targetLoads, two.targetLoads);
+		assertEquals(one.targetLoads, four.targetLoads);
+	}
+
+	@Test
+	public void sourceQueriesDontDependOnTripSize() {
+		final Counts one = importTrip(1);
+		final Counts four = importTrip(4);
+		assertEquals(one.sourceQueries, four.sourceQueries);
+	}
+
+	@Test
+	public void targetInsertsGrowByTheSameAmountPerDay() {
+		final Counts one = importTrip(1);
+		final Counts two = importTrip(2);
+		final Counts three = importTrip(3);
+		final long perDay = two.targetInserts - one.targetInserts;
+		assertEquals(perDay, three.targetInserts - two.targetInserts);
+		// A day, and per set an activity, the set, its catch, one sampling header, its brail and its samples
+		assertEquals(1 + SETS_PER_DAY * (4 + CATCH_PER_SET + SAMPLES_PER_SET), perDay);
+	}
+
+	@Test
+	public void sourceStatementsGrowByTheSameAmountPerDay() {
+		final Counts one = importTrip(1);
+		final Counts two = importTrip(2);
+		final Counts three = importTrip(3);
+		assertEquals(two.sourceStatements - one.sourceStatements, three.sourceStatements - two.sourceStatements);
+	}
+
+	@Test
+	public void importsStayWithinTheQueryBudget() {
+		final QueryBudget budget = new QueryBudget();
+		for (final int days : new int[] { 1, 4, 8 }) {
+			importTrip(days);
+			final TripMetrics trip = lastTrip();
+			assertTrue(String.format("%d days: %d source statements for %d entities, over %d",
+			        days, trip.getSourceStatements(), trip.getEntities(), budget.sourceLimit(trip.getEntities())),
+			    trip.getSourceStatements() <= budget.sourceLimit(trip.getEntities()));
+			assertTrue(String.format("%d days: %d target statements for %d entities, over %d",
+			        days, trip.getTargetStatements(), trip.getEntities(), budget.targetLimit(trip.getEntities())),
+			    trip.getTargetStatements() <= budget.targetLimit(trip.getEntities()));
+		}
+	}
+
+	@Test
+	public void sizeEstimateCountsDaysAndSets() {
+		final int[] tripDays = { 1, 3 };
+		final List<Long> tripIds = new ArrayList<Long>();
+		for (final int days : tripDays) {
+			generator.setDaysPerTrip(days);
+			tripIds.add(Long.valueOf(fixtures.persistSourceTrip(generator.generate(++sequence))));
+		}
+		final Map<Long, Long> sizes = ctx.getBean("TripSizeEstimator", TripSizeEstimator.class).estimate(tripIds);
+		for (int i = 0; i < tripDays.length; i++) {
+			// Every generated activity is a set
+			assertEquals(Long.valueOf(tripDays[i] * (1 + SETS_PER_DAY)), sizes.get(tripIds.get(i)));
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void projectionHashMatchesGraphHash() throws Exception {
+		generator.setDaysPerTrip(2);
+		final String id = fixtures.persistSourceTrip(generator.generate(++sequence));
+		final ITrip trip = ((ItemProcessor<String, ITrip>)ctx.getBean("ObserverTripProcessor")).process(id);
+		final EntityManager em = EntityManagerFactoryUtils.findEntityManagerFactory(ctx, "observer").createEntityManager();
+		try {
+			assertEquals(SourceTripHasher.hash(trip), SourceTripHasher.hash(em, Long.parseLong(id)));
+		} finally {
+			em.close();
+		}
+	}
+
+	/**
+	 * Saves a trip of the given number of days in the source and imports it.
+	 * @return What Hibernate counted for the import alone
+	 */
+	private static Counts importTrip(final int days) {
+		generator.setDaysPerTrip(days);
+		final String id = fixtures.persistSourceTrip(generator.generate(++sequence));
+		source.clear();
+		target.clear();
+		copier.importTrip(id);
+		final Counts counts = new Counts();
+		assertEquals("Trip " + id + " was not imported", "S", lastTrip().getStatus());
+		return counts;
+	}
+
+	private static TripMetrics lastTrip() {
+		final List<TripMetrics> trips = report.getTrips();
+		return trips.get(trips.size() - 1);
+	}
+
+	private static Statistics statistics(final String unitName) {
+		final EntityManagerFactory emf = EntityManagerFactoryUtils.findEntityManagerFactory(ctx, unitName);
+		return ((HibernateEntityManagerFactory)emf).getSessionFactory().getStatistics();
+	}
+}